@@ -54,6 +54,7 @@ dependencies {
     testImplementation(platform("org.junit:junit-bom:5.11.4"))
     testImplementation("org.junit.jupiter:junit-jupiter")
     testImplementation("it.unimi.dsi:fastutil:8.5.18")
+    testImplementation("com.github.ben-manes.caffeine:caffeine:3.2.2")
 
     // Benchmarking
     jmh("org.openjdk.jmh:jmh-core:1.37")
@@ -98,6 +99,8 @@ tasks {
                 "-t", "5",
                 "-f", "3"
         )
+        // e.g. -PjmhInclude=KVRepository to run only the benchmarks whose names match
+        project.findProperty("jmhInclude")?.let { args(it.toString()) }
     }
 
     register<JavaExec>("jmhCold") {
@@ -112,6 +115,7 @@ tasks {
                 "-i", "1",
                 "-f", "3"
         )
+        project.findProperty("jmhInclude")?.let { args(it.toString()) }
     }
 
     register("buildPlugin") {
@@ -0,0 +1,97 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Bulk {@link KVRepository} operations against the same work done with single-key calls.
+ * <p>
+ * Save benchmarks wait until the writer thread has written everything, by queueing a
+ * sentinel {@code deleteAsync} behind the writes and joining it.
+ * <p>
+ * Test data: 200 keys (one server's worth of online players) with 256-byte values,
+ * looked up in random order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryBulkBenchmarks {
+
+    private static final int KEYS = 200;
+    private static final String SENTINEL = "sentinel";
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private Map<String, String> entries;
+    private List<String> keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-bulk-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .build();
+
+        this.entries = new LinkedHashMap<>();
+        final String value = "v".repeat(256);
+        for (int i = 0; i < KEYS; i++) {
+            this.entries.put(UUID.randomUUID().toString(), value);
+        }
+        this.keys = new ArrayList<>(this.entries.keySet());
+        Collections.shuffle(this.keys, new Random(42));
+
+        this.repository.saveAll(this.entries);
+        this.repository.deleteAsync(SENTINEL).join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveLooped() {
+        for (final Map.Entry<String, String> entry : this.entries.entrySet()) {
+            this.repository.save(entry.getKey(), entry.getValue());
+        }
+        this.repository.deleteAsync(SENTINEL).join();
+    }
+
+    @Benchmark
+    public void saveAll() {
+        this.repository.saveAll(this.entries);
+        this.repository.deleteAsync(SENTINEL).join();
+    }
+
+    @Benchmark
+    public int loadLooped() {
+        int found = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (this.repository.load(this.keys.get(i)).isPresent()) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int loadAll() {
+        return this.repository.loadAll(this.keys).size();
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.ChangeEvent;
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.KeyEncoders;
+import com.github.groundbreakingmc.mylib.database.kv.Subscription;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Write throughput of {@link KVRepository} with {@code subscribers} change feeds attached.
+ * <p>
+ * The writer thread hands every record to each subscriber's buffer without waiting for it, so
+ * a feed should cost the writer one allocation and one queue offer per record; the listeners
+ * only count what they receive. {@code saveAsync} waits for every write, so each invocation
+ * includes a full trip through the writer thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryChangeFeedBenchmarks {
+
+    @Param({"0", "1", "4"})
+    public int subscribers;
+
+    private Path dir;
+    private KVRepository<Long, Long> repository;
+    private final List<Subscription> feeds = new ArrayList<>();
+    private final LongAdder delivered = new LongAdder();
+    private long next;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-feed-bench");
+        this.repository = KVRepository.<Long, Long>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(KeyEncoders.LONG)
+                .valueEncoder(value -> ByteBuffer.allocate(8).putLong(value).array(), b -> ByteBuffer.wrap(b).getLong())
+                .build();
+        for (int i = 0; i < this.subscribers; i++) {
+            this.feeds.add(this.repository.subscribe(ChangeEvent.LATEST, change -> this.delivered.increment()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (final Subscription feed : this.feeds) {
+            feed.close();
+        }
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveAsync() {
+        final long key = this.next++ & 1023;
+        this.repository.saveAsync(key, key).join();
+    }
+}
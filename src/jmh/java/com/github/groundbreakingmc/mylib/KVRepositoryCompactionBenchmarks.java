@@ -0,0 +1,128 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.OverflowPolicy;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryStats;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link KVRepository} compaction cost as the share of dead records in the log grows.
+ * <p>
+ * A log with the same live data and {@code deadPercent} overwritten records is written once
+ * per trial with compaction out of reach, and copied before every invocation. The invocation
+ * opens the copy with a configuration that compacts at once, and returns when the compaction
+ * is installed. Opening is part of the score — {@link KVRepositoryStartupBenchmarks} measures it
+ * alone — so the compaction time reported by {@link RepositoryStats} is printed on tear-down.
+ * <p>
+ * Test data: 100 000 live keys with 100-byte values in 1 MB segments.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(3)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class KVRepositoryCompactionBenchmarks {
+
+    private static final int KEYS = 100_000;
+    private static final int WRITE_CHUNK = 10_000;
+    private static final String VALUE = "v".repeat(100);
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+
+    @Param({"10", "30", "50", "70", "90"})
+    public int deadPercent;
+
+    private Path template;
+    private Path dir;
+    private KVRepository<String, String> repository;
+
+    @Setup(Level.Trial)
+    public void writeLog() throws IOException {
+        this.template = Files.createTempDirectory("kv-compaction-bench");
+        final KVRepository<String, String> writer = newRepository(this.template, RepositoryConfig.builder()
+                .segmentBytes(SEGMENT_BYTES)
+                .compactRatio(0.99)
+                .compactBytes(Long.MAX_VALUE)
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .build());
+
+        final long overwrites = (long) KEYS * this.deadPercent / (100 - this.deadPercent);
+        final Map<String, String> chunk = new HashMap<>();
+        for (long i = 0; i < KEYS + overwrites; i++) {
+            chunk.put("key-" + i % KEYS, VALUE);
+            if (chunk.size() == WRITE_CHUNK) {
+                writer.saveAll(chunk);
+                chunk.clear();
+            }
+        }
+        writer.saveAll(chunk);
+        writer.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyLog() throws IOException {
+        this.dir = Files.createTempDirectory("kv-compaction-bench");
+        try (Stream<Path> files = Files.walk(this.template)) {
+            for (final Path file : files.toList()) {
+                if (file.equals(this.template)) continue;
+                Files.copy(file, this.dir.resolve(this.template.relativize(file).toString()));
+            }
+        }
+    }
+
+    @Benchmark
+    public void compact() {
+        this.repository = newRepository(this.dir, RepositoryConfig.builder()
+                .segmentBytes(SEGMENT_BYTES)
+                .compactRatio(0.01)
+                .compactBytes(0)
+                .build());
+        // compaction is checked after every batch the writer thread completes
+        this.repository.saveAsync("sentinel", VALUE).join();
+        while (this.repository.stats().compactions() == 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() throws IOException {
+        final RepositoryStats stats = this.repository.stats();
+        System.out.printf("deadPercent=%d compaction: %d ms%n", this.deadPercent, stats.compactionNanos() / 1_000_000);
+        this.repository.close();
+        this.repository = null;
+        delete(this.dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        delete(this.template);
+    }
+
+    private static KVRepository<String, String> newRepository(Path dir, RepositoryConfig config) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link KVRepository} write and read cost with and without value compression.
+ * <p>
+ * {@code saveAll} writes every entry once and waits for the writer thread through a sentinel
+ * {@code deleteAsync}; {@code load} reads a random key from disk (no cache). The size of the
+ * log after each trial is printed on tear-down, so the space saved can be read from the output.
+ * <p>
+ * Test data: 1 000 keys with ~4 KB values shaped like serialized inventories — the same few
+ * item fields repeated with varying amounts, which is what the inventory encoders produce.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryCompressionBenchmarks {
+
+    private static final int KEYS = 1_000;
+    private static final int SLOTS = 36;
+    private static final String SENTINEL = "sentinel";
+    private static final String[] MATERIALS = {"DIAMOND_SWORD", "COBBLESTONE", "OAK_LOG", "COOKED_BEEF", "TORCH"};
+
+    @Param({"false", "true"})
+    public boolean compressValues;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private Map<String, String> entries;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-compression-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.builder().compressValues(this.compressValues).build())
+                .build();
+
+        final Random random = new Random(42);
+        this.entries = new LinkedHashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            this.entries.put(UUID.randomUUID().toString(), inventory(random));
+        }
+        this.keys = this.entries.keySet().toArray(new String[0]);
+
+        this.repository.saveAll(this.entries);
+        this.repository.deleteAsync(SENTINEL).join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+
+        long logBytes = 0;
+        try (Stream<Path> files = Files.list(this.dir.resolve("data"))) {
+            for (final Path file : files.filter(file -> file.toString().endsWith(".seg")).toList()) {
+                logBytes += Files.size(file);
+            }
+        }
+        System.out.println("compressValues=" + this.compressValues + " log size: " + logBytes + " bytes");
+
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveAll() {
+        this.repository.saveAll(this.entries);
+        this.repository.deleteAsync(SENTINEL).join();
+    }
+
+    @Benchmark
+    public Optional<String> load() {
+        return this.repository.load(this.keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    private static String inventory(Random random) {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (slot > 0) builder.append(',');
+            builder.append("{\"slot\":").append(slot)
+                    .append(",\"type\":\"").append(MATERIALS[random.nextInt(MATERIALS.length)])
+                    .append("\",\"amount\":").append(1 + random.nextInt(64))
+                    .append(",\"meta\":{\"display\":{\"Lore\":[\"Found in the nether\"]},\"Damage\":")
+                    .append(random.nextInt(1562)).append("}}");
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Mixed {@link KVRepository} traffic: readers and a writer working on the same keys at once.
+ * <p>
+ * Each group runs three threads loading random keys next to one thread saving random keys and
+ * waiting for every write, so reads race with index updates, cache invalidation and segment
+ * rolls. The per-method scores show what each side sustains while the other is busy; compare
+ * them with {@link KVRepositoryReadWriteBenchmarks} to see what contention costs.
+ * <p>
+ * Test data: 100 000 keys with 100-byte values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryContentionBenchmarks {
+
+    private static final int KEYS = 100_000;
+    private static final String VALUE = "v".repeat(100);
+
+    @Param({"false", "true"})
+    public boolean useCache;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-contention-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.builder().useCache(this.useCache).build())
+                .build();
+
+        this.keys = new String[KEYS];
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = "key-" + i;
+            entries.put(this.keys[i], VALUE);
+        }
+        this.repository.saveAll(entries);
+        while (this.repository.stats().queueDepth() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Optional<String> load() {
+        return this.repository.load(this.keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void save() {
+        this.repository.saveAsync(this.keys[ThreadLocalRandom.current().nextInt(KEYS)], VALUE).join();
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.OverflowPolicy;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Memory held by the {@link KVRepository} key index, on the heap and off it.
+ * <p>
+ * Each iteration opens a repository over the same log, which rebuilds the index from the hint
+ * files — the measured time. After the iteration the heap and direct memory still in use are
+ * compared with what was in use before opening, and printed: that difference is the footprint
+ * of the open repository, nearly all of it the index. With {@code offHeapIndex} the heap part
+ * should shrink to almost nothing while the direct part takes its place.
+ * <p>
+ * Test data: 1 000 000 UUID string keys with 1-byte values.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class KVRepositoryIndexFootprintBenchmarks {
+
+    private static final int KEYS = 1_000_000;
+    private static final int WRITE_CHUNK = 10_000;
+
+    @Param({"false", "true"})
+    public boolean offHeapIndex;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private long heapBefore;
+    private long directBefore;
+
+    @Setup(Level.Trial)
+    public void writeLog() throws IOException {
+        this.dir = Files.createTempDirectory("kv-footprint-bench");
+        final KVRepository<String, String> writer = this.newRepository();
+        final Map<String, String> chunk = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            chunk.put(UUID.randomUUID().toString(), "v");
+            if (chunk.size() == WRITE_CHUNK) {
+                writer.saveAll(chunk);
+                chunk.clear();
+            }
+        }
+        writer.saveAll(chunk);
+        writer.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void measureBaseline() {
+        this.heapBefore = usedHeap();
+        this.directBefore = usedDirect();
+    }
+
+    @Benchmark
+    public void open() {
+        this.repository = this.newRepository();
+    }
+
+    @TearDown(Level.Iteration)
+    public void measureFootprint() {
+        final long heap = usedHeap() - this.heapBefore;
+        final long direct = usedDirect() - this.directBefore;
+        System.out.printf("offHeapIndex=%s heap: %d MB, direct: %d MB (%d + %d bytes per key)%n",
+                this.offHeapIndex, heap >> 20, direct >> 20, heap / KEYS, direct / KEYS);
+        this.repository.close();
+        this.repository = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private KVRepository<String, String> newRepository() {
+        return KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.builder()
+                        .offHeapIndex(this.offHeapIndex)
+                        // the log is written faster than the disk takes it
+                        .overflowPolicy(OverflowPolicy.BLOCK)
+                        .build())
+                .build();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+}
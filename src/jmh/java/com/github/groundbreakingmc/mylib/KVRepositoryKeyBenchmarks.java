@@ -0,0 +1,156 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.KeyEncoders;
+import com.github.groundbreakingmc.mylib.database.kv.LongKVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Lookups by {@code long} and {@code UUID} key through the key specializations of
+ * {@link KeyEncoders} and {@link LongKVRepository}, against the same keys through byte array
+ * encoders of the same layout.
+ * <p>
+ * The cache is on and holds every value, so a hit never reads the disk and what is left is the
+ * cost of the key: encoding it into an array, hashing and comparing the array, versus comparing
+ * its {@code long}s. A miss is answered by the offset index alone. Run with {@code -prof gc} to
+ * see the allocation per lookup: a specialized lookup builds one small key object, where an
+ * encoded one also boxes the key and allocates the array and buffer of its encoder.
+ * <p>
+ * Test data: 100 000 keys with 100-byte values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryKeyBenchmarks {
+
+    private static final int KEYS = 100_000;
+    private static final String VALUE = "v".repeat(100);
+
+    private Path dir;
+    private KVRepository<Long, String> encodedLongs;
+    private LongKVRepository<String> longs;
+    private KVRepository<UUID, String> encodedUuids;
+    private KVRepository<UUID, String> uuids;
+    private long[] longKeys;
+    private UUID[] uuidKeys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-key-bench");
+        final RepositoryConfig config = RepositoryConfig.withCache();
+
+        this.encodedLongs = KVRepository.<Long, String>builder()
+                .path(this.dir.resolve("encoded-longs"))
+                .keyEncoder(key -> ByteBuffer.allocate(8).putLong(key).array(), b -> ByteBuffer.wrap(b).getLong())
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+        this.longs = LongKVRepository.<String>builder()
+                .path(this.dir.resolve("longs"))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+        this.encodedUuids = KVRepository.<UUID, String>builder()
+                .path(this.dir.resolve("encoded-uuids"))
+                .keyEncoder(uuid -> ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array(),
+                        b -> {
+                            final ByteBuffer buf = ByteBuffer.wrap(b);
+                            return new UUID(buf.getLong(), buf.getLong());
+                        })
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+        this.uuids = KVRepository.<UUID, String>builder()
+                .path(this.dir.resolve("uuids"))
+                .keyEncoder(KeyEncoders.UUID)
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+
+        final Random random = new Random(42);
+        this.longKeys = new long[KEYS];
+        this.uuidKeys = new UUID[KEYS];
+        final Map<Long, String> longEntries = new HashMap<>();
+        final Map<UUID, String> uuidEntries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            this.longKeys[i] = random.nextLong();
+            this.uuidKeys[i] = new UUID(random.nextLong(), random.nextLong());
+            longEntries.put(this.longKeys[i], VALUE);
+            uuidEntries.put(this.uuidKeys[i], VALUE);
+        }
+        this.encodedLongs.saveAll(longEntries);
+        this.longs.saveAll(longEntries);
+        this.encodedUuids.saveAll(uuidEntries);
+        this.uuids.saveAll(uuidEntries);
+        for (final KVRepository<?, ?> repository : List.of(this.encodedLongs, this.longs, this.encodedUuids, this.uuids)) {
+            while (repository.stats().queueDepth() > 0) {
+                Thread.onSpinWait();
+            }
+        }
+
+        // warm the caches, so hits measure the key rather than the disk
+        for (int i = 0; i < KEYS; i++) {
+            this.encodedLongs.load(this.longKeys[i]);
+            this.longs.load(this.longKeys[i]);
+            this.encodedUuids.load(this.uuidKeys[i]);
+            this.uuids.load(this.uuidKeys[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.encodedLongs.close();
+        this.longs.close();
+        this.encodedUuids.close();
+        this.uuids.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<String> encodedLongHit() {
+        return this.encodedLongs.load(this.longKeys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Optional<String> longHit() {
+        return this.longs.load(this.longKeys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Optional<String> encodedLongMiss() {
+        return this.encodedLongs.load(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    public Optional<String> longMiss() {
+        return this.longs.load(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    public Optional<String> encodedUuidHit() {
+        return this.encodedUuids.load(this.uuidKeys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Optional<String> uuidHit() {
+        return this.uuids.load(this.uuidKeys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent {@link KVRepository#load} throughput without a cache.
+ * <p>
+ * Every call goes through the offset index and a positional read, so the numbers show how
+ * reads scale with the thread count. Compare the per-thread throughput of the variants:
+ * with a lock-free index it should stay roughly flat until the disk becomes the limit.
+ * {@code mmapReads} compares positional file reads against reads from memory mappings.
+ * <p>
+ * Test data: 100 000 keys with 100-byte values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryLoadBenchmarks {
+
+    private static final int KEYS = 100_000;
+
+    @Param({"false", "true"})
+    public boolean mmapReads;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-load-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.builder().mmapReads(this.mmapReads).build())
+                .build();
+
+        this.keys = new String[KEYS];
+        final String value = "v".repeat(100);
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = "key-" + i;
+            entries.put(this.keys[i], value);
+        }
+        // one bulk write, larger than the write queue, which it takes over until written
+        this.repository.saveAll(entries);
+        while (this.repository.stats().queueDepth() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<String> load1Thread() {
+        return this.loadRandom();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<String> load4Threads() {
+        return this.loadRandom();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Optional<String> loadAllCores() {
+        return this.loadRandom();
+    }
+
+    private Optional<String> loadRandom() {
+        return this.repository.load(this.keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of single-key {@link KVRepository} operations, with and without the value cache.
+ * <p>
+ * {@code saveAndWait} queues one write and waits until the writer thread has written it, which
+ * is the latency of a save rather than the cost of queueing it. {@code loadHit} reads a random
+ * stored key — from the cache once it is warm, otherwise from disk — and {@code loadMiss} a key
+ * that was never stored, which the offset index answers without touching the disk.
+ * <p>
+ * Test data: 100 000 keys with 100-byte values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryReadWriteBenchmarks {
+
+    private static final int KEYS = 100_000;
+    private static final String VALUE = "v".repeat(100);
+
+    @Param({"false", "true"})
+    public boolean useCache;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private String[] keys;
+    private String[] missingKeys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-read-write-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.builder().useCache(this.useCache).build())
+                .build();
+
+        this.keys = new String[KEYS];
+        this.missingKeys = new String[KEYS];
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = "key-" + i;
+            this.missingKeys[i] = "missing-" + i;
+            entries.put(this.keys[i], VALUE);
+        }
+        this.repository.saveAll(entries);
+        while (this.repository.stats().queueDepth() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveAndWait() {
+        this.repository.saveAsync(this.keys[ThreadLocalRandom.current().nextInt(KEYS)], VALUE).join();
+    }
+
+    @Benchmark
+    public Optional<String> loadHit() {
+        return this.repository.load(this.keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Optional<String> loadMiss() {
+        return this.repository.load(this.missingKeys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.KeyEncoders;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finding the keys of one clan among {@code entries} players: {@code findBy} on a secondary index
+ * against filtering a full {@code stream()}, the only way to answer such a query without one.
+ * <p>
+ * Each player belongs to one of 100 clans, so every query matches one percent of the keys. The
+ * scan reads and decodes every value from disk; the index only decodes the matching keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositorySecondaryIndexBenchmarks {
+
+    private static final int CLANS = 100;
+
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private Path dir;
+    private KVRepository<Long, Long> repository;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-index-bench");
+        this.repository = KVRepository.<Long, Long>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(KeyEncoders.LONG)
+                .valueEncoder(value -> ByteBuffer.allocate(8).putLong(value).array(), b -> ByteBuffer.wrap(b).getLong())
+                .index("clan", clan -> clan)
+                .build();
+        for (long key = 0; key < this.entries; key++) {
+            this.repository.save(key, key % CLANS);
+        }
+        // every write indexed, so findBy never waits for the writer thread
+        this.repository.saveAsync(0L, 0L).join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Set<Long> findBy() {
+        return this.repository.findBy("clan", (long) ThreadLocalRandom.current().nextInt(CLANS));
+    }
+
+    @Benchmark
+    public Set<Long> scan() {
+        final long clan = ThreadLocalRandom.current().nextInt(CLANS);
+        try (Stream<Map.Entry<Long, Long>> stream = this.repository.stream()) {
+            return stream.filter(entry -> entry.getValue() == clan).map(Map.Entry::getKey).collect(Collectors.toSet());
+        }
+    }
+}
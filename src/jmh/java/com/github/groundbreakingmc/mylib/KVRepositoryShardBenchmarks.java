@@ -0,0 +1,75 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link KVRepository} write throughput as the number of shards grows.
+ * <p>
+ * Every available core runs a thread that saves a random key and waits for the writer thread
+ * to have written it, so the writers are kept saturated and the score is what they sustain.
+ * With one shard a single writer thread encodes and appends everything; more shards should
+ * scale until the cores or the disk run out. Pass {@code -p shards=...} to go up to the core
+ * count of the machine at hand.
+ * <p>
+ * Test data: 100 000 string keys with 256-byte values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(Threads.MAX)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryShardBenchmarks {
+
+    private static final int KEYS = 100_000;
+    private static final String VALUE = "v".repeat(256);
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int shards;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-shard-bench");
+        this.repository = KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .shards(this.shards)
+                .build();
+
+        this.keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = "player-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void save() {
+        this.repository.saveAsync(this.keys[ThreadLocalRandom.current().nextInt(KEYS)], VALUE).join();
+    }
+}
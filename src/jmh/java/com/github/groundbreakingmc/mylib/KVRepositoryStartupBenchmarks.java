@@ -0,0 +1,103 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.OverflowPolicy;
+import com.github.groundbreakingmc.mylib.database.kv.RepositoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to open a {@link KVRepository} as its log grows.
+ * <p>
+ * Opening rebuilds the key index from the log. With {@code hints} every sealed segment is
+ * indexed from its hint file, which holds keys and offsets but no values; without them, the
+ * hint files are deleted before each invocation and every segment is scanned record by record.
+ * The repository is closed after the measured part.
+ * <p>
+ * Test data: {@code keys} string keys with 100-byte values, about 130 bytes per record.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(3)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class KVRepositoryStartupBenchmarks {
+
+    private static final int WRITE_CHUNK = 10_000;
+    private static final String VALUE = "v".repeat(100);
+
+    @Param({"10000", "100000", "1000000"})
+    public int keys;
+
+    @Param({"true", "false"})
+    public boolean hints;
+
+    private Path dir;
+    private KVRepository<String, String> repository;
+
+    @Setup(Level.Trial)
+    public void writeLog() throws IOException {
+        this.dir = Files.createTempDirectory("kv-startup-bench");
+        final KVRepository<String, String> writer = this.newRepository();
+        final Map<String, String> chunk = new HashMap<>();
+        for (int i = 0; i < this.keys; i++) {
+            chunk.put("key-" + i, VALUE);
+            if (chunk.size() == WRITE_CHUNK) {
+                writer.saveAll(chunk);
+                chunk.clear();
+            }
+        }
+        writer.saveAll(chunk);
+        writer.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void dropHints() throws IOException {
+        if (this.hints) return;
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.filter(file -> file.toString().endsWith(".hint")).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void open() {
+        this.repository = this.newRepository();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeRepository() {
+        this.repository.close();
+        this.repository = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private KVRepository<String, String> newRepository() {
+        return KVRepository.<String, String>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                // the log is written faster than the disk takes it
+                .config(RepositoryConfig.builder().overflowPolicy(OverflowPolicy.BLOCK).build())
+                .build();
+    }
+}
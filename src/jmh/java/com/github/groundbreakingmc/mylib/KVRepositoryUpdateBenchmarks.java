@@ -0,0 +1,102 @@
+package com.github.groundbreakingmc.mylib;
+
+import com.github.groundbreakingmc.mylib.database.kv.KVRepository;
+import com.github.groundbreakingmc.mylib.database.kv.KeyEncoders;
+import com.github.groundbreakingmc.mylib.database.kv.Versioned;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent read-modify-write of {@link KVRepository} counters: incrementing under one lock
+ * around {@code load} and {@code save}, the usual way to make such updates safe, against the
+ * optimistic {@code loadVersioned}/{@code compareAndSave} retry loop and {@code compute}.
+ * <p>
+ * Every available core increments a random one of {@code hotKeys} counters. With one key every
+ * update contends; with many, the lock still serializes updates of different keys while the
+ * other two only collide on the same key. {@code compute} and {@code compareAndSave} wait for
+ * the writer thread to decide, so they trade the lock for a trip through the write queue; a
+ * failed compare costs another load and another trip, which is what a single hot key shows.
+ * Run with {@code -prof gc} to see the allocation per update.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(Threads.MAX)
+@Fork(3)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 10, time = 3)
+public class KVRepositoryUpdateBenchmarks {
+
+    @Param({"1", "1000"})
+    public int hotKeys;
+
+    private Path dir;
+    private KVRepository<Long, Long> repository;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("kv-update-bench");
+        this.repository = KVRepository.<Long, Long>builder()
+                .path(this.dir.resolve("data"))
+                .keyEncoder(KeyEncoders.LONG)
+                .valueEncoder(value -> ByteBuffer.allocate(8).putLong(value).array(), b -> ByteBuffer.wrap(b).getLong())
+                .build();
+        for (long key = 0; key < this.hotKeys; key++) {
+            this.repository.save(key, 0L);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.repository.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private long randomKey() {
+        return ThreadLocalRandom.current().nextInt(this.hotKeys);
+    }
+
+    @Benchmark
+    public long externalLock() {
+        final long key = this.randomKey();
+        this.lock.lock();
+        try {
+            final long next = this.repository.load(key).orElse(0L) + 1;
+            this.repository.save(key, next);
+            return next;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public long compareAndSave() {
+        final long key = this.randomKey();
+        while (true) {
+            final Optional<Versioned<Long>> current = this.repository.loadVersioned(key);
+            final long version = current.map(Versioned::version).orElse(Versioned.ABSENT);
+            final long next = current.map(Versioned::value).orElse(0L) + 1;
+            if (this.repository.compareAndSave(key, version, next)) return next;
+        }
+    }
+
+    @Benchmark
+    public Optional<Long> compute() {
+        return this.repository.compute(this.randomKey(), (key, value) -> value == null ? 1L : value + 1);
+    }
+}
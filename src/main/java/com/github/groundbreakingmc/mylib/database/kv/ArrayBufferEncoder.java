@@ -0,0 +1,70 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link KeyValueEncoder} seen as a {@link BufferEncoder}, as returned by {@link BufferEncoder#of}.
+ * <p>
+ * Keys live in the index as byte arrays anyway, so {@link #toArray} and {@link #fromArray} hand
+ * them to an adapted encoder as they are instead of copying them through a buffer.
+ */
+final class ArrayBufferEncoder<T> implements BufferEncoder<T> {
+
+    private static final int MIN_KEY_BUFFER = 64;
+
+    final KeyValueEncoder<T> encoder;
+
+    ArrayBufferEncoder(@NotNull KeyValueEncoder<T> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * The size is only known once the value is encoded, so this does not estimate it.
+     */
+    @Override
+    public int sizeHint(T value) {
+        return 0;
+    }
+
+    @Override
+    public void encode(T value, @NotNull ByteBuffer target) {
+        // put checks for room before writing anything
+        target.put(this.encoder.encode(value));
+    }
+
+    @Override
+    public T decode(@NotNull ByteBuffer source) {
+        final byte[] data = new byte[source.remaining()];
+        source.get(data);
+        return this.encoder.decode(data);
+    }
+
+    /**
+     * Encodes {@code value} into an exactly sized array.
+     */
+    static <T> byte @NotNull [] toArray(@NotNull BufferEncoder<T> encoder, T value) {
+        if (encoder instanceof ArrayBufferEncoder<T> array) return array.encoder.encode(value);
+
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(encoder.sizeHint(value), MIN_KEY_BUFFER));
+        while (true) {
+            try {
+                encoder.encode(value, buf);
+                return Arrays.copyOf(buf.array(), buf.position());
+            } catch (BufferOverflowException ex) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Decodes a value from all of {@code data}.
+     */
+    static <T> T fromArray(@NotNull BufferEncoder<T> encoder, byte @NotNull [] data) {
+        if (encoder instanceof ArrayBufferEncoder<T> array) return array.encoder.decode(data);
+        return encoder.decode(ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+}
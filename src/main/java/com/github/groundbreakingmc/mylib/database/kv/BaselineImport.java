@@ -0,0 +1,153 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * One-time conversion of a repository kept in a single file, as written before the log was split
+ * into {@link Segment}s, into a directory the {@link DiskRepository} opens.
+ * <p>
+ * Single-file record (alive): [keyLen(4)][keyBytes][flag=0(1)][valueLen(4)][valueBytes]
+ * <p>
+ * Single-file record (tombstone): [keyLen(4)][keyBytes][flag=1(1)]
+ * <p>
+ * The live records are copied into segment {@code 0} of {@code <path>.import}, in the order their
+ * keys were last written, with versions counting up from {@code 1}. The file is then renamed to
+ * {@code <path>.baseline}, which is kept as a backup, and the directory takes its place. A crash
+ * between the two renames is finished by the next start. The old format has no checksums, so the
+ * only damage it can tell apart is a record cut short at the end of the file, which is dropped.
+ */
+final class BaselineImport {
+
+    static final String IMPORT_SUFFIX = ".import";
+    static final String BASELINE_SUFFIX = ".baseline";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private BaselineImport() {
+    }
+
+    /**
+     * Converts the single-file repository at {@code path}, if there is one, or finishes a conversion
+     * a crash interrupted. Does nothing for a path that is a directory or does not exist.
+     *
+     * @throws IllegalStateException if the file is locked by a process still using it
+     */
+    static void importIfNeeded(@NotNull Path path, @NotNull Logger logger) throws IOException {
+        final Path importDir = path.resolveSibling(path.getFileName() + IMPORT_SUFFIX);
+        final Path baseline = path.resolveSibling(path.getFileName() + BASELINE_SUFFIX);
+
+        if (Files.isRegularFile(path)) {
+            final int records;
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the single-file store locked the first byte of its file
+                final FileLock lock = file.tryLock(0, 1, false);
+                if (lock == null) throw new IllegalStateException("File is already in use: " + path);
+                try {
+                    // left over by an import that did not get to rename the file
+                    deleteRecursively(importDir);
+                    Files.createDirectories(importDir);
+                    records = copyLiveRecords(file, importDir.resolve(Segment.fileName(0, 0)));
+                    DiskRepository.forceFile(importDir);
+                } finally {
+                    lock.release();
+                }
+            }
+            Files.move(path, baseline, StandardCopyOption.ATOMIC_MOVE);
+            logger.info(() -> "Imported " + records + " keys of the single-file repository " + path
+                    + ", kept as " + baseline.getFileName());
+        }
+
+        if (Files.notExists(path) && Files.isDirectory(importDir) && Files.isRegularFile(baseline)) {
+            Files.move(importDir, path, StandardCopyOption.ATOMIC_MOVE);
+            final Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) DiskRepository.forceFile(parent);
+        }
+    }
+
+    /**
+     * Writes the live records of the single-file log {@code file} to a new segment at {@code target}.
+     *
+     * @return the number of records written
+     */
+    private static int copyLiveRecords(FileChannel file, Path target) throws IOException {
+        // key -> position of the value length of its latest record, in the order keys were last written
+        final Map<ByteBuffer, Long> live = new LinkedHashMap<>();
+        final long size = file.size();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.position(0)), BUFFER_SIZE));
+        long pos = 0;
+        try {
+            while (pos < size) {
+                final int keyLen = in.readInt();
+                if (keyLen < 0 || pos + 4 + keyLen + 1 > size) break;
+                final byte[] keyBytes = new byte[keyLen];
+                in.readFully(keyBytes);
+                final byte flag = in.readByte();
+                final ByteBuffer key = ByteBuffer.wrap(keyBytes);
+                // a key written again moves to the end, where its latest record is
+                live.remove(key);
+                if (flag == DiskRepository.FLAG_DELETED) {
+                    pos += 4 + keyLen + 1;
+                    continue;
+                }
+                final long valueLenPos = pos + 4 + keyLen + 1;
+                final int valueLen = in.readInt();
+                if (valueLen < 0 || valueLenPos + 4 + valueLen > size) break;
+                in.skipNBytes(valueLen);
+                live.put(key, valueLenPos);
+                pos = valueLenPos + 4 + valueLen;
+            }
+        } catch (EOFException ex) {
+            // a record cut short by a crash
+        }
+
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE);
+            final ByteBuffer valueLen = ByteBuffer.allocate(4);
+            long version = 0;
+            for (final Map.Entry<ByteBuffer, Long> entry : live.entrySet()) {
+                final byte[] keyBytes = entry.getKey().array();
+                Segment.readFully(file, valueLen, entry.getValue());
+                final ByteBuffer value = ByteBuffer.allocate(valueLen.getInt(0));
+                Segment.readFully(file, value, entry.getValue() + 4);
+
+                final ByteBuffer record = ByteBuffer.allocate(Segment.RECORD_HEADER_SIZE + keyBytes.length + value.capacity());
+                Segment.startRecord(record, DiskRepository.FLAG_ALIVE, 0, ++version, keyBytes);
+                record.put(value);
+                Segment.sealRecord(record, 0, DiskRepository.FLAG_ALIVE, value.capacity());
+                stream.write(record.array(), 0, record.position());
+            }
+            stream.flush();
+            out.force(true);
+        }
+        return live.size();
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts values of type {@code T} to and from their stored form without going through an
+ * intermediate byte array.
+ *
+ * <p>Where a {@link KeyValueEncoder} returns a new array for every value and is handed one for
+ * every read, a buffer encoder writes straight into the buffer the repository assembles records
+ * in, and reads straight from the memory the record was loaded into — a memory-mapped segment or
+ * a pooled direct buffer. Use it for values that are saved and loaded often enough for those
+ * arrays to matter; a {@link KeyValueEncoder} is passed through {@link #of} and stores the same bytes.
+ *
+ * <p>Example for {@code UUID}:
+ * <pre>{@code
+ * public class UUIDBufferEncoder implements BufferEncoder<UUID> {
+ *
+ *     public static final UUIDBufferEncoder INSTANCE = new UUIDBufferEncoder();
+ *
+ *     @Override
+ *     public int sizeHint(UUID uuid) {
+ *         return 16;
+ *     }
+ *
+ *     @Override
+ *     public void encode(UUID uuid, ByteBuffer target) {
+ *         target.putLong(uuid.getMostSignificantBits());
+ *         target.putLong(uuid.getLeastSignificantBits());
+ *     }
+ *
+ *     @Override
+ *     public UUID decode(ByteBuffer source) {
+ *         return new UUID(source.getLong(), source.getLong());
+ *     }
+ * }
+ * }</pre>
+ *
+ * @param <T> the type to encode
+ */
+public interface BufferEncoder<T> {
+
+    /**
+     * Estimates how many bytes {@link #encode} writes for {@code value}. The repository makes at
+     * least this much room before encoding; an estimate that is too low costs a retry, one that
+     * is too high costs nothing but buffer space.
+     *
+     * @param value the value about to be encoded
+     * @return the expected encoded size, or {@code 0} if unknown
+     */
+    int sizeHint(T value);
+
+    /**
+     * Writes {@code value} into {@code target} from its position on, leaving the position after
+     * the last byte written. The buffer is big-endian and usually direct, so it has no accessible
+     * array; only the bytes between the initial and the final position are stored.
+     * <p>
+     * If the value does not fit, throw {@link BufferOverflowException} — the relative
+     * {@code put} methods of {@link ByteBuffer} already do — and the repository calls again with
+     * a bigger buffer. Whatever was written before the exception is discarded.
+     *
+     * @param value  the value to encode
+     * @param target the buffer to write into
+     */
+    void encode(T value, @NotNull ByteBuffer target);
+
+    /**
+     * Decodes a value from the remaining bytes of {@code source}, which hold exactly what
+     * {@link #encode} wrote.
+     * <p>
+     * The buffer is read-only, big-endian and may be backed by a memory-mapped file or by a
+     * buffer that is reused for the next read as soon as this returns. Copy out whatever the
+     * value needs and do not keep a reference to the buffer.
+     *
+     * @param source the stored bytes
+     * @return the decoded value, never null
+     */
+    T decode(@NotNull ByteBuffer source);
+
+    /**
+     * Adapts a byte array encoder. The stored bytes are exactly those of {@code encoder}, so the
+     * two can be switched on an existing repository.
+     *
+     * @param encoder the encoder to adapt, not null
+     * @return a buffer encoder producing the same bytes
+     */
+    static <T> @NotNull BufferEncoder<T> of(@NotNull KeyValueEncoder<T> encoder) {
+        return new ArrayBufferEncoder<>(encoder);
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Direct buffers of one size, shared by the threads reading values through a channel.
+ * <p>
+ * Reading into a direct buffer spares the copy the JDK makes when a channel reads into a heap
+ * buffer, and pooling spares allocating one per read. Thread-locals would not do here: loads
+ * mostly run on virtual threads, which come and go. Requests larger than the pooled size get a
+ * heap buffer of their own, and buffers returned to a full pool are left to the garbage collector.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> idle;
+
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * Returns a buffer with position {@code 0} and limit {@code size}.
+     */
+    @NotNull ByteBuffer acquire(int size) {
+        if (size > this.bufferSize) return ByteBuffer.allocate(size);
+        ByteBuffer buf = this.idle.poll();
+        if (buf == null) buf = ByteBuffer.allocateDirect(this.bufferSize);
+        return buf.clear().limit(size);
+    }
+
+    /**
+     * Hands a buffer from {@link #acquire} back. It must not be used afterwards.
+     */
+    void release(@NotNull ByteBuffer buf) {
+        if (buf.isDirect()) this.idle.offer(buf);
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+/**
+ * Snapshot of the value cache counters of a {@link KVRepository}.
+ *
+ * @param hits      lookups answered from the cache
+ * @param misses    lookups that had to go to disk
+ * @param evictions entries dropped to stay within {@link RepositoryConfig#cacheMaxBytes()}
+ * @param weight    current total weight of the cached entries, in bytes
+ */
+public record CacheStats(long hits, long misses, long evictions, long weight) {
+
+    static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0);
+
+    /**
+     * Returns the fraction of lookups answered from the cache, or {@code 0} if there were none.
+     *
+     * @return hit rate in the range {@code [0, 1]}
+     */
+    public double hitRate() {
+        final long total = this.hits + this.misses;
+        return total == 0 ? 0 : (double) this.hits / total;
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A save or delete as delivered to a {@link KVRepository#subscribe subscriber}.
+ *
+ * <p>The offset of a change is the {@link Versioned#version() version} of its record: it grows
+ * with every write of the repository, in the order the writes reached the log of their shard, and
+ * stays the same across restarts and compaction. Subscribing again from
+ * {@link Subscription#lastOffset()} {@code + 1} resumes without missing a change.
+ *
+ * <p>Each change is a record of the log. Writes to one key that the writer thread coalesced into
+ * a single record arrive as one change, with the value written last.
+ *
+ * @param key    the key that changed, not null
+ * @param value  the saved value, or {@code null} if the key was deleted
+ * @param offset the position of the change in the log
+ * @param <K>    key type
+ * @param <V>    value type
+ */
+public record ChangeEvent<K, V>(K key, @Nullable V value, long offset) {
+
+    /**
+     * Passed to {@link KVRepository#subscribe} to skip the replay and only receive changes made
+     * from then on.
+     */
+    public static final long LATEST = Long.MAX_VALUE;
+
+    /**
+     * Returns whether this change deleted the key.
+     *
+     * @return {@code true} for a delete, including the removal of an expired entry
+     */
+    public boolean deleted() {
+        return this.value == null;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of stored values.
+ * <p>
+ * A compressed value is stored as [rawLen(4)][deflate stream], so it can be inflated into an
+ * exactly sized array. The {@link Deflater} and {@link Inflater} of each thread are reused,
+ * which saves setting up the native zlib state for every record.
+ */
+final class Compression {
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static final int RAW_LEN_SIZE = 4;
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses the remaining bytes of {@code raw}, which may be direct, without moving its position.
+     *
+     * @return the compressed form, or {@code null} if it would not be smaller than {@code raw}
+     */
+    static byte @Nullable [] compress(@NotNull ByteBuffer raw) {
+        final int rawLen = raw.remaining();
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw.duplicate());
+        deflater.finish();
+
+        // anything that does not fit in the raw size is not worth storing compressed
+        final byte[] out = new byte[rawLen];
+        if (out.length <= RAW_LEN_SIZE) return null;
+        ByteBuffer.wrap(out).putInt(rawLen);
+
+        int written = RAW_LEN_SIZE;
+        while (!deflater.finished() && written < out.length) {
+            final int n = deflater.deflate(out, written, out.length - written);
+            if (n == 0 && !deflater.finished()) return null;
+            written += n;
+        }
+        return deflater.finished() ? Arrays.copyOf(out, written) : null;
+    }
+
+    /**
+     * Restores a value produced by {@link #compress} from the remaining bytes of {@code stored},
+     * which may be direct or memory-mapped, without moving its position.
+     *
+     * @throws IOException if {@code stored} is not a valid compressed value
+     */
+    static byte @NotNull [] decompress(@NotNull ByteBuffer stored) throws IOException {
+        if (stored.remaining() < RAW_LEN_SIZE) throw new IOException("Compressed value is too short");
+        final int rawLen = stored.getInt(stored.position());
+        if (rawLen < 0) throw new IOException("Corrupt compressed value length: " + rawLen);
+
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(stored.slice(stored.position() + RAW_LEN_SIZE, stored.remaining() - RAW_LEN_SIZE));
+
+        final byte[] raw = new byte[rawLen];
+        int read = 0;
+        try {
+            while (read < rawLen) {
+                final int n = inflater.inflate(raw, read, rawLen - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed value", ex);
+        }
+        if (read != rawLen) throw new IOException("Compressed value inflated to " + read + " bytes, expected " + rawLen);
+        return raw;
+    }
+}
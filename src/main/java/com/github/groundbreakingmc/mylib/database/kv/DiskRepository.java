@@ -1,43 +1,113 @@
 package com.github.groundbreakingmc.mylib.database.kv;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.Optional;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Disk-backed key-value store using append-only writes (Bitcask model).
  * <p>
+ * The log lives in a directory and is split into size-capped {@link Segment}s: one active
+ * segment the writer thread appends to, and any number of sealed, immutable ones, which
+ * compaction merges.
+ * <p>
  * Record format (alive):
- * [keyLen(4)][keyBytes][flag=0(1)][valueLen(4)][valueBytes]
+ * [crc32c(4)][flag=0(1)][keyLen(4)][valueLen(4)][version(8)][keyBytes][valueBytes]
  * <p>
  * Record format (tombstone):
- * [keyLen(4)][keyBytes][flag=1(1)]
+ * [crc32c(4)][flag=1(1)][keyLen(4)][valueLen=0(4)][version(8)][keyBytes]
+ * <p>
+ * Record format (batch marker):
+ * [crc32c(4)][flag=8 begin or 16 commit(1)][keyLen=0(4)][valueLen=0(4)][version=0(8)]
+ * <p>
+ * Flag bit {@code 2} marks a deflated value. Flag bit {@code 4} marks an expiry, in epoch
+ * millis, stored as 8 more bytes between the version and the key.
+ * <p>
+ * Everything that changes the log, the {@link OffsetIndex}, the secondary indexes or the version
+ * counter runs on the writer thread, in queue order. Reads take no locks: they check the overlay
+ * of queued writes, the cache and then the index, and a reader that races with a finished
+ * compaction simply looks the key up again. Compaction and hint writing run on a background
+ * thread, a sweeper thread schedules expiry sweeps, and each subscriber delivers on a thread of
+ * its own.
  */
-final class DiskRepository<K, V> implements KVRepository<K, V> {
+final class DiskRepository<K, V> implements IndexKeyRepository<K, V> {
 
     // -------------------------------------------------------------------------
     // Constants
     // -------------------------------------------------------------------------
 
-    private static final byte FLAG_ALIVE = 0;
-    private static final byte FLAG_DELETED = 1;
+    static final byte FLAG_ALIVE = 0;
+    static final byte FLAG_DELETED = 1;
+    static final byte FLAG_COMPRESSED = 2;
+    static final byte FLAG_EXPIRING = 4;
+    static final byte FLAG_BATCH_BEGIN = 8;
+    static final byte FLAG_BATCH_COMMIT = 16;
+
+    private static final String LOCK_FILE = "lock";
+    // names the oldest segment still in use; every segment that sorts before it was replaced by compaction
+    private static final String COMPACTED_FILE = "compacted";
+
+    // records of a batch are assembled in a direct buffer this big, grown for batches that do not fit
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024; // 256 KB
+    // a buffer grown past this is dropped after the batch instead of being kept for the next
+    private static final int WRITE_BUFFER_RETAIN = 4 * 1024 * 1024; // 4 MB
+
+    // with memory-mapped reads, the active segment is remapped once this much was appended past its mapping
+    private static final long REMAP_STEP = 1024 * 1024; // 1 MB
+
+    // expired keys tombstoned per sweep, so a mass expiry does not hold up regular writes
+    private static final int SWEEP_LIMIT = 1024;
+    // the expiry queue is rebuilt once it holds more than twice the live deadlines, and more than this
+    private static final int EXPIRY_QUEUE_SLACK = 1024;
 
-    private static final int CHUNK_SIZE = 8 * 1024; // 8 KB — used only in copyChunked
+    // subscribers are never interrupted, which would close the segments they read, so they poll for close()
+    private static final long SUBSCRIBER_POLL_MILLIS = 100;
 
     // -------------------------------------------------------------------------
     // Builder
@@ -46,9 +116,12 @@ final class DiskRepository<K, V> implements KVRepository<K, V> {
     static final class Builder<K, V> implements KVRepository.Builder<K, V> {
 
         private Path path;
-        private KeyValueEncoder<K> keyEncoder;
-        private KeyValueEncoder<V> valueEncoder;
+        private BufferEncoder<K> keyEncoder;
+        private BufferEncoder<V> valueEncoder;
         private RepositoryConfig config = RepositoryConfig.defaults();
+        private Logger logger = Logger.getLogger(KVRepository.class.getName());
+        private int shards = 1;
+        private final Map<String, Function<? super V, ?>> indexes = new LinkedHashMap<>();
 
         @Override
         public Builder<K, V> path(@NotNull Path path) {
@@ -57,13 +130,13 @@ final class DiskRepository<K, V> implements KVRepository<K, V> {
         }
 
         @Override
-        public Builder<K, V> keyEncoder(@NotNull KeyValueEncoder<K> encoder) {
+        public Builder<K, V> keyEncoder(@NotNull BufferEncoder<K> encoder) {
             this.keyEncoder = encoder;
             return this;
         }
 
         @Override
-        public Builder<K, V> valueEncoder(@NotNull KeyValueEncoder<V> encoder) {
+        public Builder<K, V> valueEncoder(@NotNull BufferEncoder<V> encoder) {
             this.valueEncoder = encoder;
             return this;
         }
@@ -75,11 +148,37 @@ final class DiskRepository<K, V> implements KVRepository<K, V> {
         }
 
         @Override
-        public KVRepository<K, V> build() {
+        public Builder<K, V> logger(@NotNull Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        @Override
+        public Builder<K, V> shards(int shards) {
+            if (shards < 1) throw new IllegalArgumentException("shards must be >= 1");
+            this.shards = shards;
+            return this;
+        }
+
+        @Override
+        public Builder<K, V> index(@NotNull String name, @NotNull Function<? super V, ?> extractor) {
+            Objects.requireNonNull(extractor, "extractor must not be null");
+            if (this.indexes.putIfAbsent(name, extractor) != null) throw new IllegalArgumentException("Duplicate index: " + name);
+            return this;
+        }
+
+        @Override
+        public IndexKeyRepository<K, V> build() {
             Objects.requireNonNull(this.path, "path must be set");
             Objects.requireNonNull(this.keyEncoder, "keyEncoder must be set");
             Objects.requireNonNull(this.valueEncoder, "valueEncoder must be set");
-            return new DiskRepository<>(this.path, this.keyEncoder, this.valueEncoder, this.config);
+            Objects.requireNonNull(this.logger, "logger must not be null");
+            ShardedRepository.checkLayout(this.path, this.shards);
+            if (this.shards > 1) {
+                return new ShardedRepository<>(this.path, this.shards, this.keyEncoder, this.valueEncoder, this.config, this.logger,
+                        this.indexes);
+            }
+            return new DiskRepository<>(this.path, this.keyEncoder, this.valueEncoder, this.config, this.logger, this.indexes);
         }
     }
 
@@ -87,460 +186,2273 @@ final class DiskRepository<K, V> implements KVRepository<K, V> {
     // Internal types
     // -------------------------------------------------------------------------
 
-    private record WriteTask<V>(ByteArrayKey arrayKey, byte[] keyBytes, V value) {}
+    private sealed interface Task<V> permits WriteTask, BulkTask, InternalTask {}
+
+    /**
+     * @param expiresAt epoch millis after which the value counts as absent, or {@code 0}
+     * @param pending   the overlay entry published by {@code save}/{@code delete}, or {@code null}
+     *                  for a tombstone written by the sweeper
+     * @param future    completed once the record is durable, or {@code null}
+     */
+    private record WriteTask<V>(
+            IndexKey indexKey,
+            byte[] keyBytes,
+            V value,
+            long expiresAt,
+            Pending<V> pending,
+            CompletableFuture<Void> future
+    ) implements Task<V> {}
+
+    /**
+     * Writes queued by one {@code saveAll}/{@code deleteAll}/{@code commit} call, written with a single write.
+     *
+     * @param atomic whether the writes are a {@link WriteBatch}, framed by batch markers and
+     *               written on their own
+     */
+    private record BulkTask<V>(List<WriteTask<V>> writes, boolean atomic) implements Task<V> {}
+
+    /**
+     * Work that has to run on the writer thread, e.g. installing a finished compaction.
+     */
+    private record InternalTask<V>(Runnable action) implements Task<V> {}
+
+    /**
+     * A live record copied by compaction from {@code from} to {@code to}.
+     */
+    private static final class Relocation {
+
+        final IndexKey indexKey;
+        final long from;
+        final int recordSize;
+        // expired when compaction started — not copied, and dropped from the index if still current
+        final boolean expired;
+        long to;
+
+        Relocation(IndexKey indexKey, long from, int recordSize, boolean expired) {
+            this.indexKey = indexKey;
+            this.from = from;
+            this.recordSize = recordSize;
+            this.expired = expired;
+        }
+    }
+
+    /**
+     * A key that was written with an expiry. Stale once the key is written again, which the sweeper
+     * tells by the deadline the key has now, and it still checks the record the index points at.
+     */
+    private record Expiry(long expiresAt, IndexKey indexKey) {}
+
+    /**
+     * A queued write as seen by readers — {@code null} value for a queued delete.
+     * Compared by identity, so the writer only removes the entry of the task it just wrote.
+     */
+    private static final class Pending<V> {
+
+        final V value;
+        final long expiresAt;
+        // shared by the entries of all writes merged into one queued write, null unless writes coalesce
+        final QueueSlot<V> slot;
+
+        Pending(V value, long expiresAt, QueueSlot<V> slot) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The place of a queued write, which later writes to the same key take over under
+     * {@link OverflowPolicy#COALESCE}. Guarded by its monitor: the writer thread marks it taken
+     * before it reads {@code latest}, and nothing is merged into it after that.
+     */
+    private static final class QueueSlot<V> {
+
+        Pending<V> latest;
+        boolean taken;
+        // futures of the writes merged in, completed along with the queued write
+        List<CompletableFuture<Void>> merged;
+    }
 
-    static final class ByteArrayKey {
+    /**
+     * Value cache entry, weighted by the encoded size of its key and value. Also what a lookup
+     * found on disk, with the version {@code loadVersioned} needs.
+     */
+    private record CachedValue<V>(V value, int weight, long expiresAt, long version) {}
+
+    private record DiskLookup<K>(K key, IndexKey indexKey, long location) {}
+
+    /**
+     * The segments copied by {@code snapshot(Path)} or replayed to a subscriber, and where the active
+     * one ended when they were frozen.
+     */
+    private record Backup(List<Segment> sealed, Segment active, long activeEnd) {}
+
+    /**
+     * Point-in-time view of the live records: their locations sorted into log order, and the
+     * segments that held them at the time. Taken on the writer thread between two batches;
+     * segments it still reads from stay on disk after compaction replaces them, until it is
+     * released.
+     */
+    private final class Snapshot implements AutoCloseable {
+
+        final long[] locations;
+        final Int2ObjectMap<Segment> segments;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Snapshot(long[] locations, Int2ObjectMap<Segment> segments) {
+            this.locations = locations;
+            this.segments = segments;
+        }
 
-        final byte[] data;
-        private final int hash;
+        @Override
+        public void close() {
+            // a closed repository has already dealt with every retired segment
+            if (this.released.compareAndSet(false, true) && !DiskRepository.this.closing) {
+                DiskRepository.this.putTask(new InternalTask<>(DiskRepository.this::releaseSnapshot));
+            }
+        }
+    }
 
-        ByteArrayKey(byte[] data) {
-            this.data = data;
-            this.hash = Arrays.hashCode(data);
+    /**
+     * Walks the records of a snapshot in log order, reading each segment through one
+     * sequential {@link Segment.RecordReader}. Releases the snapshot once exhausted.
+     */
+    private final class SnapshotIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Snapshot snapshot;
+        private final byte[] prefix;
+        private final boolean withValues;
+        private final long now = System.currentTimeMillis();
+
+        private int position;
+        private int readerSegmentId = -1;
+        private Segment.RecordReader reader;
+        private Map.Entry<K, V> next;
+
+        SnapshotIterator(Snapshot snapshot, byte[] prefix, boolean withValues) {
+            this.snapshot = snapshot;
+            this.prefix = prefix;
+            this.withValues = withValues;
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof ByteArrayKey other)) return false;
-            return Arrays.equals(this.data, other.data);
+        public boolean hasNext() {
+            if (this.next == null) this.next = this.advance();
+            return this.next != null;
         }
 
         @Override
-        public int hashCode() {
-            return this.hash;
+        public Map.Entry<K, V> next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            final Map.Entry<K, V> entry = this.next;
+            this.next = null;
+            return entry;
+        }
+
+        private Map.Entry<K, V> advance() {
+            try {
+                while (this.position < this.snapshot.locations.length) {
+                    final long location = this.snapshot.locations[this.position++];
+                    final int segmentId = Segment.segmentId(location);
+                    if (segmentId != this.readerSegmentId) {
+                        this.reader = this.snapshot.segments.get(segmentId).new RecordReader();
+                        this.readerSegmentId = segmentId;
+                    }
+
+                    final long offset = Segment.offset(location);
+                    final boolean verify = DiskRepository.this.config.verifyChecksums();
+                    this.reader.read(offset, this.withValues && this.prefix == null, verify);
+                    final byte[] keyBytes = this.reader.keyBytes;
+                    if (expired(this.reader.expiresAt, this.now)) continue;
+                    if (this.prefix != null) {
+                        // only read the value of keys that match
+                        if (!hasPrefix(keyBytes, this.prefix)) continue;
+                        if (this.withValues) this.reader.read(offset, true, verify);
+                    }
+
+                    final K key = ArrayBufferEncoder.fromArray(DiskRepository.this.keyEncoder, keyBytes);
+                    final V value = this.withValues ? DiskRepository.this.valueEncoder.decode(this.reader.value) : null;
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+            } catch (IOException ex) {
+                this.snapshot.close();
+                throw new RuntimeException(ex);
+            }
+            this.snapshot.close();
+            return null;
         }
     }
 
-    // -------------------------------------------------------------------------
-    // Fields
-    // -------------------------------------------------------------------------
+    /**
+     * A record as the writer thread hands it to subscribers.
+     */
+    private record Change<V>(byte[] keyBytes, V value, long offset) {}
+
+    /**
+     * The records of versions {@code from} to {@code to} a subscriber reads back from the log, and
+     * the frozen segments holding them, or {@code null} if there are none.
+     */
+    private record Replay(Backup log, long from, long to) {}
+
+    /**
+     * Delivers the changes of one {@code subscribe} call on a thread of its own. The writer thread
+     * offers it every record it appends, and stops offering once the buffer is full; the subscriber
+     * then replays what it missed from the segments of one frozen moment, the way
+     * {@code snapshot(Path)} copies them, and has the offers resumed past it.
+     */
+    final class Subscriber implements Subscription {
+
+        private final Consumer<? super ChangeEvent<K, V>> listener;
+        private final BlockingQueue<Change<V>> buffer;
+        private Thread thread;
+
+        // the first version to deliver, fixed when the writer thread registers the subscriber
+        private volatile long from;
+        private volatile long lastOffset;
+        // every record up to this version was delivered, including ones numbered by other shards
+        private volatile long caughtUp;
+        private volatile boolean overflowed;
+        private volatile boolean closed;
+
+        Subscriber(Consumer<? super ChangeEvent<K, V>> listener) {
+            this.listener = listener;
+            this.buffer = new ArrayBlockingQueue<>(DiskRepository.this.config.subscriberBufferSize());
+        }
+
+        void start(Replay replay) {
+            this.thread = Thread.ofVirtual().unstarted(() -> this.run(replay));
+            this.thread.start();
+        }
+
+        /**
+         * Registers the subscriber, on the writer thread, and returns what it has to replay first.
+         */
+        Replay attach(long fromOffset) {
+            final DiskRepository<K, V> repository = DiskRepository.this;
+            this.from = fromOffset == ChangeEvent.LATEST ? repository.versionCounter.get() + 1 : fromOffset;
+            this.caughtUp = this.from - 1;
+            repository.subscribers.add(this);
+            return this.replayFrom(this.from);
+        }
+
+        /**
+         * Freezes the log up to the last record appended, on the writer thread, and resumes the
+         * offers past it.
+         */
+        private Replay replayFrom(long first) {
+            final DiskRepository<K, V> repository = DiskRepository.this;
+            // no other writer appends to this repository, so its records up to the counter are all in the log
+            final long last = repository.versionCounter.get();
+            this.overflowed = false;
+            return new Replay(first <= last ? repository.freezeLog() : null, first, last);
+        }
+
+        /**
+         * Called by the writer thread for every record it appends.
+         */
+        void offer(Change<V> change) {
+            if (!this.overflowed && !this.buffer.offer(change)) this.overflowed = true;
+        }
+
+        private void run(Replay replay) {
+            Replay next = replay;
+            try {
+                while (!this.closed) {
+                    if (next != null) {
+                        this.replay(next);
+                        next = null;
+                        continue;
+                    }
+                    // the offers stopped when the buffer ran full; once it is drained, all before that was delivered
+                    if (this.overflowed && this.buffer.isEmpty()) {
+                        next = DiskRepository.this.onWriter(0, () -> this.replayFrom(Math.max(this.from, this.lastOffset + 1)));
+                        continue;
+                    }
+                    // read before the poll: if the buffer turns out empty, every record numbered up to here was delivered
+                    final long counted = DiskRepository.this.versionCounter.get();
+                    final boolean appending = DiskRepository.this.appending;
+                    final Change<V> change = this.buffer.poll(SUBSCRIBER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (change != null) {
+                        if (change.offset() >= this.from) this.deliver(change.keyBytes(), change.value(), change.offset());
+                    } else if (!appending && !this.overflowed) {
+                        this.caughtUp = Math.max(this.caughtUp, counted);
+                    }
+                }
+            } catch (InterruptedException | IllegalStateException ex) {
+                // interrupted by someone else, or the repository closed while catching up
+            } catch (RuntimeException ex) {
+                DiskRepository.this.logger.log(Level.WARNING, ex, () -> "Change feed of " + DiskRepository.this.path + " failed");
+            } finally {
+                this.closed = true;
+                DiskRepository.this.subscribers.remove(this);
+            }
+        }
+
+        /**
+         * Delivers the records of the replay in log order, then releases its segments.
+         */
+        private void replay(Replay replay) {
+            final Backup log = replay.log();
+            if (log == null) return;
+            final long now = System.currentTimeMillis();
+            try {
+                final List<Segment> segments = new ArrayList<>(log.sealed());
+                segments.add(log.active());
+                for (final Segment segment : segments) {
+                    final LongArrayList offsets = new LongArrayList();
+                    final long end = segment == log.active() ? log.activeEnd() : segment.size;
+                    segment.scan(0, end, (keyBytes, tombstone, offset, recordSize, expiresAt, version) -> {
+                        if (version >= replay.from() && version <= replay.to() && !expired(expiresAt, now)) offsets.add(offset);
+                    });
+
+                    final Segment.RecordReader reader = segment.new RecordReader();
+                    for (int i = 0; i < offsets.size() && !this.closed; i++) {
+                        final long offset = offsets.getLong(i);
+                        reader.read(offset, true, false);
+                        final V value = reader.tombstone ? null : DiskRepository.this.valueEncoder.decode(reader.value);
+                        this.deliver(reader.keyBytes, value, reader.version);
+                    }
+                    if (this.closed) return;
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (!DiskRepository.this.closing) DiskRepository.this.putTask(new InternalTask<>(DiskRepository.this::releaseSnapshot));
+            }
+        }
 
-    private static final WriteTask<?> POISON = new WriteTask<>(null, null, null);
+        private void deliver(byte[] keyBytes, V value, long offset) {
+            try {
+                final K key = ArrayBufferEncoder.fromArray(DiskRepository.this.keyEncoder, keyBytes);
+                this.listener.accept(new ChangeEvent<>(key, value, offset));
+            } catch (RuntimeException ex) {
+                DiskRepository.this.logger.log(Level.WARNING, ex, () -> "Change listener failed at offset " + offset);
+            }
+            this.lastOffset = offset;
+        }
+
+        @Override
+        public long lastOffset() {
+            return this.lastOffset;
+        }
+
+        /**
+         * Returns a version up to which every record of this repository was delivered: the last offset
+         * delivered, or past it while the subscriber waits for new records. With shards, the versions
+         * in between belong to records of other shards.
+         */
+        long deliveredThrough() {
+            return Math.max(this.lastOffset, this.caughtUp);
+        }
 
-    private static final ThreadLocal<ByteBuffer> INT_BUF =
-            ThreadLocal.withInitial(() -> ByteBuffer.allocate(4));
+        @Override
+        public void close() {
+            this.closed = true;
+            DiskRepository.this.subscribers.remove(this);
+            if (Thread.currentThread() == this.thread) return;
+            try {
+                this.thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
 
-    private static final ThreadLocal<ByteBuffer> FLAG_BUF =
-            ThreadLocal.withInitial(() -> ByteBuffer.allocate(1));
+    // -------------------------------------------------------------------------
+    // Fields
+    // -------------------------------------------------------------------------
 
-    // used only in copyChunked during compaction — never grows beyond CHUNK_SIZE
-    private static final ThreadLocal<ByteBuffer> CHUNK_BUF =
-            ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHUNK_SIZE));
+    private static final Task<?> POISON = new InternalTask<>(() -> {});
 
     private final Path path;
-    private final KeyValueEncoder<K> keyEncoder;
-    private final KeyValueEncoder<V> valueEncoder;
+    private final BufferEncoder<K> keyEncoder;
+    private final BufferEncoder<V> valueEncoder;
     private final RepositoryConfig config;
+    private final Logger logger;
 
-    private FileChannel file;
+    private FileChannel lockChannel;
     private FileLock fileLock;
-    private long end;
-    private long deadBytes;
 
-    private final BlockingQueue<WriteTask<V>> writeQueue = new LinkedBlockingQueue<>();
-    private final Thread writerThread;
+    // copy-on-write: replaced by the writer thread, read lock-free by everyone else
+    private volatile Int2ObjectMap<Segment> segments = new Int2ObjectOpenHashMap<>();
+    private final AtomicInteger nextSegmentId = new AtomicInteger();
+    // writer thread only — sealed segments in replay order, followed by the active one
+    private final List<Segment> sealed = new ArrayList<>();
+    private Segment active;
 
-    private final ReadWriteLock compactLock = new ReentrantReadWriteLock();
+    private final BlockingQueue<Task<V>> writeQueue = new LinkedBlockingQueue<>();
+    // one permit per write that may still be queued; internal tasks take none, unless they write for a caller
+    private final Semaphore queuePermits;
+    private final Thread writerThread;
 
-    private final Object2LongMap<ByteArrayKey> offsets = new Object2LongOpenHashMap<>();
-    private final Object2ObjectMap<ByteArrayKey, V> cache;
+    // writer thread only — group commit state
+    private final List<CompletableFuture<Void>> unsynced = new ArrayList<>();
+    private final List<CompletableFuture<Void>> mergedFutures = new ArrayList<>();
+    // writer thread only — writes of the tasks drained so far, and the queue room they hold
+    private final List<WriteTask<V>> batchWrites = new ArrayList<>();
+    private int batchPermits;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // the version of the last record appended, restored by the startup replay — shared by all shards,
+    // so versions are unique across them; only writer threads increment it. The newest record always
+    // sits in the active segment, which compaction never drops, so the counter never goes back
+    private final AtomicLong versionCounter;
+    // set by the writer thread while it numbers records and offers them to subscribers
+    private volatile boolean appending;
+    private boolean dirty;
+    private long lastSync = System.nanoTime();
+
+    // hint writing and compaction — single-threaded, so they never overlap
+    private final ExecutorService background = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+    private boolean compacting; // writer thread only
+    private volatile boolean closing;
+    // set by the writer thread once records reached the log but not the index, which ends all writing
+    private volatile IllegalStateException failure;
+
+    // writer thread only — the expiry of every key whose current record has one, and those deadlines
+    // soonest first, along with stale ones of keys written since
+    private final Object2LongMap<IndexKey> expiryOf = new Object2LongOpenHashMap<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong(Expiry::expiresAt));
+    // the soonest expiry, published for the sweeper thread
+    private volatile long nextExpiry = Long.MAX_VALUE;
+    private volatile boolean sweepQueued;
+    private final Thread sweeperThread;
+
+    // statistics — updated as a side effect of the work, read by stats() from any thread
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder batchesWritten = new LongAdder();
+    private final LongAdder rejectedWrites = new LongAdder();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder compactionNanos = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private int batchRecords; // writer thread only
+    // published by the writer thread after every batch
+    private volatile long logBytes;
+    private volatile long logDeadBytes;
+    private final Thread statsThread;
+
+    // writer thread only — open snapshots, and compacted segments kept on disk for them
+    private int openSnapshots;
+    private final List<Segment> retired = new ArrayList<>();
+
+    // added by the writer thread, removed by whoever closes a subscription
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // written by the writer thread only, read lock-free by load()
+    private final OffsetIndex index;
+    // updated by the writer thread along with the index, read lock-free by findBy()
+    private final Map<String, SecondaryIndex<V>> secondaryIndexes;
+    // writes queued but not yet indexed — consulted by load() before anything else
+    private final Map<IndexKey, Pending<V>> pending = new ConcurrentHashMap<>();
+    private final Cache<IndexKey, CachedValue<V>> cache;
 
     // -------------------------------------------------------------------------
     // Constructor
     // -------------------------------------------------------------------------
 
-    private DiskRepository(
+    DiskRepository(
+            @NotNull Path path,
+            @NotNull BufferEncoder<K> keyEncoder,
+            @NotNull BufferEncoder<V> valueEncoder,
+            @NotNull RepositoryConfig config,
+            @NotNull Logger logger,
+            @NotNull Map<String, Function<? super V, ?>> indexes) {
+        this(path, keyEncoder, valueEncoder, config, logger, indexes, new AtomicLong(Versioned.ABSENT));
+        this.start();
+    }
+
+    /**
+     * Loads the repository without starting its threads, which {@link #start} does.
+     *
+     * @param versionCounter the counter that numbers the records, shared by the shards of one repository
+     */
+    DiskRepository(
             @NotNull Path path,
-            @NotNull KeyValueEncoder<K> keyEncoder,
-            @NotNull KeyValueEncoder<V> valueEncoder,
-            @NotNull RepositoryConfig config) {
+            @NotNull BufferEncoder<K> keyEncoder,
+            @NotNull BufferEncoder<V> valueEncoder,
+            @NotNull RepositoryConfig config,
+            @NotNull Logger logger,
+            @NotNull Map<String, Function<? super V, ?>> indexes,
+            @NotNull AtomicLong versionCounter) {
         try {
             this.path = path;
+            this.versionCounter = versionCounter;
             this.keyEncoder = keyEncoder;
             this.valueEncoder = valueEncoder;
             this.config = config;
-
-            this.file = openChannel(path);
+            this.logger = logger;
+            this.index = OffsetIndex.create(config.offHeapIndex(), keyEncoder);
+            final Map<String, SecondaryIndex<V>> secondaryIndexes = new HashMap<>();
+            indexes.forEach((name, extractor) -> secondaryIndexes.put(name, new SecondaryIndex<>(name, extractor)));
+            this.secondaryIndexes = Map.copyOf(secondaryIndexes);
+            this.queuePermits = new Semaphore(config.writeQueueCapacity());
+
+            BaselineImport.importIfNeeded(path, logger);
+            Files.createDirectories(path);
             this.acquireFileLock();
 
-            this.offsets.defaultReturnValue(-1L);
             this.cache = config.useCache()
-                    ? Object2ObjectMaps.synchronize(new Object2ObjectOpenHashMap<>())
+                    ? Caffeine.newBuilder()
+                    .maximumWeight(config.cacheMaxBytes())
+                    .weigher((IndexKey k, CachedValue<V> cached) -> cached.weight())
+                    .recordStats()
+                    .build()
                     : null;
 
-            this.loadOffsets();
+            this.loadSegments();
+            this.buildSecondaryIndexes();
+            this.publishSizes();
 
-            this.writerThread = Thread.ofVirtual().start(this::writerLoop);
-        } catch (IOException ex) {
+            this.writerThread = Thread.ofVirtual().unstarted(this::writerLoop);
+            this.sweeperThread = Thread.ofVirtual().unstarted(this::sweepLoop);
+            this.statsThread = config.statsLogIntervalMillis() > 0 ? Thread.ofVirtual().unstarted(this::statsLoop) : null;
+        } catch (IOException | RuntimeException ex) {
+            // also a log that does not decode, such as one written with another key encoder
+            this.closeSegmentsQuietly();
             this.releaseFileLock();
+            this.background.shutdownNow();
+            if (ex instanceof RuntimeException runtime) throw runtime;
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Starts the writer, sweeper and stats threads. Shards start once all of them are loaded, so
+     * the counter they share is past every version on disk before any of them writes.
+     */
+    void start() {
+        this.writerThread.start();
+        this.sweeperThread.start();
+        if (this.statsThread != null) this.statsThread.start();
+    }
+
     // -------------------------------------------------------------------------
     // Public API
     // -------------------------------------------------------------------------
 
     @Override
     public void save(@NotNull K key, @NotNull V value) {
-        final byte[] keyBytes = this.keyEncoder.encode(key);
-        final ByteArrayKey arrayKey = new ByteArrayKey(keyBytes);
-        if (this.cache != null) this.cache.put(arrayKey, value);
-        this.putTask(new WriteTask<>(arrayKey, keyBytes, value));
+        this.write(this.key(key), value, 0, null);
     }
 
     @Override
-    public void delete(@NotNull K key) {
-        final byte[] keyBytes = this.keyEncoder.encode(key);
-        final ByteArrayKey arrayKey = new ByteArrayKey(keyBytes);
-        if (this.cache != null) this.cache.remove(arrayKey);
-        this.putTask(new WriteTask<>(arrayKey, keyBytes, null));
+    public void save(@NotNull K key, @NotNull V value, @NotNull Duration ttl) {
+        this.write(this.key(key), value, expiresAt(ttl), null);
     }
 
     @Override
-    public Optional<V> load(@NotNull K key) {
-        final byte[] keyBytes = this.keyEncoder.encode(key);
-        final ByteArrayKey arrayKey = new ByteArrayKey(keyBytes);
+    public CompletableFuture<Void> saveAsync(@NotNull K key, @NotNull V value) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.write(this.key(key), value, 0, future);
+        return future;
+    }
 
-        if (this.cache != null) {
-            final V cached = this.cache.get(arrayKey);
-            if (cached != null) return Optional.of(cached);
+    @Override
+    public void saveAll(@NotNull Map<? extends K, ? extends V> entries) {
+        final List<IndexKey> indexKeys = new ArrayList<>(entries.size());
+        final List<V> values = new ArrayList<>(entries.size());
+        for (final Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            indexKeys.add(this.key(entry.getKey()));
+            values.add(entry.getValue());
         }
+        this.writeAll(indexKeys, values);
+    }
 
-        this.compactLock.readLock().lock();
-        try {
-            final long offset = this.offsets.getLong(arrayKey);
-            if (offset == -1L) return Optional.empty();
+    @Override
+    public void delete(@NotNull K key) {
+        this.write(this.key(key), null, 0, null);
+    }
 
-            // [keyLen(4)][keyBytes][flag(1)][valueLen(4)][valueBytes]
-            final long valueLenPos = offset + 4 + keyBytes.length + 1;
-            final int valueLen = readInt(this.file, valueLenPos);
+    @Override
+    public void deleteAll(@NotNull Collection<? extends K> keys) {
+        final List<IndexKey> indexKeys = new ArrayList<>(keys.size());
+        for (final K key : keys) {
+            indexKeys.add(this.key(key));
+        }
+        this.writeAll(indexKeys, Collections.nCopies(indexKeys.size(), null));
+    }
 
-            final ByteBuffer valueBuf = ByteBuffer.allocate(valueLen);
-            readFully(this.file, valueBuf, valueLenPos + 4);
+    @Override
+    public CompletableFuture<Void> deleteAsync(@NotNull K key) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.write(this.key(key), null, 0, future);
+        return future;
+    }
 
-            final V value = this.valueEncoder.decode(valueBuf.array());
-            if (this.cache != null) this.cache.put(arrayKey, value);
-            return Optional.of(value);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            this.compactLock.readLock().unlock();
-        }
+    @Override
+    public void commit(@NotNull WriteBatch<K, V> batch) {
+        this.writeBatch(this.keys(batch), batch.writes(), null);
     }
 
     @Override
-    public void unloadFromCache(@NotNull K key) {
-        if (this.cache == null) return;
-        this.cache.remove(new ByteArrayKey(this.keyEncoder.encode(key)));
+    public CompletableFuture<Void> commitAsync(@NotNull WriteBatch<K, V> batch) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.writeBatch(this.keys(batch), batch.writes(), future);
+        return future;
     }
 
     @Override
-    public void close() {
-        try {
-            //noinspection unchecked
-            this.writeQueue.put((WriteTask<V>) POISON);
-            this.writerThread.join();
-            this.file.close();
-        } catch (InterruptedException | IOException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            this.releaseFileLock();
-        }
+    public Optional<Versioned<V>> loadVersioned(@NotNull K key) {
+        return this.loadVersioned(this.key(key));
     }
 
-    // -------------------------------------------------------------------------
-    // Writer loop
-    // -------------------------------------------------------------------------
+    @Override
+    public boolean compareAndSave(@NotNull K key, long expectedVersion, @NotNull V value) {
+        return this.compareAndSave(this.key(key), expectedVersion, value);
+    }
 
-    private void putTask(@NotNull WriteTask<V> task) {
-        try {
-            this.writeQueue.put(task);
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(ex);
+    @Override
+    public Optional<V> compute(@NotNull K key, @NotNull BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return this.compute(this.key(key), key, remappingFunction);
+    }
+
+    @Override
+    public Optional<V> load(@NotNull K key) {
+        return this.load(this.key(key));
+    }
+
+    @Override
+    public Map<K, V> loadAll(@NotNull Collection<? extends K> keys) {
+        final List<K> keyList = new ArrayList<>(keys.size());
+        final List<IndexKey> indexKeys = new ArrayList<>(keys.size());
+        for (final K key : keys) {
+            keyList.add(key);
+            indexKeys.add(this.key(key));
         }
+        final Map<K, V> result = new HashMap<>();
+        this.loadAll(keyList, indexKeys, result);
+        return result;
     }
 
-    private void writerLoop() {
-        outer:
-        while (true) {
-            try {
-                final WriteTask<V> first = this.writeQueue.take();
-                if (first == POISON) return;
-                this.doWrite(first);
+    private IndexKey key(K key) {
+        return IndexKey.of(this.keyEncoder, key);
+    }
 
-                int taken = 1;
-                WriteTask<V> next;
-                while (taken < this.config.batchSize() && (next = this.writeQueue.poll()) != null) {
-                    if (next == POISON) break outer;
-                    this.doWrite(next);
-                    taken++;
-                }
-                this.checkAndCompact();
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                return;
-            }
+    private List<IndexKey> keys(WriteBatch<K, V> batch) {
+        final List<IndexKey> indexKeys = new ArrayList<>(batch.size());
+        for (final WriteBatch.Write<K, V> write : batch.writes()) {
+            indexKeys.add(this.key(write.key()));
         }
+        return indexKeys;
     }
 
     // -------------------------------------------------------------------------
-    // Write logic
+    // Encoded keys — the entry points of ShardedRepository, which encodes and hashes every key to route it,
+    // and of LongKeyRepository, which builds keys without the encoder
     // -------------------------------------------------------------------------
 
-    private void doWrite(@NotNull WriteTask<V> task) {
-        final byte[] keyBytes = task.keyBytes();
-        final V value = task.value();
-        final boolean isTombstone = (value == null);
+    /**
+     * Queues a save, or a delete if {@code value} is {@code null}.
+     */
+    @Override
+    public void write(IndexKey indexKey, V value, long expiresAt, CompletableFuture<Void> future) {
+        if (this.admit(1)) {
+            this.putTask(this.publishPending(indexKey, value, expiresAt, future));
+        } else if (!this.coalesce(indexKey, value, expiresAt, future)) {
+            this.reject(1, future);
+        }
+    }
 
-        if (isTombstone) {
-            // [keyLen(4)][keyBytes][flag=1(1)]
-            final ByteBuffer header = ByteBuffer.allocate(4 + keyBytes.length + 1);
-            header.putInt(keyBytes.length);
-            header.put(keyBytes);
-            header.put(FLAG_DELETED);
-            header.flip();
-
-            final long recordOffset = this.end;
-            writeBytes(this.file, header, recordOffset);
-            this.end += header.capacity();
-
-            final long oldOffset = this.offsets.removeLong(task.arrayKey());
-            if (oldOffset != -1L) this.deadBytes += sizeOfLiveRecord(keyBytes.length, oldOffset);
-            this.deadBytes += header.capacity();
-        } else {
-            final byte[] valueBytes = this.valueEncoder.encode(value);
+    /**
+     * Queues the saves as one task; a {@code null} value is a delete.
+     */
+    void writeAll(List<IndexKey> indexKeys, List<? extends V> values) {
+        if (indexKeys.isEmpty()) return;
+        if (this.admit(indexKeys.size())) {
+            this.putBulk(indexKeys, values);
+            return;
+        }
 
-            // [keyLen(4)][keyBytes][flag=0(1)][valueLen(4)]
-            final ByteBuffer header = ByteBuffer.allocate(4 + keyBytes.length + 1 + 4);
-            header.putInt(keyBytes.length);
-            header.put(keyBytes);
-            header.put(FLAG_ALIVE);
-            header.putInt(valueBytes.length);
-            header.flip();
+        final List<IndexKey> restKeys = new ArrayList<>();
+        final List<V> restValues = new ArrayList<>();
+        for (int i = 0; i < indexKeys.size(); i++) {
+            if (!this.coalesce(indexKeys.get(i), values.get(i), 0, null)) {
+                restKeys.add(indexKeys.get(i));
+                restValues.add(values.get(i));
+            }
+        }
+        if (restKeys.isEmpty()) return;
+        if (this.admit(restKeys.size())) {
+            this.putBulk(restKeys, restValues);
+        } else {
+            this.reject(restKeys.size(), null);
+        }
+    }
 
-            final long recordOffset = this.end;
-            writeBytes(this.file, header, recordOffset);
-            writeBytes(this.file, ByteBuffer.wrap(valueBytes), recordOffset + header.capacity());
-            this.end += header.capacity() + valueBytes.length;
+    /**
+     * Queues the writes of a {@link WriteBatch} as one atomic task, or rejects all of them.
+     */
+    void writeBatch(List<IndexKey> indexKeys, List<WriteBatch.Write<K, V>> batch, CompletableFuture<Void> future) {
+        if (indexKeys.isEmpty()) {
+            if (future != null) future.complete(null);
+            return;
+        }
+        if (!this.admit(indexKeys.size())) {
+            this.reject(indexKeys.size(), future);
+            return;
+        }
 
-            final long oldOffset = this.offsets.getLong(task.arrayKey());
-            if (oldOffset != -1L) this.deadBytes += sizeOfLiveRecord(keyBytes.length, oldOffset);
-            this.offsets.put(task.arrayKey(), recordOffset);
+        final List<WriteTask<V>> writes = new ArrayList<>(indexKeys.size());
+        for (int i = 0; i < indexKeys.size(); i++) {
+            final WriteBatch.Write<K, V> write = batch.get(i);
+            // only the last write carries the future, which the writer completes along with the others
+            writes.add(this.publishPending(indexKeys.get(i), write.value(), write.expiresAt(),
+                    i == indexKeys.size() - 1 ? future : null));
         }
+        this.putTask(new BulkTask<>(writes, true));
     }
 
-    private long sizeOfLiveRecord(int keyLen, long offset) {
-        try {
-            return 4L + keyLen + 1 + 4 + readInt(this.file, offset + 4 + keyLen + 1);
-        } catch (IOException ex) {
-            return 0L;
+    private void putBulk(List<IndexKey> indexKeys, List<? extends V> values) {
+        final List<WriteTask<V>> writes = new ArrayList<>(indexKeys.size());
+        for (int i = 0; i < indexKeys.size(); i++) {
+            writes.add(this.publishPending(indexKeys.get(i), values.get(i), 0, null));
         }
+        this.putTask(new BulkTask<>(writes, false));
     }
 
-    // -------------------------------------------------------------------------
-    // Compaction
-    // -------------------------------------------------------------------------
-
-    private void checkAndCompact() {
-        if (this.end == 0) return;
-        final boolean overRatio = (double) this.deadBytes / this.end >= this.config.compactRatio();
-        final boolean overBytes = this.deadBytes >= this.config.compactBytes();
-        if (overRatio || overBytes) this.compact();
-    }
+    @Override
+    public Optional<V> load(IndexKey indexKey) {
+        final long now = System.currentTimeMillis();
+        final Pending<V> pending = this.pending.get(indexKey);
+        if (pending != null) return expired(pending.expiresAt, now) ? Optional.empty() : Optional.ofNullable(pending.value);
 
-    private void compact() {
-        final Path tempPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        if (this.cache != null) {
+            final CachedValue<V> cached = this.cache.getIfPresent(indexKey);
+            if (cached != null) return expired(cached.expiresAt(), now) ? Optional.empty() : Optional.of(cached.value());
+        }
 
-        final Object2LongMap<ByteArrayKey> newOffsets = new Object2LongOpenHashMap<>();
-        newOffsets.defaultReturnValue(-1L);
-        long newEnd = 0;
+        return Optional.ofNullable(this.loadFromDisk(indexKey, this.index.get(indexKey)));
+    }
 
-        try (FileChannel temp = openChannel(tempPath)) {
-            for (final Object2LongMap.Entry<ByteArrayKey> entry : this.offsets.object2LongEntrySet()) {
-                final ByteArrayKey arrayKey = entry.getKey();
-                final byte[] keyBytes = arrayKey.data;
-                final long oldOffset = entry.getLongValue();
-                final int keyLen = keyBytes.length;
+    /**
+     * Adds the values of {@code keys}, encoded as {@code indexKeys}, to {@code result}.
+     */
+    void loadAll(List<? extends K> keys, List<IndexKey> indexKeys, Map<K, V> result) {
+        final List<DiskLookup<K>> lookups = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+
+        for (int i = 0; i < keys.size(); i++) {
+            final K key = keys.get(i);
+            final IndexKey indexKey = indexKeys.get(i);
+
+            final Pending<V> pending = this.pending.get(indexKey);
+            if (pending != null) {
+                if (pending.value != null && !expired(pending.expiresAt, now)) result.put(key, pending.value);
+                continue;
+            }
+            if (this.cache != null) {
+                final CachedValue<V> cached = this.cache.getIfPresent(indexKey);
+                if (cached != null) {
+                    if (!expired(cached.expiresAt(), now)) result.put(key, cached.value());
+                    continue;
+                }
+            }
 
-                final int valueLen = readInt(this.file, oldOffset + 4 + keyLen + 1);
+            final long location = this.index.get(indexKey);
+            if (location != OffsetIndex.ABSENT) lookups.add(new DiskLookup<>(key, indexKey, location));
+        }
 
-                // [keyLen(4)][keyBytes][flag(1)][valueLen(4)]
-                final ByteBuffer header = ByteBuffer.allocate(4 + keyLen + 1 + 4);
-                header.putInt(keyLen);
-                header.put(keyBytes);
-                header.put(FLAG_ALIVE);
-                header.putInt(valueLen);
-                header.flip();
+        // locations order by segment and then by offset, so this walks each file front to back
+        lookups.sort(Comparator.comparingLong(DiskLookup::location));
+        for (final DiskLookup<K> lookup : lookups) {
+            final V value = this.loadFromDisk(lookup.indexKey(), lookup.location());
+            if (value != null) result.put(lookup.key(), value);
+        }
+    }
 
-                final long recordStart = newEnd;
-                writeBytes(temp, header, newEnd);
-                newEnd += header.capacity();
+    Optional<Versioned<V>> loadVersioned(IndexKey indexKey) {
+        final CachedValue<V> current;
+        if (this.pending.containsKey(indexKey)) {
+            // the queued write has no version until the writer appends it
+            current = this.onWriter(0, () -> this.readStored(indexKey, this.index.get(indexKey)));
+        } else {
+            final CachedValue<V> cached = this.cache != null ? this.cache.getIfPresent(indexKey) : null;
+            if (cached != null) {
+                current = expired(cached.expiresAt(), System.currentTimeMillis()) ? null : cached;
+            } else {
+                current = this.readStored(indexKey, this.index.get(indexKey));
+            }
+        }
+        return current != null ? Optional.of(new Versioned<>(current.value(), current.version())) : Optional.empty();
+    }
 
-                // value is copied in chunks — no allocation proportional to value size
-                copyChunked(this.file, oldOffset + 4 + keyLen + 1 + 4, temp, newEnd, valueLen);
-                newEnd += valueLen;
+    /**
+     * Checks the record the index points at and saves on the writer thread, in queue order, so no
+     * lock is needed.
+     */
+    boolean compareAndSave(IndexKey indexKey, long expectedVersion, V value) {
+        Objects.requireNonNull(value, "value");
+        return this.onWriter(1, () -> {
+            final CachedValue<V> current = this.readStored(indexKey, this.index.get(indexKey));
+            if ((current != null ? current.version() : Versioned.ABSENT) != expectedVersion) return false;
+            this.writeRecords(List.of(new WriteTask<>(indexKey, indexKey.bytes(), value, 0, null, null)), false);
+            return true;
+        });
+    }
 
-                newOffsets.put(arrayKey, recordStart);
+    Optional<V> compute(IndexKey indexKey, K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction, "remappingFunction");
+        return this.onWriter(1, () -> {
+            final CachedValue<V> current = this.readStored(indexKey, this.index.get(indexKey));
+            final V value = remappingFunction.apply(key, current != null ? current.value() : null);
+            // deleting what is not there would only append a tombstone
+            if (value != null || current != null) {
+                this.writeRecords(List.of(new WriteTask<>(indexKey, indexKey.bytes(), value, 0, null, null)), false);
             }
-        } catch (IOException ex) {
-            throw new RuntimeException("Compaction failed while writing temp file", ex);
-        }
+            return Optional.ofNullable(value);
+        });
+    }
 
-        this.compactLock.writeLock().lock();
-        try {
-            this.file.close();
-            Files.move(tempPath, this.path,
-                    StandardCopyOption.REPLACE_EXISTING,
-                    StandardCopyOption.ATOMIC_MOVE);
-            this.file = openChannel(this.path);
-            this.acquireFileLock();
+    static long expiresAt(Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero()) throw new IllegalArgumentException("ttl must be positive");
+        // 0 means no expiry
+        return Math.max(System.currentTimeMillis() + ttl.toMillis(), 1);
+    }
 
-            this.offsets.clear();
-            this.offsets.putAll(newOffsets);
-            this.end = newEnd;
-            this.deadBytes = 0;
-        } catch (IOException ex) {
-            throw new RuntimeException("Compaction failed while swapping files", ex);
-        } finally {
-            this.compactLock.writeLock().unlock();
+    @Override
+    public void forEachKey(@NotNull Consumer<? super K> action) {
+        try (Snapshot snapshot = this.takeSnapshot()) {
+            new SnapshotIterator(snapshot, null, false).forEachRemaining(entry -> action.accept(entry.getKey()));
         }
     }
 
-    // -------------------------------------------------------------------------
-    // Startup
-    // -------------------------------------------------------------------------
-
-    private void loadOffsets() throws IOException {
-        long pos = 0;
+    @Override
+    public void forEach(@NotNull BiConsumer<? super K, ? super V> action) {
+        try (Snapshot snapshot = this.takeSnapshot()) {
+            new SnapshotIterator(snapshot, null, true).forEachRemaining(entry -> action.accept(entry.getKey(), entry.getValue()));
+        }
+    }
 
-        while (pos < this.file.size()) {
-            final int keyLen = readInt(this.file, pos);
+    @Override
+    public Stream<Map.Entry<K, V>> stream() {
+        return this.streamSnapshot(null);
+    }
 
-            final ByteBuffer keyBuf = ByteBuffer.allocate(keyLen);
-            readFully(this.file, keyBuf, pos + 4);
+    @Override
+    public Stream<Map.Entry<K, V>> scanPrefix(byte @NotNull [] prefix) {
+        return this.streamSnapshot(prefix.clone());
+    }
 
-            final ByteBuffer flagBuf = FLAG_BUF.get();
-            readSmall(this.file, flagBuf, pos + 4 + keyLen);
-            final byte flag = flagBuf.get();
+    @Override
+    public Set<K> findBy(@NotNull String indexName, @NotNull Object value) {
+        final SecondaryIndex<V> secondary = this.secondaryIndexes.get(indexName);
+        if (secondary == null) throw new IllegalArgumentException("No index named " + indexName);
+        // queued writes are indexed once written — wait for them, like loadVersioned() does
+        final List<IndexKey> found = this.pending.isEmpty()
+                ? secondary.find(value, System.currentTimeMillis())
+                : this.onWriter(0, () -> secondary.find(value, System.currentTimeMillis()));
+        final Set<K> keys = new HashSet<>();
+        for (final IndexKey indexKey : found) {
+            keys.add(ArrayBufferEncoder.fromArray(this.keyEncoder, indexKey.bytes()));
+        }
+        return keys;
+    }
 
-            final ByteArrayKey arrayKey = new ByteArrayKey(keyBuf.array());
+    @Override
+    public Subscriber subscribe(long fromOffset, @NotNull Consumer<? super ChangeEvent<K, V>> listener) {
+        if (fromOffset < 0) throw new IllegalArgumentException("fromOffset must not be negative");
+        final Subscriber subscriber = new Subscriber(listener);
+        subscriber.start(this.onWriter(0, () -> subscriber.attach(fromOffset)));
+        return subscriber;
+    }
 
-            if (flag == FLAG_DELETED) {
-                this.offsets.removeLong(arrayKey);
-                pos += 4 + keyLen + 1;
-            } else {
-                final int valueLen = readInt(this.file, pos + 4 + keyLen + 1);
-                this.offsets.put(arrayKey, pos);
-                pos += 4 + keyLen + 1 + 4 + valueLen;
-            }
-        }
+    private Stream<Map.Entry<K, V>> streamSnapshot(byte[] prefix) {
+        final Snapshot snapshot = this.takeSnapshot();
+        final Iterator<Map.Entry<K, V>> iterator = new SnapshotIterator(snapshot, prefix, true);
+        final int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false)
+                .onClose(snapshot::close);
+    }
 
-        this.end = pos;
+    private static boolean expired(long expiresAt, long now) {
+        return expiresAt != 0 && expiresAt <= now;
     }
 
-    // -------------------------------------------------------------------------
-    // File lock
-    // -------------------------------------------------------------------------
+    private static boolean hasPrefix(byte[] keyBytes, byte[] prefix) {
+        return keyBytes.length >= prefix.length && Arrays.equals(keyBytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
 
-    private void acquireFileLock() throws IOException {
-        this.fileLock = this.file.tryLock(0, 1, false);
-        if (this.fileLock == null) {
-            throw new IllegalStateException("File is already in use: " + this.path);
-        }
+    private V loadFromDisk(IndexKey indexKey, long location) {
+        final CachedValue<V> stored = this.readStored(indexKey, location);
+        return stored != null ? stored.value() : null;
     }
 
-    private void releaseFileLock() {
-        if (this.fileLock != null && this.fileLock.isValid()) {
-            try {
-                this.fileLock.release();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
+    /**
+     * Reads the value and version of the record at {@code location}, following the key to its new
+     * location if compaction moved it in the meantime.
+     *
+     * @return what was read, or {@code null} if the key is not stored or has expired
+     */
+    private CachedValue<V> readStored(IndexKey indexKey, long location) {
+        if (location == OffsetIndex.ABSENT) return null;
+        final long started = System.nanoTime();
+        try {
+            while (location != OffsetIndex.ABSENT) {
+                // compaction repoints the index before it retires a segment, so a missing
+                // or closed segment means the record has moved — look it up again
+                final Segment segment = this.segmentOf(location);
+                if (segment != null) {
+                    try {
+                        final Segment.StoredValue<V> stored = segment.readValue(
+                                Segment.offset(location), indexKey.length(), this.config.verifyChecksums(), this.valueEncoder);
+                        if (expired(stored.expiresAt(), System.currentTimeMillis())) return null;
+                        final CachedValue<V> loaded = new CachedValue<>(
+                                stored.value(), indexKey.length() + stored.length(), stored.expiresAt(), stored.version());
+                        if (this.cache != null) this.cacheLoaded(indexKey, location, loaded);
+                        return loaded;
+                    } catch (ClosedChannelException ex) {
+                        if (ex instanceof ClosedByInterruptException || this.segmentOf(location) == segment) throw ex;
+                    }
+                }
+                location = this.index.get(indexKey);
             }
+            return null;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            this.readLatency.record(System.nanoTime() - started);
         }
     }
 
-    // -------------------------------------------------------------------------
-    // IO helpers
-    // -------------------------------------------------------------------------
+    @Override
+    public void unloadFromCache(@NotNull K key) {
+        if (this.cache == null) return;
+        this.unloadFromCache(this.key(key));
+    }
 
-    private static FileChannel openChannel(Path path) throws IOException {
-        return FileChannel.open(path,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.READ,
-                StandardOpenOption.WRITE
-        );
+    void unloadFromCache(IndexKey indexKey) {
+        if (this.cache != null) this.cache.invalidate(indexKey);
     }
 
-    private static int readInt(FileChannel ch, long pos) throws IOException {
-        final ByteBuffer buf = INT_BUF.get();
-        buf.clear();
-        long p = pos;
-        while (buf.hasRemaining()) {
-            final int n = ch.read(buf, p);
-            if (n < 0) throw new IOException("Unexpected end of file at position " + p);
-            p += n;
-        }
-        buf.flip();
-        return buf.getInt();
+    @Override
+    public CacheStats cacheStats() {
+        if (this.cache == null) return CacheStats.EMPTY;
+        final var stats = this.cache.stats();
+        final long weight = this.cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+        return new CacheStats(stats.hitCount(), stats.missCount(), stats.evictionCount(), weight);
     }
 
-    private static void readSmall(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
-        buf.clear();
-        long p = pos;
-        while (buf.hasRemaining()) {
-            final int n = ch.read(buf, p);
-            if (n < 0) throw new IOException("Unexpected end of file at position " + p);
-            p += n;
-        }
-        buf.flip();
+    @Override
+    public RepositoryStats stats() {
+        return RepositoryStats.of(
+                this.config.writeQueueCapacity() - this.queuePermits.availablePermits(),
+                this.rejectedWrites.sum(),
+                this.coalescedWrites.sum(),
+                this.recordsWritten.sum(),
+                this.batchesWritten.sum(),
+                this.logBytes,
+                this.logDeadBytes,
+                this.compactions.sum(),
+                this.compactionNanos.sum(),
+                this.readLatency.snapshot(),
+                this.cacheStats());
     }
 
-    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
-        buf.clear();
-        long p = pos;
-        while (buf.hasRemaining()) {
-            final int n = ch.read(buf, p);
-            if (n < 0) throw new IOException("Unexpected end of file at position " + p);
-            p += n;
-        }
-        buf.flip();
+    /**
+     * Read latencies of this repository alone, which {@link ShardedRepository} merges across shards.
+     */
+    LatencyHistogram.Snapshot readLatency() {
+        return this.readLatency.snapshot();
     }
 
-    private static void writeBytes(FileChannel ch, ByteBuffer buf, long pos) {
+    @Override
+    public void snapshot(@NotNull Path target) {
+        if (this.closing) throw new IllegalStateException("Repository is closed");
         try {
-            long p = pos;
-            while (buf.hasRemaining()) {
-                p += ch.write(buf, p);
+            if (Files.isDirectory(target)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(target)) {
+                    if (files.iterator().hasNext()) throw new IllegalArgumentException("Snapshot target is not empty: " + target);
+                }
             }
+            Files.createDirectories(target);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+
+        final CompletableFuture<Backup> frozen = new CompletableFuture<>();
+        this.putTask(new InternalTask<>(() -> frozen.complete(this.freezeLog())));
+        final Backup backup = frozen.join();
+
+        try {
+            this.writeBackup(backup, target);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to write a snapshot to " + target, ex);
+        } finally {
+            if (!this.closing) this.putTask(new InternalTask<>(this::releaseSnapshot));
+        }
     }
 
-    private static void copyChunked(
-            FileChannel src, long srcPos,
-            FileChannel dst, long dstPos,
-            int length) throws IOException {
-        final ByteBuffer chunk = CHUNK_BUF.get();
-        int done = 0;
+    @Override
+    public void close() {
+        this.closing = true;
+        try {
+            // a subscriber catching up still needs the writer thread
+            for (final Subscriber subscriber : this.subscribers) {
+                subscriber.close();
+            }
+            this.sweeperThread.interrupt();
+            this.sweeperThread.join();
+            if (this.statsThread != null) {
+                this.statsThread.interrupt();
+                this.statsThread.join();
+            }
+
+            // a running compaction notices the flag and gives up; an already finished one
+            // has queued its installation before the poison pill
+            this.background.close();
+
+            //noinspection unchecked
+            this.writeQueue.put((Task<V>) POISON);
+            this.writerThread.join();
+
+            this.writeHintQuietly(this.active);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            this.closeSegmentsQuietly();
+            this.releaseFileLock();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Writer loop
+    // -------------------------------------------------------------------------
+
+    /**
+     * Makes the write visible through the overlay and returns the task that persists it.
+     */
+    private WriteTask<V> publishPending(IndexKey indexKey, V value, long expiresAt, CompletableFuture<Void> future) {
+        final QueueSlot<V> slot = this.config.overflowPolicy() == OverflowPolicy.COALESCE ? new QueueSlot<>() : null;
+        final Pending<V> pending = new Pending<>(value, expiresAt, slot);
+        if (slot != null) slot.latest = pending;
+        this.pending.put(indexKey, pending);
+        return new WriteTask<>(indexKey, indexKey.bytes(), value, expiresAt, pending, future);
+    }
+
+    private void putTask(@NotNull Task<V> task) {
+        try {
+            this.writeQueue.put(task);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Runs {@code action} on the writer thread once every task queued before it is done, and
+     * waits for its result. Whatever the action throws is rethrown here.
+     *
+     * @param permits the queue room the action holds until it ran, {@code 1} if it writes
+     */
+    private <R> R onWriter(int permits, Supplier<R> action) {
+        if (this.closing) throw new IllegalStateException("Repository is closed");
+        // the task would wait behind the very task that queued it
+        if (Thread.currentThread() == this.writerThread) throw new IllegalStateException("Cannot wait for the writer thread on itself");
+        if (permits > 0 && !this.admit(permits)) this.reject(permits, null);
+
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        this.putTask(new InternalTask<>(() -> {
+            try {
+                result.complete(action.get());
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            } finally {
+                this.queuePermits.release(permits);
+            }
+        }));
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException runtime) throw runtime;
+            if (ex.getCause() instanceof Error error) throw error;
+            throw ex;
+        }
+    }
+
+    /**
+     * Drains up to {@link RepositoryConfig#batchSize()} tasks at a time and appends their writes
+     * with one write, then completes or forces them according to the {@link Durability}.
+     */
+    private void writerLoop() {
+        try {
+            while (true) {
+                final Task<V> first = this.nextTask();
+                if (first == null) {
+                    // the durability interval elapsed with nothing else to do
+                    this.sync();
+                    continue;
+                }
+                if (first == POISON) break;
+                this.process(first);
+
+                boolean poisoned = false;
+                int taken = 1;
+                Task<V> next;
+                while (taken < this.config.batchSize() && (next = this.writeQueue.poll()) != null) {
+                    if (next == POISON) {
+                        poisoned = true;
+                        break;
+                    }
+                    this.process(next);
+                    taken++;
+                }
+                this.flushWrites();
+                // counted before the futures of the batch complete
+                if (this.batchRecords > 0) {
+                    this.batchesWritten.increment();
+                    this.batchRecords = 0;
+                }
+                this.publishSizes();
+                this.commitBatch();
+                if (poisoned) break;
+
+                this.remapActive();
+                this.checkAndCompact();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // nothing may be left waiting once the writer is gone
+            this.sync();
+        }
+    }
+
+    /**
+     * Waits for the next task, or returns {@code null} once unsynced writes are due
+     * to be forced under {@link Durability.Mode#INTERVAL}.
+     */
+    private Task<V> nextTask() throws InterruptedException {
+        final Durability durability = this.config.durability();
+        if (durability.mode() != Durability.Mode.INTERVAL || !this.dirty) return this.writeQueue.take();
+
+        final long wait = this.lastSync + TimeUnit.MILLISECONDS.toNanos(durability.intervalMillis()) - System.nanoTime();
+        return wait <= 0 ? this.writeQueue.poll() : this.writeQueue.poll(wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Collects the writes of a task for {@link #flushWrites}. Internal tasks and write batches run
+     * once the writes drained before them are written, so they see the log in queue order and a
+     * batch never shares its append.
+     */
+    private void process(@NotNull Task<V> task) {
+        switch (task) {
+            case WriteTask<V> write -> {
+                this.batchWrites.add(write);
+                this.batchPermits += this.permitsFor(1);
+            }
+            case BulkTask<V> bulk when bulk.atomic() -> {
+                this.flushWrites();
+                this.processWrites(bulk.writes(), true);
+                this.queuePermits.release(this.permitsFor(bulk.writes().size()));
+            }
+            case BulkTask<V> bulk -> {
+                this.batchWrites.addAll(bulk.writes());
+                this.batchPermits += this.permitsFor(bulk.writes().size());
+            }
+            case InternalTask<V> internal -> {
+                this.flushWrites();
+                internal.action().run();
+            }
+        }
+    }
+
+    private void flushWrites() {
+        if (this.batchWrites.isEmpty()) return;
+        try {
+            this.processWrites(this.batchWrites, false);
+        } finally {
+            this.batchWrites.clear();
+            this.queuePermits.release(this.batchPermits);
+            this.batchPermits = 0;
+        }
+    }
+
+    private void processWrites(List<WriteTask<V>> queued, boolean atomic) {
+        List<WriteTask<V>> writes = queued;
+        if (this.config.overflowPolicy() == OverflowPolicy.COALESCE) {
+            writes = new ArrayList<>(queued.size());
+            for (final WriteTask<V> write : queued) {
+                writes.add(this.claim(write));
+            }
+        }
+        writes = this.latestPerKey(writes);
+
+        if (this.failure != null) {
+            this.failWrites(writes, this.failure, true);
+            return;
+        }
+        try {
+            this.writeRecords(writes, atomic);
+        } catch (RuntimeException ex) {
+            // the records never made it into the log — stop pretending they did, unless they did and
+            // the repository failed on them: the overlay keeps showing them until the next startup replays them
+            this.failWrites(writes, ex, ex != this.failure);
+            return;
+        }
+        for (final WriteTask<V> write : writes) {
+            if (write.future() != null) this.unsynced.add(write.future());
+        }
+        this.unsynced.addAll(this.mergedFutures);
+        this.mergedFutures.clear();
+    }
+
+    private void failWrites(List<WriteTask<V>> writes, RuntimeException ex, boolean unpublish) {
+        for (final WriteTask<V> write : writes) {
+            if (unpublish) this.pending.remove(write.indexKey(), write.pending());
+            if (write.future() != null) write.future().completeExceptionally(ex);
+        }
+        for (final CompletableFuture<Void> future : this.mergedFutures) {
+            future.completeExceptionally(ex);
+        }
+        this.mergedFutures.clear();
+    }
+
+    /**
+     * Drops every write followed by another write to the same key, keeping the survivors in
+     * order. The futures of the dropped writes are collected in {@link #mergedFutures}, so they
+     * complete along with the write that replaced them.
+     */
+    private List<WriteTask<V>> latestPerKey(List<WriteTask<V>> writes) {
+        if (writes.size() < 2) return writes;
+        final Map<IndexKey, Integer> last = new HashMap<>(writes.size() * 2);
+        for (int i = 0; i < writes.size(); i++) {
+            last.put(writes.get(i).indexKey(), i);
+        }
+        if (last.size() == writes.size()) return writes;
+
+        final List<WriteTask<V>> survivors = new ArrayList<>(last.size());
+        for (int i = 0; i < writes.size(); i++) {
+            final WriteTask<V> write = writes.get(i);
+            if (last.get(write.indexKey()) == i) {
+                survivors.add(write);
+            } else if (write.future() != null) {
+                this.mergedFutures.add(write.future());
+            }
+        }
+        this.coalescedWrites.add(writes.size() - survivors.size());
+        return survivors;
+    }
+
+    // -------------------------------------------------------------------------
+    // Backpressure
+    // -------------------------------------------------------------------------
+
+    /**
+     * Takes queue room for {@code writes} writes, waiting for it under {@link OverflowPolicy#BLOCK}.
+     * Work the repository queues for itself, such as installing a compaction, takes none.
+     *
+     * @return whether the writes may be queued
+     */
+    private boolean admit(int writes) {
+        // a write from a compute function could wait for queue room that only the writer thread makes
+        if (Thread.currentThread() == this.writerThread) throw new IllegalStateException("Cannot queue a write on the writer thread");
+        if (this.failure != null) throw this.failure;
+        final int permits = this.permitsFor(writes);
+        if (this.config.overflowPolicy() != OverflowPolicy.BLOCK) return this.queuePermits.tryAcquire(permits);
+        try {
+            this.queuePermits.acquire(permits);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A bulk write larger than the whole queue takes all of it, so it is queued once the queue is empty.
+     */
+    private int permitsFor(int writes) {
+        return Math.min(writes, this.config.writeQueueCapacity());
+    }
+
+    /**
+     * Merges a write into the queued write to the same key, under {@link OverflowPolicy#COALESCE}.
+     *
+     * @return whether the queued write now carries this one
+     */
+    private boolean coalesce(IndexKey indexKey, V value, long expiresAt, CompletableFuture<Void> future) {
+        if (this.config.overflowPolicy() != OverflowPolicy.COALESCE) return false;
+        while (true) {
+            final Pending<V> queued = this.pending.get(indexKey);
+            if (queued == null || queued.slot == null) return false;
+
+            final QueueSlot<V> slot = queued.slot;
+            synchronized (slot) {
+                if (slot.taken) return false;
+                final Pending<V> merged = new Pending<>(value, expiresAt, slot);
+                // fails if another write to the key was published meanwhile — then merge into that one
+                if (this.pending.replace(indexKey, queued, merged)) {
+                    slot.latest = merged;
+                    if (future != null) {
+                        if (slot.merged == null) slot.merged = new ArrayList<>();
+                        slot.merged.add(future);
+                    }
+                    this.coalescedWrites.increment();
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void reject(int writes, CompletableFuture<Void> future) {
+        this.rejectedWrites.add(writes);
+        final RejectedExecutionException ex = new RejectedExecutionException(
+                "Write queue of " + this.path + " is full (" + this.config.writeQueueCapacity() + " writes), rejected "
+                        + writes + " write(s)");
+        if (future == null) throw ex;
+        future.completeExceptionally(ex);
+    }
+
+    /**
+     * Runs on the writer thread. Takes the slot of a queued write, so nothing more is merged into
+     * it, and returns the write with the newest value merged in. The futures of the merged writes
+     * are collected in {@link #mergedFutures}.
+     */
+    private WriteTask<V> claim(WriteTask<V> write) {
+        final QueueSlot<V> slot = write.pending() != null ? write.pending().slot : null;
+        if (slot == null) return write;
+
+        final Pending<V> latest;
+        synchronized (slot) {
+            slot.taken = true;
+            latest = slot.latest;
+            if (slot.merged != null) this.mergedFutures.addAll(slot.merged);
+        }
+        return latest == write.pending()
+                ? write
+                : new WriteTask<>(write.indexKey(), write.keyBytes(), latest.value, latest.expiresAt, latest, write.future());
+    }
+
+    // -------------------------------------------------------------------------
+    // Group commit
+    // -------------------------------------------------------------------------
+
+    /**
+     * Applies the durability policy to the batch just written.
+     */
+    private void commitBatch() {
+        final Durability durability = this.config.durability();
+        switch (durability.mode()) {
+            case NONE -> this.completeUnsynced(null);
+            case BATCH -> this.sync();
+            case INTERVAL -> {
+                if (System.nanoTime() - this.lastSync >= TimeUnit.MILLISECONDS.toNanos(durability.intervalMillis())) {
+                    this.sync();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the active segment if anything was written to it since the last force, then
+     * completes every future waiting for it — one fsync for all of them.
+     */
+    private void sync() {
+        Throwable failure = null;
+        if (this.dirty && this.config.durability().mode() != Durability.Mode.NONE) {
+            try {
+                this.active.channel.force(false);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        this.dirty = false;
+        this.lastSync = System.nanoTime();
+        this.completeUnsynced(failure);
+    }
+
+    private void completeUnsynced(Throwable failure) {
+        for (final CompletableFuture<Void> future : this.unsynced) {
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+        this.unsynced.clear();
+    }
+
+    // -------------------------------------------------------------------------
+    // Write logic
+    // -------------------------------------------------------------------------
+
+    private void writeRecords(@NotNull List<WriteTask<V>> writes, boolean atomic) {
+        // lets subscribers tell when every version the counter handed out to this repository was offered
+        this.appending = true;
+        try {
+            this.appendRecords(writes, atomic);
+        } finally {
+            this.appending = false;
+        }
+    }
+
+    /**
+     * Assembles the records in the write buffer and appends them with one write, then applies
+     * them to the index, the cache and the overlay. The records always land in the same segment.
+     * Whatever fails once they are in the log leaves the index behind it, so it closes the
+     * repository to writes.
+     *
+     * @param atomic whether to frame the records with batch markers
+     */
+    private void appendRecords(@NotNull List<WriteTask<V>> writes, boolean atomic) {
+        if (this.active.size >= this.config.segmentBytes()) this.roll();
+
+        final int count = writes.size();
+        int inserts = 0;
+        for (final WriteTask<V> task : writes) {
+            if (task.value() != null) inserts++;
+        }
+        // refuses the whole write while nothing of it is in the log
+        this.index.reserve(inserts);
+
+        final int[] recordSizes = new int[count];
+        final int[] valueLens = new int[count]; // before compression, which is what the cache weighs
+        final long[] versions = new long[count];
+        long recordOffset = this.active.size + (atomic ? Segment.MARKER_SIZE : 0);
+
+        ByteBuffer out = this.writeBuffer.clear();
+        try {
+            if (atomic) Segment.putMarker(out, FLAG_BATCH_BEGIN);
+            for (int i = 0; i < count; i++) {
+                final WriteTask<V> task = writes.get(i);
+                final int start = out.position();
+                final int hint = task.value() == null ? 0 : this.valueEncoder.sizeHint(task.value());
+                // room for the longest header, so only an encoder exceeding its hint can overflow
+                final int needed = Segment.headerSize(FLAG_EXPIRING) + task.keyBytes().length + Math.max(hint, 0);
+                versions[i] = this.versionCounter.incrementAndGet();
+                if (out.remaining() < needed) out = this.growWriteBuffer(start, needed);
+                while (true) {
+                    try {
+                        valueLens[i] = this.putRecord(out, task, versions[i]);
+                        break;
+                    } catch (BufferOverflowException ex) {
+                        out.position(start);
+                        out = this.growWriteBuffer(start, 0);
+                    }
+                }
+                recordSizes[i] = out.position() - start;
+            }
+            if (atomic) {
+                if (out.remaining() < Segment.MARKER_SIZE) out = this.growWriteBuffer(out.position(), Segment.MARKER_SIZE);
+                Segment.putMarker(out, FLAG_BATCH_COMMIT);
+            }
+
+            final long written = out.position();
+            Segment.writeBytes(this.active.channel, out.flip(), this.active.size);
+            this.active.size += written;
+            // markers are never indexed, so nothing else counts them as dead
+            if (atomic) this.active.deadBytes += 2 * Segment.MARKER_SIZE;
+        } finally {
+            if (this.writeBuffer.capacity() > WRITE_BUFFER_RETAIN) this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+        this.dirty = true;
+        this.recordsWritten.add(count);
+        this.batchRecords += count;
+
+        try {
+            this.applyRecords(writes, recordOffset, recordSizes, valueLens, versions);
+        } catch (RuntimeException | Error ex) {
+            this.failure = new IllegalStateException("Repository closed to writes: records in the log failed to be indexed", ex);
+            this.closing = true;
+            this.logger.log(Level.SEVERE, ex, () -> this.path + ": records in the log failed to be indexed, closed to writes");
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Applies appended records to the index, the cache, the overlay and the subscribers.
+     */
+    private void applyRecords(List<WriteTask<V>> writes, long recordOffset, int[] recordSizes, int[] valueLens, long[] versions) {
+        final int count = writes.size();
+        for (int i = 0; i < count; i++) {
+            final WriteTask<V> task = writes.get(i);
+            final boolean isTombstone = task.value() == null;
+            this.indexRecord(this.active, task.indexKey(), isTombstone, recordOffset, recordSizes[i], task.expiresAt());
+            recordOffset += recordSizes[i];
+
+            // the cache and the index have to be current before the overlay entry goes away
+            if (this.cache != null) {
+                if (isTombstone) {
+                    this.cache.invalidate(task.indexKey());
+                } else {
+                    this.cache.put(task.indexKey(),
+                            new CachedValue<>(task.value(), task.keyBytes().length + valueLens[i], task.expiresAt(), versions[i]));
+                }
+            }
+            if (!this.secondaryIndexes.isEmpty()) this.indexValue(task.indexKey(), task.value(), task.expiresAt());
+            this.pending.remove(task.indexKey(), task.pending());
+        }
+        this.publishNextExpiry();
+
+        if (!this.subscribers.isEmpty()) {
+            for (int i = 0; i < count; i++) {
+                final WriteTask<V> task = writes.get(i);
+                final Change<V> change = new Change<>(task.keyBytes(), task.value(), versions[i]);
+                for (final Subscriber subscriber : this.subscribers) {
+                    subscriber.offer(change);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the record of {@code task} at the position of {@code out}, encoding the value in place.
+     *
+     * @return the size of the value before compression
+     * @throws BufferOverflowException if the record does not fit, with the position of {@code out} anywhere
+     */
+    private int putRecord(ByteBuffer out, WriteTask<V> task, long version) {
+        final int start = out.position();
+        final boolean isTombstone = task.value() == null;
+        byte flag = isTombstone ? FLAG_DELETED : FLAG_ALIVE;
+        if (task.expiresAt() != 0) flag |= FLAG_EXPIRING;
+        Segment.startRecord(out, flag, task.expiresAt(), version, task.keyBytes());
+        if (isTombstone) {
+            Segment.sealRecord(out, start, flag, 0);
+            return 0;
+        }
+
+        // the encoder gets a view of its own, so it cannot move anything but its own position
+        final int valueStart = out.position();
+        final ByteBuffer view = out.slice();
+        this.valueEncoder.encode(task.value(), view);
+        final int valueLen = view.position();
+        out.position(valueStart + valueLen);
+
+        int storedLen = valueLen;
+        if (this.shouldCompress(valueLen)) {
+            final byte[] compressed = Compression.compress(out.slice(valueStart, valueLen));
+            if (compressed != null) {
+                out.put(valueStart, compressed).position(valueStart + compressed.length);
+                flag |= FLAG_COMPRESSED;
+                storedLen = compressed.length;
+            }
+        }
+        Segment.sealRecord(out, start, flag, storedLen);
+        return valueLen;
+    }
+
+    /**
+     * Replaces the write buffer with one at least twice as big and with room for {@code needed}
+     * bytes after the first {@code used}, which are carried over.
+     */
+    private ByteBuffer growWriteBuffer(int used, int needed) {
+        final long capacity = Math.max(2L * this.writeBuffer.capacity(), (long) used + needed);
+        if (capacity > Integer.MAX_VALUE) throw new IllegalStateException("Write batch does not fit in a buffer");
+        final ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+        grown.put(this.writeBuffer.slice(0, used));
+        this.writeBuffer = grown;
+        return grown;
+    }
+
+    /**
+     * Compression is decided per record, so logs written with and without it mix freely.
+     */
+    private boolean shouldCompress(int valueLen) {
+        return this.config.compressValues() && valueLen >= this.config.compressThreshold();
+    }
+
+    /**
+     * Caches a value read from {@code location}, unless the key was written meanwhile.
+     */
+    private void cacheLoaded(IndexKey indexKey, long location, CachedValue<V> loaded) {
+        // never replaces what the writer put; if a write was indexed while we were reading, the
+        // value may already be stale — so check the index after publishing and undo if it moved
+        if (this.cache.asMap().putIfAbsent(indexKey, loaded) == null && this.index.get(indexKey) != location) {
+            this.cache.asMap().remove(indexKey, loaded);
+        }
+    }
+
+    /**
+     * Applies a value, or a delete, to every secondary index. The writer calls it before the overlay
+     * entry goes away, so the indexes never lag behind what {@code load} sees. An extractor that
+     * throws is logged and leaves the key out of its index; the record is written regardless.
+     */
+    private void indexValue(IndexKey indexKey, V value, long expiresAt) {
+        for (final SecondaryIndex<V> secondary : this.secondaryIndexes.values()) {
+            try {
+                secondary.update(indexKey, value, expiresAt);
+            } catch (RuntimeException ex) {
+                this.logger.log(Level.WARNING, ex, () -> this.path + ": index " + secondary.name() + " failed on a value, key left out");
+            }
+        }
+    }
+
+    /**
+     * Applies a record to the index and charges whatever it supersedes to the dead bytes
+     * of the segment holding it. Shared by the writer and the startup replay.
+     */
+    private void indexRecord(Segment segment, IndexKey indexKey, boolean tombstone, long offset, int recordSize, long expiresAt) {
+        this.trackExpiry(indexKey, tombstone ? 0 : expiresAt);
+
+        final int oldSize = this.index.sizeOf(indexKey);
+        final long oldLocation;
+        if (tombstone) {
+            oldLocation = this.index.remove(indexKey);
+            segment.deadBytes += recordSize;
+        } else {
+            oldLocation = this.index.put(indexKey, Segment.location(segment.id, offset), recordSize);
+        }
+        if (oldLocation != OffsetIndex.ABSENT) this.segmentOf(oldLocation).deadBytes += oldSize;
+    }
+
+    /**
+     * Seals the active segment and starts a new one.
+     */
+    private void roll() {
+        final Segment full = this.active;
+        try {
+            // the next force only covers the new active segment
+            if (this.dirty && this.config.durability().mode() != Durability.Mode.NONE) full.channel.force(false);
+            if (this.config.mmapReads()) full.map();
+            this.active = this.openSegment(full.seq + 1, 0);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to start a new segment", ex);
+        }
+        this.sealed.add(full);
+        this.publish(List.of(this.active), List.of());
+        this.runInBackground(() -> this.writeHintQuietly(full));
+    }
+
+    private void remapActive() {
+        if (!this.config.mmapReads() || this.active.size - this.active.mappedSize() < REMAP_STEP) return;
+        try {
+            this.active.map();
+        } catch (IOException ex) {
+            // the unmapped tail is read through the channel instead
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Compaction
+    // -------------------------------------------------------------------------
+
+    /**
+     * Starts merging every sealed segment on the background thread once their dead bytes cross a
+     * threshold. Writes continue to the active segment, and reads keep being served from the old
+     * files until the result is installed.
+     */
+    private void checkAndCompact() {
+        if (this.compacting || this.closing || this.sealed.isEmpty()) return;
+
+        long totalBytes = 0;
+        long deadBytes = 0;
+        for (final Segment segment : this.sealed) {
+            totalBytes += segment.size;
+            deadBytes += segment.deadBytes;
+        }
+        if (deadBytes == 0) return;
+
+        final boolean overRatio = (double) deadBytes / totalBytes >= this.config.compactRatio();
+        final boolean overBytes = deadBytes >= this.config.compactBytes();
+        if (!overRatio && !overBytes) return;
+
+        // merging every sealed segment — a prefix of the log — is what makes dropping tombstones safe
+        final List<Segment> inputs = List.copyOf(this.sealed);
+        final long started = System.nanoTime();
+        this.compacting = this.runInBackground(() -> this.compact(inputs, started));
+    }
+
+    /**
+     * Runs on the background thread. Copies the records that are live within {@code inputs}
+     * into new segments and hands them to the writer thread for installation.
+     */
+    private void compact(List<Segment> inputs, long started) {
+        final List<Segment> outputs = new ArrayList<>();
+        try {
+            final Relocation[] relocations = this.collectLive(inputs, System.currentTimeMillis());
+            // copy in log order so the inputs are read sequentially
+            Arrays.sort(relocations, Comparator.comparingLong(relocation -> relocation.from));
+
+            final Segment last = inputs.get(inputs.size() - 1);
+            int gen = last.gen;
+            Path tempPath = null;
+            FileChannel out = null;
+            int outId = -1;
+            long outSize = 0;
+
+            try {
+                for (final Relocation relocation : relocations) {
+                    if (this.closing) throw new IOException("Compaction cancelled by close()");
+                    if (relocation.expired) continue;
+
+                    if (out == null || outSize >= this.config.segmentBytes()) {
+                        if (out != null) outputs.add(this.finishOutput(out, tempPath, outId, last.seq, gen, outSize));
+                        gen++;
+                        outId = this.nextSegmentId.getAndIncrement();
+                        tempPath = this.path.resolve(Segment.fileName(last.seq, gen) + Segment.TEMP_EXTENSION);
+                        out = FileChannel.open(tempPath,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+                        outSize = 0;
+                    }
+
+                    final FileChannel src = this.segmentOf(relocation.from).channel;
+                    transferFully(src, Segment.offset(relocation.from), relocation.recordSize, out);
+                    relocation.to = Segment.location(outId, outSize);
+                    outSize += relocation.recordSize;
+                }
+                if (out != null) outputs.add(this.finishOutput(out, tempPath, outId, last.seq, gen, outSize));
+            } finally {
+                if (out != null && out.isOpen()) {
+                    out.close();
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+
+            // from here on the outputs replace the inputs, however their deletion goes
+            this.writeCompacted(Segment.fileName(last.seq, last.gen + 1));
+            this.putTask(new InternalTask<>(() -> this.installCompaction(inputs, outputs, relocations, started)));
+        } catch (IOException | RuntimeException ex) {
+            // nothing was installed — the inputs stay as they are and compaction is retried later
+            for (final Segment output : outputs) {
+                try {
+                    output.delete();
+                } catch (IOException ignored) {
+                }
+            }
+            this.putTask(new InternalTask<>(() -> this.compacting = false));
+        }
+    }
+
+    private Relocation[] collectLive(List<Segment> inputs, long now) throws IOException {
+        final Object2ObjectMap<IndexKey, Relocation> live = new Object2ObjectOpenHashMap<>();
+        for (final Segment segment : inputs) {
+            final Segment.RecordVisitor visitor = (keyBytes, tombstone, offset, recordSize, expiresAt, version) -> {
+                final IndexKey indexKey = IndexKey.stored(this.keyEncoder, keyBytes);
+                if (tombstone) {
+                    live.remove(indexKey);
+                } else {
+                    final long from = Segment.location(segment.id, offset);
+                    live.put(indexKey, new Relocation(indexKey, from, recordSize, expired(expiresAt, now)));
+                }
+            };
+            final long covered = segment.readHint(visitor);
+            segment.scanIntact(Math.max(covered, 0), visitor);
+        }
+        return live.values().toArray(new Relocation[0]);
+    }
+
+    private Segment finishOutput(FileChannel out, Path tempPath, int id, long seq, int gen, long size) throws IOException {
+        // the inputs are deleted once this is installed, so the copy has to be on disk first
+        out.force(true);
+        out.close();
+
+        final Path target = this.path.resolve(Segment.fileName(seq, gen));
+        Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE);
+
+        final Segment segment = new Segment(id, seq, gen, target);
+        if (segment.size != size) throw new IOException("Unexpected compaction output size: " + target);
+        segment.writeHint();
+        if (this.config.mmapReads()) segment.map();
+        return segment;
+    }
+
+    /**
+     * Runs on the writer thread. Points the index at the copies that are still current,
+     * replaces the inputs with the outputs and deletes the inputs.
+     */
+    private void installCompaction(List<Segment> inputs, List<Segment> outputs, Relocation[] relocations, long started) {
+        this.publish(outputs, List.of());
+
+        for (final Relocation relocation : relocations) {
+            if (relocation.expired) {
+                // nothing else in the log supersedes this record, so forgetting it is as good as a tombstone
+                if (this.index.get(relocation.indexKey) == relocation.from) {
+                    this.index.remove(relocation.indexKey);
+                    if (this.cache != null) this.cache.invalidate(relocation.indexKey);
+                    // the sweeper skips keys the index no longer holds, so nothing else would unlink it
+                    if (!this.secondaryIndexes.isEmpty()) this.indexValue(relocation.indexKey, null, 0);
+                }
+                continue;
+            }
+            if (!this.index.replace(relocation.indexKey, relocation.from, relocation.to)) {
+                // overwritten or deleted while compaction was running
+                this.segmentOf(relocation.to).deadBytes += relocation.recordSize;
+            }
+        }
+
+        // the inputs were the oldest sealed segments when compaction started
+        this.sealed.subList(0, inputs.size()).clear();
+        this.sealed.addAll(0, outputs);
+
+        // readers that still race on the old files retry against the index, which is already repointed
+        this.publish(List.of(), inputs);
+
+        if (this.openSnapshots > 0) {
+            this.retired.addAll(inputs);
+        } else {
+            deleteSegments(inputs);
+        }
+
+        this.compacting = false;
+        this.compactions.increment();
+        this.compactionNanos.add(System.nanoTime() - started);
+    }
+
+    /**
+     * Records that every segment sorting before {@code firstKept} is obsolete. Until this is on disk,
+     * startup replays the inputs of a compaction along with its outputs; from then on it deletes them,
+     * so an input left over by a failed or interrupted deletion can never bring back a key whose
+     * tombstone compaction dropped. The outputs reach the directory before the file does.
+     */
+    private void writeCompacted(String firstKept) throws IOException {
+        final Path tempPath = this.path.resolve(COMPACTED_FILE + Segment.TEMP_EXTENSION);
+        try (FileChannel out = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Segment.writeBytes(out, ByteBuffer.wrap(firstKept.getBytes(StandardCharsets.US_ASCII)), 0);
+            out.force(true);
+        }
+        forceFile(this.path);
+        Files.move(tempPath, this.path.resolve(COMPACTED_FILE), StandardCopyOption.ATOMIC_MOVE);
+        try {
+            forceFile(this.path);
+        } catch (IOException ignored) {
+            // the move is done; lost in a crash, it only leaves the inputs to be replayed again
+        }
+    }
+
+    /**
+     * Returns {@code {seq, gen}} of the oldest segment in use as recorded by {@link #writeCompacted},
+     * or {@code null} if nothing was compacted yet.
+     */
+    private long[] readCompacted() throws IOException {
+        try {
+            final String firstKept = Files.readString(this.path.resolve(COMPACTED_FILE), StandardCharsets.US_ASCII);
+            final long[] parsed = Segment.parseName(firstKept);
+            if (parsed == null) throw new IOException("Corrupt " + COMPACTED_FILE + " file in " + this.path);
+            return parsed;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes segments replaced by compaction. The {@link #writeCompacted compacted} file already
+     * marks them obsolete, so one that cannot be deleted now is deleted by the next startup.
+     */
+    private static void deleteSegments(List<Segment> segments) {
+        for (final Segment segment : segments) {
+            try {
+                segment.delete();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Expiry
+    // -------------------------------------------------------------------------
+
+    /**
+     * Runs on the sweeper thread. Wakes up every {@link RepositoryConfig#sweepIntervalMillis()}
+     * and hands a sweep to the writer thread once something is due.
+     */
+    private void sweepLoop() {
+        try {
+            while (!this.closing) {
+                Thread.sleep(this.config.sweepIntervalMillis());
+                if (!this.sweepQueued && this.nextExpiry <= System.currentTimeMillis()) {
+                    this.sweepQueued = true;
+                    this.putTask(new InternalTask<>(this::sweepExpired));
+                }
+            }
+        } catch (InterruptedException | RuntimeException ex) {
+            // interrupted by close()
+        }
+    }
+
+    /**
+     * Runs on the writer thread. Writes tombstones for up to {@link #SWEEP_LIMIT} keys whose
+     * current record has expired; the rest is left to the next sweep. Expired records read as
+     * absent anyway, and compaction drops them, but the tombstones count their space as dead even
+     * in segments compaction has not reached yet.
+     */
+    private void sweepExpired() {
+        this.sweepQueued = false;
+        final long now = System.currentTimeMillis();
+        final List<WriteTask<V>> tombstones = new ArrayList<>();
+
+        while (tombstones.size() < SWEEP_LIMIT && !this.expiries.isEmpty() && this.expiries.peek().expiresAt() <= now) {
+            final Expiry expiry = this.expiries.poll();
+            final IndexKey indexKey = expiry.indexKey();
+            // written again since
+            if (this.expiryOf.getLong(indexKey) != expiry.expiresAt()) continue;
+            this.expiryOf.removeLong(indexKey);
+            // a queued write replaces the record anyway
+            if (this.pending.containsKey(indexKey)) continue;
+
+            final long location = this.index.get(indexKey);
+            if (location == OffsetIndex.ABSENT) continue;
+            try {
+                if (!expired(this.segmentOf(location).readExpiresAt(Segment.offset(location)), now)) continue;
+            } catch (IOException ex) {
+                // still absent for readers; compaction drops it
+                continue;
+            }
+            tombstones.add(new WriteTask<>(indexKey, indexKey.bytes(), null, 0, null, null));
+        }
+
+        if (!tombstones.isEmpty()) this.processWrites(tombstones, false);
+        this.publishNextExpiry();
+    }
+
+    /**
+     * Sets the expiry of the current record of a key, {@code 0} for none. The deadline it replaces
+     * stays queued until it comes up, unless stale deadlines come to outnumber the live ones, which
+     * rebuilds the queue — so a key refreshed over and over holds one entry, not one per write.
+     */
+    private void trackExpiry(IndexKey indexKey, long expiresAt) {
+        final long old = expiresAt != 0 ? this.expiryOf.put(indexKey, expiresAt) : this.expiryOf.removeLong(indexKey);
+        if (expiresAt != 0 && old != expiresAt) this.expiries.add(new Expiry(expiresAt, indexKey));
+        if (this.expiries.size() <= Math.max(2 * this.expiryOf.size(), EXPIRY_QUEUE_SLACK)) return;
+
+        this.expiries.clear();
+        for (final Object2LongMap.Entry<IndexKey> entry : this.expiryOf.object2LongEntrySet()) {
+            this.expiries.add(new Expiry(entry.getLongValue(), entry.getKey()));
+        }
+    }
+
+    private void publishNextExpiry() {
+        final Expiry next = this.expiries.peek();
+        this.nextExpiry = next != null ? next.expiresAt() : Long.MAX_VALUE;
+    }
+
+    // -------------------------------------------------------------------------
+    // Statistics
+    // -------------------------------------------------------------------------
+
+    /**
+     * Publishes the log size and dead bytes for {@link #stats()}. Writer thread only, like the
+     * segment fields it sums.
+     */
+    private void publishSizes() {
+        long total = this.active.size;
+        long dead = this.active.deadBytes;
+        for (final Segment segment : this.sealed) {
+            total += segment.size;
+            dead += segment.deadBytes;
+        }
+        this.logBytes = total;
+        this.logDeadBytes = dead;
+    }
+
+    /**
+     * Runs on its own thread with {@link RepositoryConfig#statsLogIntervalMillis()} set.
+     */
+    private void statsLoop() {
+        try {
+            while (!this.closing) {
+                Thread.sleep(this.config.statsLogIntervalMillis());
+                final RepositoryStats stats = this.stats();
+                this.logger.info(() -> this.path + ": " + stats.summary());
+            }
+        } catch (InterruptedException ex) {
+            // interrupted by close()
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Snapshots
+    // -------------------------------------------------------------------------
+
+    /**
+     * Takes a snapshot on the writer thread, so it includes every write queued before this call.
+     */
+    private Snapshot takeSnapshot() {
+        if (this.closing) throw new IllegalStateException("Repository is closed");
+        final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        this.putTask(new InternalTask<>(() -> {
+            final long[] locations = new long[this.index.size()];
+            final int[] count = {0};
+            this.index.forEachLocation(location -> locations[count[0]++] = location);
+            // locations order by segment and then by offset
+            Arrays.sort(locations);
+            this.openSnapshots++;
+            future.complete(new Snapshot(locations, this.segments));
+        }));
+        return future.join();
+    }
+
+    /**
+     * Copies the frozen segments into {@code target}: sealed segments are hard-linked where the
+     * file system allows it, and the active one is copied up to where it ended when frozen and
+     * given a hint of its own. Everything is forced before returning.
+     */
+    private void writeBackup(Backup backup, Path target) throws IOException {
+        for (final Segment segment : backup.sealed()) {
+            final Path copy = target.resolve(segment.path.getFileName());
+            try {
+                Files.createLink(copy, segment.path);
+            } catch (IOException | UnsupportedOperationException ex) {
+                // another file system, or no hard links at all
+                Files.deleteIfExists(copy);
+                copyRange(segment.channel, segment.size, copy);
+            }
+            forceFile(copy);
+
+            // hints are replaced atomically, so whatever is there is complete; a missing one costs a scan
+            final Path hintCopy = target.resolve(segment.hintPath().getFileName());
+            try {
+                Files.copy(segment.hintPath(), hintCopy);
+                forceFile(hintCopy);
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+
+        final Segment active = backup.active();
+        final Path activeCopy = target.resolve(active.path.getFileName());
+        copyRange(active.channel, backup.activeEnd(), activeCopy);
+        final Segment copied = new Segment(0, active.seq, active.gen, activeCopy);
+        try {
+            copied.writeHint();
+        } finally {
+            copied.channel.close();
+        }
+        forceFile(copied.hintPath());
+        forceFile(target);
+    }
+
+    private static void copyRange(FileChannel src, long length, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            transferFully(src, 0, length, out);
+            out.force(true);
+        }
+    }
+
+    static void forceFile(Path file) throws IOException {
+        // directories cannot be opened for writing everywhere; reading is enough to force them
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            if (!Files.isDirectory(file)) throw ex;
+        }
+    }
+
+    /**
+     * Freezes the segments as they are now, on the writer thread; release them with {@link #releaseSnapshot}.
+     */
+    private Backup freezeLog() {
+        // keeps compaction from deleting any of the segments while they are read
+        this.openSnapshots++;
+        return new Backup(List.copyOf(this.sealed), this.active, this.active.size);
+    }
+
+    private void releaseSnapshot() {
+        if (--this.openSnapshots == 0) {
+            deleteSegments(this.retired);
+            this.retired.clear();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Startup
+    // -------------------------------------------------------------------------
+
+    /**
+     * Replays every segment past its hint. A segment is cut off at the first record that is
+     * incomplete or fails its checksum, and at the begin marker of a batch without its commit
+     * marker, so a write torn by a crash never comes back as data.
+     */
+    private void loadSegments() throws IOException {
+        final long[] firstKept = this.readCompacted();
+        final List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.path)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(Segment.TEMP_EXTENSION)) {
+                    // left over by an interrupted compaction or hint write
+                    Files.delete(file);
+                    continue;
+                }
+                final long[] parsed = Segment.parseName(name);
+                if (parsed != null && firstKept != null && compareNames(parsed, firstKept) < 0) {
+                    // replaced by a compaction that finished without deleting it
+                    deleteQuietly(file);
+                    deleteQuietly(Segment.hintPath(file));
+                    continue;
+                }
+                if (parsed != null) {
+                    found.add(new Segment(this.nextSegmentId.getAndIncrement(), parsed[0], (int) parsed[1], file));
+                }
+            }
+        }
+        Collections.sort(found);
+        this.publish(found, List.of());
+
+        for (final Segment segment : found) {
+            final Segment.RecordVisitor visitor = new Segment.RecordVisitor() {
+                @Override
+                public void visit(byte[] keyBytes, boolean tombstone, long offset, int recordSize, long expiresAt, long version) {
+                    DiskRepository.this.indexRecord(segment, IndexKey.stored(DiskRepository.this.keyEncoder, keyBytes),
+                            tombstone, offset, recordSize, expiresAt);
+                    // tombstones count too — a key must never get a version it had before its delete
+                    DiskRepository.this.versionCounter.accumulateAndGet(version, Math::max);
+                }
+
+                @Override
+                public void marker(byte flag, long offset) {
+                    segment.deadBytes += Segment.MARKER_SIZE;
+                }
+            };
+            final long covered = segment.readHint(visitor);
+            final long end = segment.scan(Math.max(covered, 0), visitor);
+            if (end < segment.size) this.truncate(segment, end);
+        }
+
+        final Segment last = found.isEmpty() ? null : found.get(found.size() - 1);
+        if (last != null && last.gen == 0) {
+            this.active = found.remove(found.size() - 1);
+        } else {
+            this.active = this.openSegment(last != null ? last.seq + 1 : 1, 0);
+            this.publish(List.of(this.active), List.of());
+        }
+        this.sealed.addAll(found);
+        this.publishNextExpiry();
+
+        if (this.config.mmapReads()) {
+            for (final Segment segment : this.segments.values()) segment.map();
+        }
+    }
+
+    /**
+     * Reads the value of every live record in log order and applies it to the secondary indexes,
+     * which live in memory only. Hints hold no values, so this reads the segments themselves.
+     */
+    private void buildSecondaryIndexes() throws IOException {
+        if (this.secondaryIndexes.isEmpty()) return;
+        final long[] locations = new long[this.index.size()];
+        final int[] count = {0};
+        this.index.forEachLocation(location -> locations[count[0]++] = location);
+        Arrays.sort(locations);
+
+        int readerSegmentId = -1;
+        Segment.RecordReader reader = null;
+        for (final long location : locations) {
+            final int segmentId = Segment.segmentId(location);
+            if (segmentId != readerSegmentId) {
+                reader = this.segments.get(segmentId).new RecordReader();
+                readerSegmentId = segmentId;
+            }
+            reader.read(Segment.offset(location), true, this.config.verifyChecksums());
+            final V value = this.valueEncoder.decode(reader.value);
+            this.indexValue(IndexKey.stored(this.keyEncoder, reader.keyBytes), value, reader.expiresAt);
+        }
+    }
+
+    private static int compareNames(long[] a, long[] b) {
+        final int bySeq = Long.compare(a[0], b[0]);
+        return bySeq != 0 ? bySeq : Long.compare(a[1], b[1]);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // tried again on the next startup
+        }
+    }
+
+    /**
+     * Drops everything from the first damaged record of a segment on. The hint, if any, only
+     * covers records before it, so it stays valid.
+     */
+    private void truncate(Segment segment, long end) throws IOException {
+        final long dropped = segment.size - end;
+        segment.channel.truncate(end);
+        segment.size = end;
+        this.logger.warning(() -> "Dropped " + dropped + " bytes of torn or corrupt records at the end of "
+                + segment.path + " (kept " + end + " bytes)");
+    }
+
+    // -------------------------------------------------------------------------
+    // Segments
+    // -------------------------------------------------------------------------
+
+    private Segment openSegment(long seq, int gen) throws IOException {
+        return new Segment(this.nextSegmentId.getAndIncrement(), seq, gen, this.path.resolve(Segment.fileName(seq, gen)));
+    }
+
+    private Segment segmentOf(long location) {
+        return this.segments.get(Segment.segmentId(location));
+    }
+
+    private void publish(Collection<Segment> added, Collection<Segment> removed) {
+        final Int2ObjectMap<Segment> copy = new Int2ObjectOpenHashMap<>(this.segments);
+        for (final Segment segment : added) copy.put(segment.id, segment);
+        for (final Segment segment : removed) copy.remove(segment.id);
+        this.segments = copy;
+    }
+
+    private boolean runInBackground(Runnable action) {
+        try {
+            this.background.execute(action);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            // closing — whatever it was can be redone on the next startup
+            return false;
+        }
+    }
+
+    private void writeHintQuietly(Segment segment) {
+        try {
+            segment.writeHint();
+        } catch (IOException ex) {
+            // a missing hint only costs a scan of the segment on the next startup
+        }
+    }
+
+    private void closeSegmentsQuietly() {
+        for (final Segment segment : this.segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        // snapshots cannot outlive the repository
+        deleteSegments(this.retired);
+    }
+
+    // -------------------------------------------------------------------------
+    // File lock
+    // -------------------------------------------------------------------------
+
+    private void acquireFileLock() throws IOException {
+        this.lockChannel = FileChannel.open(this.path.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        this.fileLock = this.lockChannel.tryLock(0, 1, false);
+        if (this.fileLock == null) {
+            this.lockChannel.close();
+            throw new IllegalStateException("Directory is already in use: " + this.path);
+        }
+    }
+
+    private void releaseFileLock() {
+        try {
+            if (this.fileLock != null && this.fileLock.isValid()) this.fileLock.release();
+            if (this.lockChannel != null) this.lockChannel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // IO helpers
+    // -------------------------------------------------------------------------
+
+    private static void transferFully(FileChannel src, long srcPos, long length, FileChannel dst) throws IOException {
+        long done = 0;
         while (done < length) {
-            final int toRead = Math.min(CHUNK_SIZE, length - done);
-            chunk.clear().limit(toRead);
-            long rp = srcPos + done;
-            while (chunk.hasRemaining()) {
-                final int n = src.read(chunk, rp);
-                if (n < 0) throw new IOException("Unexpected end of file during compaction at " + rp);
-                rp += n;
-            }
-            chunk.flip();
-            long wp = dstPos + done;
-            while (chunk.hasRemaining()) {
-                wp += dst.write(chunk, wp);
-            }
-            done += toRead;
+            final long n = src.transferTo(srcPos + done, length - done, dst);
+            if (n <= 0) throw new IOException("Unexpected end of file during compaction at " + (srcPos + done));
+            done += n;
         }
     }
 }
@@ -0,0 +1,72 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * When a {@link KVRepository} forces written records to the storage device.
+ *
+ * <p>Writes are grouped into batches of up to {@link RepositoryConfig#batchSize()} records,
+ * and one {@code fsync} covers everything written since the previous one:
+ * <ul>
+ *     <li>{@link #none()} — never forces; records reach the disk whenever the OS flushes
+ *     its page cache. A crash of the machine (not just the process) can lose recent writes.</li>
+ *     <li>{@link #every(Duration)} — forces at most once per interval, bounding how much
+ *     can be lost while keeping the cost independent of the write rate.</li>
+ *     <li>{@link #everyBatch()} — forces after every batch, so nothing acknowledged is ever lost.</li>
+ * </ul>
+ *
+ * <p>Futures returned by {@link KVRepository#saveAsync} and {@link KVRepository#deleteAsync}
+ * complete once the write is durable under the chosen policy — for {@link #none()}, as soon
+ * as it has been handed to the OS.
+ *
+ * @param mode           the policy
+ * @param intervalMillis the interval between forces for {@link Mode#INTERVAL}, otherwise {@code 0}
+ */
+public record Durability(@NotNull Mode mode, long intervalMillis) {
+
+    private static final Durability NONE = new Durability(Mode.NONE, 0);
+    private static final Durability EVERY_BATCH = new Durability(Mode.BATCH, 0);
+
+    public enum Mode {
+        NONE,
+        INTERVAL,
+        BATCH
+    }
+
+    public Durability {
+        Objects.requireNonNull(mode, "mode");
+        if (mode == Mode.INTERVAL ? intervalMillis < 1 : intervalMillis != 0)
+            throw new IllegalArgumentException("intervalMillis must be >= 1 for INTERVAL and 0 otherwise");
+    }
+
+    /**
+     * Never forces writes to the device.
+     *
+     * @return the no-fsync policy
+     */
+    public static Durability none() {
+        return NONE;
+    }
+
+    /**
+     * Forces written records at most once per {@code interval}.
+     *
+     * @param interval time between forces, at least one millisecond
+     * @return the interval policy
+     */
+    public static Durability every(@NotNull Duration interval) {
+        return new Durability(Mode.INTERVAL, interval.toMillis());
+    }
+
+    /**
+     * Forces written records after every batch.
+     *
+     * @return the per-batch policy
+     */
+    public static Durability everyBatch() {
+        return EVERY_BATCH;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Encoders of keys made of one or two {@code long}s, which repositories index by value.
+ * The instances are published through {@link KeyEncoders}.
+ */
+abstract sealed class FixedKeyEncoder<K> implements BufferEncoder<K> {
+
+    static final FixedKeyEncoder<Long> LONG_KEYS = new LongKeys();
+    static final FixedKeyEncoder<UUID> UUID_KEYS = new UuidKeys();
+
+    // longs per key
+    final int width;
+
+    private FixedKeyEncoder(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Builds the key without encoding it.
+     */
+    abstract IndexKey key(K key);
+
+    /**
+     * Builds the key of bytes read from the log.
+     *
+     * @throws IllegalStateException if they are not {@code width} longs, so the log was not
+     *                               written with this encoder
+     */
+    final IndexKey stored(byte @NotNull [] bytes) {
+        if (bytes.length != this.width * Long.BYTES) {
+            throw new IllegalStateException("Found a key of " + bytes.length + " bytes where "
+                    + this.width * Long.BYTES + "-byte keys are expected; was the log written with another key encoder?");
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        return this.width == 1 ? IndexKey.of(buf.getLong()) : IndexKey.of(buf.getLong(), buf.getLong());
+    }
+
+    @Override
+    public final int sizeHint(K key) {
+        return this.width * Long.BYTES;
+    }
+
+    private static final class LongKeys extends FixedKeyEncoder<Long> {
+
+        LongKeys() {
+            super(1);
+        }
+
+        @Override
+        IndexKey key(Long key) {
+            return IndexKey.of(key.longValue());
+        }
+
+        @Override
+        public void encode(Long key, @NotNull ByteBuffer target) {
+            target.putLong(key);
+        }
+
+        @Override
+        public Long decode(@NotNull ByteBuffer source) {
+            return source.getLong();
+        }
+    }
+
+    private static final class UuidKeys extends FixedKeyEncoder<UUID> {
+
+        UuidKeys() {
+            super(2);
+        }
+
+        @Override
+        IndexKey key(UUID key) {
+            return IndexKey.of(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        }
+
+        @Override
+        public void encode(UUID key, @NotNull ByteBuffer target) {
+            target.putLong(key.getMostSignificantBits());
+            target.putLong(key.getLeastSignificantBits());
+        }
+
+        @Override
+        public UUID decode(@NotNull ByteBuffer source) {
+            return new UUID(source.getLong(), source.getLong());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link OffsetIndex} on the Java heap for the keys of {@link KeyEncoders}, made of one or two
+ * {@code long}s.
+ * <p>
+ * The same open addressing scheme as {@link HeapOffsetIndex}, but a slot holds the key's
+ * {@code long}s in a primitive array instead of a key object, so a probe compares numbers
+ * without following a reference and a key costs no object of its own. A slot is free while
+ * its location is {@link #FREE}; it is published by a release write of its location after its
+ * key, which never changes afterwards. Removed keys keep their slot with location {@code -1}.
+ * <p>
+ * fastutil's {@code Long2LongOpenHashMap} would hold one-long keys as compactly, but readers probe
+ * without a lock while the writer inserts and grows the table, and its maps do not allow that.
+ */
+final class FixedKeyOffsetIndex implements OffsetIndex {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // never a location: segment ids are not negative
+    private static final long FREE = Long.MIN_VALUE;
+
+    private static final VarHandle LOCATIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final class Table {
+
+        final long[] keys; // width longs per slot
+        final long[] locations;
+        final int[] sizes; // writer thread only
+        final int mask;
+        final int threshold;
+
+        Table(int capacity, int width) {
+            this.keys = new long[capacity * width];
+            this.locations = new long[capacity];
+            Arrays.fill(this.locations, FREE);
+            this.sizes = new int[capacity];
+            this.mask = capacity - 1;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+    }
+
+    private final int width;
+    private volatile Table table;
+    private int used; // occupied slots, including removed ones
+    private int live;
+
+    /**
+     * @param width {@code long}s per key, {@code 1} or {@code 2}
+     */
+    FixedKeyOffsetIndex(int width) {
+        this.width = width;
+        this.table = new Table(MIN_CAPACITY, width);
+    }
+
+    // -------------------------------------------------------------------------
+    // Readers
+    // -------------------------------------------------------------------------
+
+    @Override
+    public long get(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            final long location = (long) LOCATIONS.getAcquire(table.locations, i);
+            if (location == FREE) return ABSENT;
+            if (this.matches(table, i, key)) return location;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Writer
+    // -------------------------------------------------------------------------
+
+    @Override
+    public int sizeOf(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        return i < 0 || table.locations[i] == ABSENT ? 0 : table.sizes[i];
+    }
+
+    @Override
+    public long put(@NotNull IndexKey key, long location, int recordSize) {
+        Table table = this.table;
+        int i = this.find(table, key);
+        if (i >= 0) {
+            final long old = table.locations[i];
+            if (old == ABSENT) this.live++;
+            table.sizes[i] = recordSize;
+            LOCATIONS.setRelease(table.locations, i, location);
+            return old;
+        }
+
+        if (this.used >= table.threshold) {
+            table = this.rebuild();
+        }
+        i = freeSlot(table, key.hashCode());
+        switch (key) {
+            case IndexKey.OfLong k when this.width == 1 -> table.keys[i] = k.value;
+            case IndexKey.OfUuid k when this.width == 2 -> {
+                table.keys[2 * i] = k.mostSigBits;
+                table.keys[2 * i + 1] = k.leastSigBits;
+            }
+            default -> throw new IllegalArgumentException("Not a key of " + this.width + " long(s): " + key.length() + " bytes");
+        }
+        table.sizes[i] = recordSize;
+        LOCATIONS.setRelease(table.locations, i, location);
+        this.used++;
+        this.live++;
+        return ABSENT;
+    }
+
+    @Override
+    public boolean replace(@NotNull IndexKey key, long expected, long location) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        if (i < 0 || table.locations[i] != expected || expected == ABSENT) return false;
+        LOCATIONS.setRelease(table.locations, i, location);
+        return true;
+    }
+
+    @Override
+    public long remove(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        if (i < 0) return ABSENT;
+        final long old = table.locations[i];
+        if (old != ABSENT) {
+            this.live--;
+            table.sizes[i] = 0;
+            LOCATIONS.setRelease(table.locations, i, ABSENT);
+        }
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return this.live;
+    }
+
+    @Override
+    public void forEachLocation(@NotNull LongConsumer action) {
+        final Table table = this.table;
+        for (final long location : table.locations) {
+            if (location != FREE && location != ABSENT) action.accept(location);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Internals
+    // -------------------------------------------------------------------------
+
+    private boolean matches(Table table, int i, IndexKey key) {
+        return switch (key) {
+            case IndexKey.OfLong k -> this.width == 1 && table.keys[i] == k.value;
+            case IndexKey.OfUuid k -> this.width == 2 && table.keys[2 * i] == k.mostSigBits && table.keys[2 * i + 1] == k.leastSigBits;
+            case IndexKey.OfBytes k -> false;
+        };
+    }
+
+    private int find(Table table, IndexKey key) {
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            if (table.locations[i] == FREE) return -1;
+            if (this.matches(table, i, key)) return i;
+        }
+    }
+
+    private static int freeSlot(Table table, int hash) {
+        int i = spread(hash) & table.mask;
+        while (table.locations[i] != FREE) {
+            i = (i + 1) & table.mask;
+        }
+        return i;
+    }
+
+    private int hashAt(Table table, int i) {
+        return this.width == 1
+                ? IndexKey.hash(1, table.keys[i])
+                : IndexKey.hash(IndexKey.hash(1, table.keys[2 * i]), table.keys[2 * i + 1]);
+    }
+
+    /**
+     * Copies the live entries into a fresh table — twice as large unless most of the
+     * occupied slots were removed keys — and publishes it.
+     */
+    private Table rebuild() {
+        final Table old = this.table;
+        final int oldCapacity = old.locations.length;
+        final int capacity = this.live >= oldCapacity / 2 ? oldCapacity << 1 : oldCapacity;
+        final Table table = new Table(capacity, this.width);
+        for (int j = 0; j < oldCapacity; j++) {
+            final long location = old.locations[j];
+            if (location == FREE || location == ABSENT) continue;
+            final int i = freeSlot(table, this.hashAt(old, j));
+            System.arraycopy(old.keys, j * this.width, table.keys, i * this.width, this.width);
+            table.locations[i] = location;
+            table.sizes[i] = old.sizes[j];
+        }
+        this.used = this.live;
+        this.table = table;
+        return table;
+    }
+
+    private static int spread(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link OffsetIndex} kept on the Java heap.
+ * <p>
+ * Open addressing with linear probing. A slot's key is published with release semantics after
+ * its location, so a reader that sees the key also sees a valid location. Locations are updated
+ * in place with release writes. Removing a key leaves the key in its slot and sets the location
+ * to {@code -1}, so probe chains are never broken under a concurrent reader; those slots are
+ * dropped the next time the table is rebuilt.
+ * <p>
+ * Growing builds a complete new table and publishes it through a volatile field. Readers that
+ * still hold the old table see a consistent, possibly slightly stale, snapshot — the old table
+ * is never written to again.
+ */
+final class HeapOffsetIndex implements OffsetIndex {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(IndexKey[].class);
+    private static final VarHandle LOCATIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final class Table {
+
+        final IndexKey[] keys;
+        final long[] locations;
+        final int[] sizes; // writer thread only
+        final int mask;
+        final int threshold;
+
+        Table(int capacity) {
+            this.keys = new IndexKey[capacity];
+            this.locations = new long[capacity];
+            this.sizes = new int[capacity];
+            this.mask = capacity - 1;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+    }
+
+    private volatile Table table;
+    private int used; // occupied slots, including removed ones
+    private int live;
+
+    HeapOffsetIndex() {
+        this.table = new Table(MIN_CAPACITY);
+    }
+
+    // -------------------------------------------------------------------------
+    // Readers
+    // -------------------------------------------------------------------------
+
+    @Override
+    public long get(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            final IndexKey slot = (IndexKey) KEYS.getAcquire(table.keys, i);
+            if (slot == null) return ABSENT;
+            if (slot.hashCode() == hash && slot.equals(key)) {
+                return (long) LOCATIONS.getAcquire(table.locations, i);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Writer
+    // -------------------------------------------------------------------------
+
+    @Override
+    public int sizeOf(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        return i < 0 || table.locations[i] == ABSENT ? 0 : table.sizes[i];
+    }
+
+    @Override
+    public long put(@NotNull IndexKey key, long location, int recordSize) {
+        Table table = this.table;
+        int i = this.find(table, key);
+        if (i >= 0) {
+            final long old = table.locations[i];
+            if (old == ABSENT) this.live++;
+            table.sizes[i] = recordSize;
+            LOCATIONS.setRelease(table.locations, i, location);
+            return old;
+        }
+
+        if (this.used >= table.threshold) {
+            table = this.rebuild();
+        }
+        i = freeSlot(table, key.hashCode());
+        table.sizes[i] = recordSize;
+        table.locations[i] = location;
+        KEYS.setRelease(table.keys, i, key);
+        this.used++;
+        this.live++;
+        return ABSENT;
+    }
+
+    @Override
+    public boolean replace(@NotNull IndexKey key, long expected, long location) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        if (i < 0 || table.locations[i] != expected || expected == ABSENT) return false;
+        LOCATIONS.setRelease(table.locations, i, location);
+        return true;
+    }
+
+    @Override
+    public long remove(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int i = this.find(table, key);
+        if (i < 0) return ABSENT;
+        final long old = table.locations[i];
+        if (old != ABSENT) {
+            this.live--;
+            table.sizes[i] = 0;
+            LOCATIONS.setRelease(table.locations, i, ABSENT);
+        }
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return this.live;
+    }
+
+    @Override
+    public void forEachLocation(@NotNull LongConsumer action) {
+        final Table table = this.table;
+        for (int i = 0; i < table.keys.length; i++) {
+            if (table.keys[i] != null && table.locations[i] != ABSENT) action.accept(table.locations[i]);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Internals
+    // -------------------------------------------------------------------------
+
+    private int find(Table table, IndexKey key) {
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            final IndexKey slot = table.keys[i];
+            if (slot == null) return -1;
+            if (slot.hashCode() == hash && slot.equals(key)) return i;
+        }
+    }
+
+    private static int freeSlot(Table table, int hash) {
+        int i = spread(hash) & table.mask;
+        while (table.keys[i] != null) {
+            i = (i + 1) & table.mask;
+        }
+        return i;
+    }
+
+    /**
+     * Copies the live entries into a fresh table — twice as large unless most of the
+     * occupied slots were removed keys — and publishes it.
+     */
+    private Table rebuild() {
+        final Table old = this.table;
+        final int capacity = this.live >= old.keys.length / 2 ? old.keys.length << 1 : old.keys.length;
+        final Table table = new Table(capacity);
+        for (int j = 0; j < old.keys.length; j++) {
+            final IndexKey key = old.keys[j];
+            if (key == null || old.locations[j] == ABSENT) continue;
+            final int i = freeSlot(table, key.hashCode());
+            table.keys[i] = key;
+            table.locations[i] = old.locations[j];
+            table.sizes[i] = old.sizes[j];
+        }
+        this.used = this.live;
+        this.table = table;
+        return table;
+    }
+
+    private static int spread(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A key as a repository holds it in memory — in the index, the write overlay and the cache.
+ * <p>
+ * In the log a key is the bytes its encoder produced, and every key hashes and compares as
+ * those bytes, whatever it holds. The hash is {@link Arrays#hashCode(byte[])} of them; it also
+ * picks the shard of a key, so it must not change. Keys of the {@link KeyEncoders} keep their
+ * {@code long}s instead of an array: they are built without running an encoder, compare with
+ * one or two {@code long} comparisons and produce their bytes only when a record is written.
+ */
+abstract sealed class IndexKey permits IndexKey.OfBytes, IndexKey.OfLong, IndexKey.OfUuid {
+
+    private final int hash;
+
+    private IndexKey(int hash) {
+        this.hash = hash;
+    }
+
+    static IndexKey of(byte @NotNull [] bytes) {
+        return new OfBytes(bytes);
+    }
+
+    static IndexKey of(long value) {
+        return new OfLong(value);
+    }
+
+    static IndexKey of(long mostSigBits, long leastSigBits) {
+        return new OfUuid(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Builds the key of {@code key} — from its {@code long}s for the {@link KeyEncoders}, from
+     * its encoded bytes otherwise.
+     */
+    static <K> IndexKey of(@NotNull BufferEncoder<K> encoder, K key) {
+        if (encoder instanceof FixedKeyEncoder<K> fixed) return fixed.key(key);
+        return new OfBytes(ArrayBufferEncoder.toArray(encoder, key));
+    }
+
+    /**
+     * Builds the key of bytes read from the log, in the form {@link #of(BufferEncoder, Object)} builds.
+     */
+    static IndexKey stored(@NotNull BufferEncoder<?> encoder, byte @NotNull [] bytes) {
+        if (encoder instanceof FixedKeyEncoder<?> fixed) return fixed.stored(bytes);
+        return new OfBytes(bytes);
+    }
+
+    /**
+     * Returns the bytes of the key as stored. Keys holding {@code long}s build a new array on
+     * every call; the array of any other key must not be modified.
+     */
+    abstract byte[] bytes();
+
+    abstract int length();
+
+    /**
+     * Returns whether the {@link #length()} bytes of the big-endian {@code buf} at {@code offset}
+     * are the bytes of this key.
+     */
+    abstract boolean matches(ByteBuffer buf, int offset);
+
+    abstract boolean sameBytes(IndexKey other);
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IndexKey other) || other.hash != this.hash) return false;
+        return this.sameBytes(other);
+    }
+
+    @Override
+    public final int hashCode() {
+        return this.hash;
+    }
+
+    /**
+     * Continues {@link Arrays#hashCode(byte[])} over the eight big-endian bytes of {@code value}.
+     */
+    static int hash(int hash, long value) {
+        int h = hash;
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            h = 31 * h + (byte) (value >>> shift);
+        }
+        return h;
+    }
+
+    // -------------------------------------------------------------------------
+    // Forms
+    // -------------------------------------------------------------------------
+
+    static final class OfBytes extends IndexKey {
+
+        final byte[] data;
+
+        private OfBytes(byte[] data) {
+            super(Arrays.hashCode(data));
+            this.data = data;
+        }
+
+        @Override
+        byte[] bytes() {
+            return this.data;
+        }
+
+        @Override
+        int length() {
+            return this.data.length;
+        }
+
+        @Override
+        boolean matches(ByteBuffer buf, int offset) {
+            return buf.slice(offset, this.data.length).mismatch(ByteBuffer.wrap(this.data)) == -1;
+        }
+
+        @Override
+        boolean sameBytes(IndexKey other) {
+            return Arrays.equals(this.data, other.bytes());
+        }
+    }
+
+    static final class OfLong extends IndexKey {
+
+        final long value;
+
+        private OfLong(long value) {
+            super(hash(1, value));
+            this.value = value;
+        }
+
+        @Override
+        byte[] bytes() {
+            return ByteBuffer.allocate(Long.BYTES).putLong(this.value).array();
+        }
+
+        @Override
+        int length() {
+            return Long.BYTES;
+        }
+
+        @Override
+        boolean matches(ByteBuffer buf, int offset) {
+            return buf.getLong(offset) == this.value;
+        }
+
+        @Override
+        boolean sameBytes(IndexKey other) {
+            if (other instanceof OfLong key) return key.value == this.value;
+            return Arrays.equals(this.bytes(), other.bytes());
+        }
+    }
+
+    static final class OfUuid extends IndexKey {
+
+        final long mostSigBits;
+        final long leastSigBits;
+
+        private OfUuid(long mostSigBits, long leastSigBits) {
+            super(hash(hash(1, mostSigBits), leastSigBits));
+            this.mostSigBits = mostSigBits;
+            this.leastSigBits = leastSigBits;
+        }
+
+        @Override
+        byte[] bytes() {
+            return ByteBuffer.allocate(2 * Long.BYTES).putLong(this.mostSigBits).putLong(this.leastSigBits).array();
+        }
+
+        @Override
+        int length() {
+            return 2 * Long.BYTES;
+        }
+
+        @Override
+        boolean matches(ByteBuffer buf, int offset) {
+            return buf.getLong(offset) == this.mostSigBits && buf.getLong(offset + Long.BYTES) == this.leastSigBits;
+        }
+
+        @Override
+        boolean sameBytes(IndexKey other) {
+            if (other instanceof OfUuid key) return key.mostSigBits == this.mostSigBits && key.leastSigBits == this.leastSigBits;
+            return Arrays.equals(this.bytes(), other.bytes());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A repository that can also be addressed by {@link IndexKey}, for callers that build keys
+ * without going through the key encoder.
+ */
+interface IndexKeyRepository<K, V> extends KVRepository<K, V> {
+
+    Optional<V> load(IndexKey indexKey);
+
+    /**
+     * Saves {@code value}, or deletes the key if it is {@code null}.
+     *
+     * @param expiresAt epoch millis after which the value counts as absent, or {@code 0}
+     * @param future    completed once the write is durable, or {@code null}
+     */
+    void write(IndexKey indexKey, V value, long expiresAt, CompletableFuture<Void> future);
+}
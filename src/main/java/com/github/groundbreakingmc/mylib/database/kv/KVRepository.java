@@ -3,8 +3,19 @@ package com.github.groundbreakingmc.mylib.database.kv;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  * A disk-backed key-value store.
@@ -12,7 +23,7 @@ import java.util.function.Function;
  * <p>Obtain an instance via {@link #builder()}:
  * <pre>{@code
  * Repository<UUID, Player> players = Repository.<UUID, Player>builder()
- *     .path(Path.of("players.db"))
+ *     .path(Path.of("players"))
  *     .keyEncoder(uuid -> encodeUuid(uuid), bytes -> decodeUuid(bytes))
  *     .valueEncoder(PlayerEncoder.INSTANCE)
  *     .build();
@@ -24,10 +35,15 @@ import java.util.function.Function;
  *
  * <p>Writes are asynchronous — {@link #save} and {@link #delete} return immediately
  * and are flushed to disk by a background writer thread. Reads always reflect the
- * latest saved state visible to the in-memory index.
+ * latest {@code save} or {@code delete}, even while it is still waiting to be written.
+ * The number of waiting writes is bounded by {@link RepositoryConfig#writeQueueCapacity()};
+ * beyond it, {@link RepositoryConfig#overflowPolicy()} applies.
  *
- * <p>Only one instance may open the same file at a time. Attempting to open an
- * already-locked file throws {@link IllegalStateException}.
+ * <p>The data lives in a directory of log segments. Old segments are compacted in the
+ * background without pausing writes.
+ *
+ * <p>Only one instance may open the same directory at a time. Attempting to open an
+ * already-locked directory throws {@link IllegalStateException}.
  *
  * @param <K> key type
  * @param <V> value type
@@ -50,28 +66,191 @@ public interface KVRepository<K, V> {
      *
      * <p>If a value for the key already exists it will be overwritten.
      * The write is queued and flushed asynchronously by the background writer thread.
-     * If a cache is enabled, the value is immediately visible via {@link #load}.
+     * The value is immediately visible via {@link #load}, with or without a cache.
      *
      * @param key   the key, not null
      * @param value the value, not null
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
      */
     void save(@NotNull K key, @NotNull V value);
 
+    /**
+     * Saves the given key-value pair like {@link #save}, for a limited time.
+     *
+     * <p>Once {@code ttl} has passed, {@link #load} and iteration treat the key as absent.
+     * The record itself is dropped by compaction, or replaced by a tombstone written by a
+     * background sweeper every {@link RepositoryConfig#sweepIntervalMillis()}. Saving the key
+     * again replaces the expiry, and a plain {@link #save} removes it.
+     *
+     * @param key   the key, not null
+     * @param value the value, not null
+     * @param ttl   how long the entry lives, positive
+     * @throws IllegalArgumentException   if {@code ttl} is zero or negative
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
+     */
+    void save(@NotNull K key, @NotNull V value, @NotNull Duration ttl);
+
+    /**
+     * Saves the given key-value pair like {@link #save}, and reports when it is durable.
+     *
+     * <p>The returned future completes once the batch containing the write has been
+     * written and forced as required by {@link RepositoryConfig#durability()}, or
+     * completes exceptionally if that failed. Writes in the same batch share one fsync.
+     * A write rejected by the {@link OverflowPolicy} completes it exceptionally with a
+     * {@link RejectedExecutionException} right away.
+     *
+     * @param key   the key, not null
+     * @param value the value, not null
+     * @return a future completed once the write is durable
+     */
+    CompletableFuture<Void> saveAsync(@NotNull K key, @NotNull V value);
+
+    /**
+     * Saves all given key-value pairs.
+     *
+     * <p>Behaves like calling {@link #save} for every entry, but the whole map is queued
+     * as one task and written with a single write.
+     *
+     * @param entries the pairs to save, not null
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the writes
+     */
+    void saveAll(@NotNull Map<? extends K, ? extends V> entries);
+
     /**
      * Deletes the value associated with the given key.
      *
-     * <p>A tombstone record is appended to the file and the key is removed
-     * from the in-memory index and cache immediately. The on-disk tombstone
+     * <p>A tombstone record is appended to the log and the key is hidden from
+     * {@link #load} immediately. The on-disk tombstone
      * is cleaned up during the next compaction.
      *
      * @param key the key to delete, not null
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
      */
     void delete(@NotNull K key);
 
+    /**
+     * Deletes the value associated with the given key like {@link #delete}, and reports
+     * when the deletion is durable.
+     *
+     * @param key the key to delete, not null
+     * @return a future completed once the tombstone is durable
+     * @see #saveAsync
+     */
+    CompletableFuture<Void> deleteAsync(@NotNull K key);
+
+    /**
+     * Deletes the values associated with all given keys.
+     *
+     * <p>Behaves like calling {@link #delete} for every key, but all tombstones are queued
+     * as one task and written with a single write.
+     *
+     * @param keys the keys to delete, not null
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the writes
+     */
+    void deleteAll(@NotNull Collection<? extends K> keys);
+
+    /**
+     * Applies the writes of {@code batch} together.
+     *
+     * <p>The writes become visible via {@link #load} right away, like separate calls to
+     * {@link #save} and {@link #delete}, but reach the log as one contiguous append framed by
+     * begin and commit markers: after a crash, either all of them are found or none.
+     * Only the last write per key is stored.
+     *
+     * <p>With {@link Builder#shards} greater than one, only a single shard can append the batch
+     * atomically, so every key in it has to map to the same shard.
+     *
+     * @param batch the writes to apply, not null
+     * @throws IllegalArgumentException   if the keys of the batch map to more than one shard
+     * @throws RejectedExecutionException if the write queue has no room for the whole batch and the
+     *                                    {@link OverflowPolicy} is not {@link OverflowPolicy#BLOCK};
+     *                                    a batch is never coalesced in part
+     */
+    void commit(@NotNull WriteBatch<K, V> batch);
+
+    /**
+     * Applies the writes of {@code batch} together like {@link #commit}, and reports when they
+     * are durable.
+     *
+     * @param batch the writes to apply, not null
+     * @return a future completed once the batch is durable
+     * @throws IllegalArgumentException if the keys of the batch map to more than one shard
+     * @see #saveAsync
+     */
+    CompletableFuture<Void> commitAsync(@NotNull WriteBatch<K, V> batch);
+
+    /**
+     * Loads the value associated with the given key along with its {@link Versioned#version()},
+     * for a later {@link #compareAndSave}.
+     *
+     * <p>Reads like {@link #load}, without any locking. Only if a write for the key is still queued,
+     * and so has no version yet, the lookup waits for the writer thread to get to it.
+     *
+     * @param key the key to look up, not null
+     * @return the value and its version, or empty if not found
+     */
+    Optional<Versioned<V>> loadVersioned(@NotNull K key);
+
+    /**
+     * Saves the given key-value pair only if the key is still at {@code expectedVersion}.
+     *
+     * <p>The check and the save happen together on the writer thread, in order with every write
+     * queued before; this call waits for the outcome. A successful save is durable as with
+     * {@link #save}.
+     * <pre>{@code
+     * Optional<Versioned<Balance>> current = balances.loadVersioned(uuid);
+     * long version = current.map(Versioned::version).orElse(Versioned.ABSENT);
+     * Balance next = current.map(Versioned::value).orElse(Balance.ZERO).plus(amount);
+     * if (!balances.compareAndSave(uuid, version, next)) {
+     *     // someone else got there first — load again and retry
+     * }
+     * }</pre>
+     *
+     * @param key             the key, not null
+     * @param expectedVersion the version returned by {@link #loadVersioned}, or {@link Versioned#ABSENT}
+     *                        to save only if the key has no value
+     * @param value           the value, not null
+     * @return whether the value was saved
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    is not {@link OverflowPolicy#BLOCK}
+     * @throws IllegalStateException      if the repository is closed, or called from a
+     *                                    {@link #compute} function
+     */
+    boolean compareAndSave(@NotNull K key, long expectedVersion, @NotNull V value);
+
+    /**
+     * Replaces the value associated with the given key by what {@code remappingFunction} makes of it,
+     * like {@link Map#compute}.
+     *
+     * <p>The function runs on the writer thread, once every write queued before this call is
+     * written, so nothing can change the key between reading and saving its value and there is
+     * nothing to retry. It gets the current value, or {@code null} if there is none, and returns
+     * the new one, which is saved without a time-to-live; a {@code null} result deletes the key.
+     * All writes of the repository wait while it runs, so it should be quick, and it must not
+     * use the repository itself: a write it makes throws {@link IllegalStateException}.
+     *
+     * <p>An exception thrown by the function is rethrown here, and the key is left as it was.
+     *
+     * @param key               the key, not null
+     * @param remappingFunction computes the new value from the key and its current value, not null
+     * @return the new value, or empty if the key has none now
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    is not {@link OverflowPolicy#BLOCK}
+     * @throws IllegalStateException      if the repository is closed, or called from a
+     *                                    {@link #compute} function
+     */
+    Optional<V> compute(@NotNull K key, @NotNull BiFunction<? super K, ? super V, ? extends V> remappingFunction);
+
     /**
      * Loads the value associated with the given key.
      *
-     * <p>If a cache is enabled and the value is present there, no disk I/O occurs.
+     * <p>If a write for the key is still queued, or a cache is enabled and the value
+     * is present there, no disk I/O occurs.
      * Otherwise the value is read from the disk by seeking directly to the stored offset.
      *
      * @param key the key to look up, not null
@@ -79,6 +258,124 @@ public interface KVRepository<K, V> {
      */
     Optional<V> load(@NotNull K key);
 
+    /**
+     * Loads the values associated with the given keys.
+     *
+     * <p>Values found in the queued writes or the cache are returned directly; the rest
+     * are read in file order, so a large lookup reads the disk sequentially.
+     *
+     * @param keys the keys to look up, not null
+     * @return the found values by key; keys without a value are absent from the map
+     */
+    Map<K, V> loadAll(@NotNull Collection<? extends K> keys);
+
+    /**
+     * Passes every stored key to {@code action}.
+     *
+     * <p>Like all iteration methods, this works on a snapshot taken when it is called: it sees
+     * every write issued before the call and none issued after, even while compaction runs.
+     * Keys come in log order, which reads the files sequentially.
+     *
+     * @param action called once per key, not null
+     */
+    void forEachKey(@NotNull Consumer<? super K> action);
+
+    /**
+     * Passes every stored key and its value to {@code action}, in log order.
+     *
+     * <p>Values are read from disk without going through or filling the cache.
+     *
+     * @param action called once per entry, not null
+     * @see #forEachKey
+     */
+    void forEach(@NotNull BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Returns a lazy stream of every stored entry, in log order.
+     *
+     * <p>The snapshot behind the stream keeps the files it reads from on disk, even after
+     * compaction replaced them, until the stream is closed or fully consumed. Use it in a
+     * try-with-resources block when it may be abandoned halfway:
+     * <pre>{@code
+     * try (Stream<Map.Entry<UUID, Home>> homes = repository.stream()) {
+     *     homes.filter(e -> e.getValue().world().equals("world_nether")).forEach(...);
+     * }
+     * }</pre>
+     *
+     * @return a stream of the entries at the time of the call
+     * @see #forEachKey
+     */
+    Stream<Map.Entry<K, V>> stream();
+
+    /**
+     * Returns a lazy stream of the entries whose encoded key starts with {@code prefix}, in log order.
+     *
+     * <p>Useful with key encoders that put a common component first, such as a world name.
+     * Every key is still read, but values are only read for matching keys.
+     *
+     * @param prefix the leading bytes of the encoded keys to return, not null
+     * @return a stream of the matching entries at the time of the call; close it like {@link #stream()}
+     */
+    Stream<Map.Entry<K, V>> scanPrefix(byte @NotNull [] prefix);
+
+    /**
+     * Returns the keys whose values the index named {@code indexName} maps to {@code value}.
+     *
+     * <p>Like {@link #load}, the result reflects every {@code save} and {@code delete} issued before
+     * the call: while writes are queued, the lookup waits for the writer thread to index them,
+     * otherwise it takes no lock and reads nothing from disk. Expired entries are left out.
+     * <pre>{@code
+     * Set<UUID> members = players.findBy("clan", clanId);
+     * }</pre>
+     *
+     * <p>With {@link Builder#shards} greater than one, every shard is asked.
+     *
+     * @param indexName the name the index was declared with by {@link Builder#index}, not null
+     * @param value     the indexed value to look for, compared with {@code equals}, not null
+     * @return the matching keys, possibly empty; a new set the caller may modify
+     * @throws IllegalArgumentException if no index named {@code indexName} was declared
+     * @throws IllegalStateException    if writes are queued and the repository is closed
+     */
+    Set<K> findBy(@NotNull String indexName, @NotNull Object value);
+
+    /**
+     * Delivers every change from {@code fromOffset} on to {@code listener}: first the changes still
+     * in the log, then each save and delete as the writer thread appends it.
+     *
+     * <p>Changes arrive one at a time, in log order, on a thread of the subscription; a listener
+     * that throws is logged and keeps receiving. They are delivered once written, which may be
+     * before they are durable. The writer thread hands changes over without waiting: up to
+     * {@link RepositoryConfig#subscriberBufferSize()} wait for the listener, and a listener that
+     * falls further behind catches up by replaying the log from where it stopped.
+     *
+     * <p>The feed holds the changes that reached the log, not every call: of several writes to one
+     * key the writer thread takes in together, or that {@link OverflowPolicy#COALESCE} merges
+     * while they wait, only the last is written, so the values in between are never delivered.
+     * The last value of a key always is.
+     * <pre>{@code
+     * Subscription feed = balances.subscribe(ChangeEvent.LATEST, change ->
+     *     leaderboard.update(change.key(), change.deleted() ? null : change.value()));
+     * }</pre>
+     *
+     * <p>With {@link Builder#shards}, the changes of one shard arrive in log order, but those of
+     * different shards interleave as their writer threads append them, so offsets may arrive out of
+     * order. {@link Subscription#lastOffset()} is then an offset up to which every shard delivered
+     * its changes: resuming from right after it misses nothing, but may deliver again some changes
+     * of the shards that were further ahead.
+     *
+     * <p>The replay reads the log as compaction left it: a key overwritten within the compacted part
+     * shows up with its latest value only, and deletes compaction dropped are missing — the replay
+     * then ends in the current state of the store rather than its full history.
+     *
+     * @param fromOffset the {@link ChangeEvent#offset() offset} of the first change to deliver, {@code 0}
+     *                   to replay the whole log, or {@link ChangeEvent#LATEST} for new changes only
+     * @param listener   called once per change, not null
+     * @return the subscription, to be closed once the changes are no longer needed
+     * @throws IllegalArgumentException if {@code fromOffset} is negative
+     * @throws IllegalStateException    if the repository is closed
+     */
+    Subscription subscribe(long fromOffset, @NotNull Consumer<? super ChangeEvent<K, V>> listener);
+
     /**
      * Removes the value for the given key from the in-memory cache without
      * deleting it from disk. Useful for evicting large or stale entries.
@@ -90,7 +387,46 @@ public interface KVRepository<K, V> {
     void unloadFromCache(@NotNull K key);
 
     /**
-     * Flushes all pending writes and closes the underlying file.
+     * Returns the hit, miss and eviction counters of the value cache.
+     *
+     * <p>All counters are zero if caching is disabled.
+     *
+     * @return a snapshot of the cache counters
+     */
+    CacheStats cacheStats();
+
+    /**
+     * Returns the current statistics: queue depth, batching, log and dead bytes, compactions,
+     * disk read latency and the cache counters.
+     *
+     * <p>Cheap enough to call at any time; it never waits for the writer thread.
+     * With {@link Builder#shards} greater than one, the statistics of all shards are combined.
+     *
+     * @return a snapshot of the statistics
+     */
+    RepositoryStats stats();
+
+    /**
+     * Writes a consistent copy of the repository to {@code target} while it stays in use.
+     *
+     * <p>The copy holds every write issued before the call and none issued after, like
+     * {@link #forEachKey}. Segments that no longer change are hard-linked into {@code target}
+     * where the file system supports it, and copied otherwise; only the segment being written
+     * to is copied, up to where it ended at the time of the call. Compaction may run meanwhile.
+     * To restore, open {@code target} as a repository with the same shard count, or move its
+     * contents into place while the repository is closed.
+     *
+     * <p>With {@link Builder#shards} greater than one, each shard is copied from its own point
+     * in time, one after another.
+     *
+     * @param target a directory that does not exist yet or is empty, not null
+     * @throws IllegalArgumentException if {@code target} is not empty
+     * @throws RuntimeException         if the copy cannot be written
+     */
+    void snapshot(@NotNull Path target);
+
+    /**
+     * Flushes all pending writes and closes the underlying files.
      *
      * <p>Blocks until the background writer thread finishes processing all
      * queued tasks. After this call the repository must not be used.
@@ -106,20 +442,32 @@ public interface KVRepository<K, V> {
     interface Builder<K, V> {
 
         /**
-         * Sets the path to the data file. The file is created if it does not exist.
+         * Sets the path to the data directory. The directory is created if it does not exist.
          *
-         * @param path path to the data file, not null
+         * @param path path to the data directory, not null
          * @return this builder
          */
         Builder<K, V> path(@NotNull Path path);
 
         /**
-         * Sets the encoder used to serialize and deserialize keys.
+         * Sets the encoder used to serialize and deserialize keys. {@code long} and {@code UUID}
+         * keys are best stored with {@link KeyEncoders}, which the repository indexes by value.
+         *
+         * @param encoder key encoder, not null
+         * @return this builder
+         */
+        Builder<K, V> keyEncoder(@NotNull BufferEncoder<K> encoder);
+
+        /**
+         * Sets a byte array encoder used to serialize and deserialize keys.
          *
          * @param encoder key encoder, not null
          * @return this builder
+         * @see BufferEncoder#of
          */
-        Builder<K, V> keyEncoder(@NotNull KeyValueEncoder<K> encoder);
+        default Builder<K, V> keyEncoder(@NotNull KeyValueEncoder<K> encoder) {
+            return keyEncoder(BufferEncoder.of(encoder));
+        }
 
         /**
          * Sets the key encoder using separate encode and decode functions.
@@ -143,12 +491,24 @@ public interface KVRepository<K, V> {
         }
 
         /**
-         * Sets the encoder used to serialize and deserialize values.
+         * Sets the encoder used to serialize and deserialize values. The writer thread encodes
+         * into a reused direct buffer, and loads decode from the memory the record was read into.
          *
          * @param encoder value encoder, not null
          * @return this builder
          */
-        Builder<K, V> valueEncoder(@NotNull KeyValueEncoder<V> encoder);
+        Builder<K, V> valueEncoder(@NotNull BufferEncoder<V> encoder);
+
+        /**
+         * Sets a byte array encoder used to serialize and deserialize values.
+         *
+         * @param encoder value encoder, not null
+         * @return this builder
+         * @see BufferEncoder#of
+         */
+        default Builder<K, V> valueEncoder(@NotNull KeyValueEncoder<V> encoder) {
+            return valueEncoder(BufferEncoder.of(encoder));
+        }
 
         /**
          * Sets the value encoder using separate encode and decode functions.
@@ -180,13 +540,59 @@ public interface KVRepository<K, V> {
          */
         Builder<K, V> config(@NotNull RepositoryConfig config);
 
+        /**
+         * Sets the logger that reports problems found while opening the repository, such as
+         * records torn by a crash that were cut off the log. Defaults to a logger named
+         * after {@link KVRepository}.
+         *
+         * @param logger logger, not null
+         * @return this builder
+         */
+        Builder<K, V> logger(@NotNull Logger logger);
+
+        /**
+         * Splits the repository into {@code shards} independent stores, each with its own
+         * subdirectory, writer thread, index, cache and compaction. Keys are assigned to a shard
+         * by a hash of their encoded bytes, so writes to different shards proceed in parallel.
+         * Defaults to {@code 1}, a single store directly in the data directory.
+         *
+         * <p>The shard count is part of the on-disk layout: a directory must always be opened
+         * with the count it was created with.
+         * {@link RepositoryConfig#cacheMaxBytes()} and {@link RepositoryConfig#writeQueueCapacity()}
+         * are split evenly between the shards. A {@link WriteBatch} may only write keys of one shard.
+         *
+         * @param shards number of shards, at least {@code 1}
+         * @return this builder
+         * @throws IllegalArgumentException if {@code shards} is less than {@code 1}
+         */
+        Builder<K, V> shards(int shards);
+
+        /**
+         * Declares a secondary index, which {@link KVRepository#findBy} looks keys up in by what
+         * {@code extractor} returns for their values, such as
+         * {@code index("clan", player -> player.clanId())}.
+         *
+         * <p>The index is held in memory. The writer thread keeps it current as it writes, and on
+         * startup it is rebuilt by reading every live value once, so each repository with indexes
+         * takes longer to open. Values the extractor maps to {@code null} are not indexed; an
+         * extractor that throws is logged and leaves that key out of the index. The extracted
+         * values are compared with {@code equals} and {@code hashCode}, so they should be immutable.
+         *
+         * @param name      the name to pass to {@link KVRepository#findBy}, not null
+         * @param extractor derives the indexed value from a value, not null; called on the writer thread
+         * @return this builder
+         * @throws IllegalArgumentException if an index named {@code name} was already declared
+         */
+        Builder<K, V> index(@NotNull String name, @NotNull Function<? super V, ?> extractor);
+
         /**
          * Builds and returns the repository.
          *
          * @return a ready-to-use {@link KVRepository}
          * @throws NullPointerException  if path, keyEncoder, or valueEncoder was not set
-         * @throws IllegalStateException if the target file is already locked by another instance
-         * @throws RuntimeException      if the file cannot be opened or read
+         * @throws IllegalStateException if the target directory is already locked by another instance,
+         *                               or was created with another number of {@link #shards}
+         * @throws RuntimeException      if the directory cannot be opened or read
          */
         KVRepository<K, V> build();
     }
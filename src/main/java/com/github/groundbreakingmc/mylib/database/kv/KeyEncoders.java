@@ -0,0 +1,37 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+/**
+ * Key encoders that repositories recognize and index by value.
+ *
+ * <p>With any other key encoder, every lookup encodes its key into a new array, hashes the
+ * array and compares it byte by byte. With these, a key is taken apart into its {@code long}s
+ * and compared as such, and the in-heap index keeps them in primitive arrays rather than as
+ * objects. {@link LongKVRepository} adds methods taking a {@code long} key unboxed.
+ *
+ * <pre>{@code
+ * KVRepository<UUID, PlayerData> players = KVRepository.<UUID, PlayerData>builder()
+ *     .path(dataFolder.toPath().resolve("players"))
+ *     .keyEncoder(KeyEncoders.UUID)
+ *     .valueEncoder(PlayerDataEncoder.INSTANCE)
+ *     .build();
+ * }</pre>
+ *
+ * <p>Keys are stored big-endian — a {@code UUID} as its most and then its least significant
+ * bits, exactly as {@code UUIDEncoder} stores it — so a repository written with an array encoder
+ * of the same layout can be opened with these.
+ */
+public final class KeyEncoders {
+
+    /**
+     * {@code long} keys, stored as 8 bytes.
+     */
+    public static final BufferEncoder<Long> LONG = FixedKeyEncoder.LONG_KEYS;
+
+    /**
+     * {@code UUID} keys, stored as 16 bytes.
+     */
+    public static final BufferEncoder<java.util.UUID> UUID = FixedKeyEncoder.UUID_KEYS;
+
+    private KeyEncoders() {
+    }
+}
@@ -8,6 +8,10 @@ package com.github.groundbreakingmc.mylib.database.kv;
  * a value equal to the original. The byte format is entirely up to the
  * implementation — JSON, protobuf, a custom binary format, etc.
  *
+ * <p>A new array is allocated for every value saved and every value loaded.
+ * For hot values, implement {@link BufferEncoder} instead, which reads and
+ * writes the repository's buffers directly; the stored bytes are the same.
+ *
  * <p>Example for {@code UUID}:
  * <pre>{@code
  * public class UUIDEncoder implements KeyValueEncoder<UUID> {
@@ -0,0 +1,99 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, recorded by any number of threads at once.
+ * <p>
+ * Buckets are log-linear: each power of two is split into {@value #SUB_BUCKETS} equal parts, so
+ * a percentile is reported at most 12.5% above the true value. Every bucket is a {@link LongAdder},
+ * which keeps concurrent recorders from contending on a shared counter.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) this.buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        final long value = Math.max(nanos, 0);
+        this.buckets[index(value)].increment();
+        this.max.accumulate(value);
+    }
+
+    /**
+     * Returns the current counts. Recording may continue meanwhile, so counts taken at the
+     * same time as a recording may or may not include it.
+     */
+    Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) counts[i] = this.buckets[i].sum();
+        return new Snapshot(counts, this.max.get());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value that falls into bucket {@code index}.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Bucket counts at one point in time.
+     *
+     * @param counts number of values per bucket
+     * @param max    largest value recorded
+     */
+    record Snapshot(long[] counts, long max) {
+
+        static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0);
+
+        long count() {
+            long count = 0;
+            for (final long bucket : this.counts) count += bucket;
+            return count;
+        }
+
+        /**
+         * Returns the value below which {@code fraction} of the recorded values fall, rounded up
+         * to the end of its bucket, or {@code 0} if nothing was recorded.
+         */
+        long percentile(double fraction) {
+            final long count = this.count();
+            if (count == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), this.max);
+            }
+            return this.max;
+        }
+
+        Snapshot plus(@NotNull Snapshot other) {
+            final long[] sum = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) sum[i] = this.counts[i] + other.counts[i];
+            return new Snapshot(sum, Math.max(this.max, other.max));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * A {@link KVRepository} with {@code long} keys, which it indexes by value.
+ *
+ * <p>Obtain an instance via {@link #builder()}:
+ * <pre>{@code
+ * LongKVRepository<Island> islands = LongKVRepository.<Island>builder()
+ *     .path(dataFolder.toPath().resolve("islands"))
+ *     .valueEncoder(IslandEncoder.INSTANCE)
+ *     .build();
+ *
+ * islands.save(island.id(), island);
+ * islands.load(id).ifPresent(...);
+ * }</pre>
+ *
+ * <p>Keys are stored with {@link KeyEncoders#LONG}. The methods taking a {@code long} neither
+ * box the key nor encode it: a lookup that hits the index compares the key with the
+ * {@code long}s held there. All methods of {@link KVRepository} are available as well and
+ * behave the same.
+ *
+ * @param <V> value type
+ */
+public interface LongKVRepository<V> extends KVRepository<Long, V> {
+
+    /**
+     * Creates a new {@link Builder} for configuring and constructing a {@link LongKVRepository}.
+     *
+     * @param <V> value type
+     * @return a fresh builder
+     */
+    static <V> Builder<V> builder() {
+        return new LongKeyRepository.Builder<>();
+    }
+
+    /**
+     * Saves the given key-value pair like {@link #save(Object, Object)}.
+     *
+     * @param key   the key
+     * @param value the value, not null
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
+     */
+    void save(long key, @NotNull V value);
+
+    /**
+     * Saves the given key-value pair for a limited time, like {@link #save(Object, Object, Duration)}.
+     *
+     * @param key   the key
+     * @param value the value, not null
+     * @param ttl   how long the entry lives, positive
+     * @throws IllegalArgumentException   if {@code ttl} is zero or negative
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
+     */
+    void save(long key, @NotNull V value, @NotNull Duration ttl);
+
+    /**
+     * Saves the given key-value pair and reports when it is durable, like {@link #saveAsync(Object, Object)}.
+     *
+     * @param key   the key
+     * @param value the value, not null
+     * @return a future completed once the write is durable
+     */
+    CompletableFuture<Void> saveAsync(long key, @NotNull V value);
+
+    /**
+     * Deletes the value associated with the given key, like {@link #delete(Object)}.
+     *
+     * @param key the key to delete
+     * @throws RejectedExecutionException if the write queue is full and the {@link OverflowPolicy}
+     *                                    rejects the write
+     */
+    void delete(long key);
+
+    /**
+     * Deletes the value associated with the given key and reports when the deletion is durable,
+     * like {@link #deleteAsync(Object)}.
+     *
+     * @param key the key to delete
+     * @return a future completed once the tombstone is durable
+     */
+    CompletableFuture<Void> deleteAsync(long key);
+
+    /**
+     * Loads the value associated with the given key, like {@link #load(Object)}.
+     *
+     * @param key the key to look up
+     * @return an {@link Optional} containing the value, or empty if not found
+     */
+    Optional<V> load(long key);
+
+    /**
+     * Builder for constructing a {@link LongKVRepository}. It has the options of
+     * {@link KVRepository.Builder} but the key encoder, which is always {@link KeyEncoders#LONG}.
+     *
+     * @param <V> value type
+     */
+    interface Builder<V> {
+
+        /**
+         * @see KVRepository.Builder#path
+         */
+        Builder<V> path(@NotNull Path path);
+
+        /**
+         * @see KVRepository.Builder#valueEncoder(BufferEncoder)
+         */
+        Builder<V> valueEncoder(@NotNull BufferEncoder<V> encoder);
+
+        /**
+         * @see KVRepository.Builder#valueEncoder(KeyValueEncoder)
+         */
+        default Builder<V> valueEncoder(@NotNull KeyValueEncoder<V> encoder) {
+            return valueEncoder(BufferEncoder.of(encoder));
+        }
+
+        /**
+         * @see KVRepository.Builder#valueEncoder(Function, Function)
+         */
+        default Builder<V> valueEncoder(
+                @NotNull Function<V, byte[]> encode,
+                @NotNull Function<byte[], V> decode) {
+            return valueEncoder(new KeyValueEncoder<>() {
+                public byte[] encode(V val) {
+                    return encode.apply(val);
+                }
+
+                public V decode(byte[] data) {
+                    return decode.apply(data);
+                }
+            });
+        }
+
+        /**
+         * @see KVRepository.Builder#config
+         */
+        Builder<V> config(@NotNull RepositoryConfig config);
+
+        /**
+         * @see KVRepository.Builder#logger
+         */
+        Builder<V> logger(@NotNull Logger logger);
+
+        /**
+         * @see KVRepository.Builder#shards
+         */
+        Builder<V> shards(int shards);
+
+        /**
+         * @see KVRepository.Builder#index
+         */
+        Builder<V> index(@NotNull String name, @NotNull Function<? super V, ?> extractor);
+
+        /**
+         * Builds and returns the repository.
+         *
+         * @return a ready-to-use {@link LongKVRepository}
+         * @see KVRepository.Builder#build
+         */
+        LongKVRepository<V> build();
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The {@link LongKVRepository} over a {@link DiskRepository} or {@link ShardedRepository} keyed
+ * with {@link KeyEncoders#LONG}. The {@code long} methods build the {@link IndexKey} themselves;
+ * everything else is passed through.
+ */
+final class LongKeyRepository<V> implements LongKVRepository<V> {
+
+    private final IndexKeyRepository<Long, V> repository;
+
+    private LongKeyRepository(@NotNull IndexKeyRepository<Long, V> repository) {
+        this.repository = repository;
+    }
+
+    // -------------------------------------------------------------------------
+    // Builder
+    // -------------------------------------------------------------------------
+
+    static final class Builder<V> implements LongKVRepository.Builder<V> {
+
+        private final DiskRepository.Builder<Long, V> builder = new DiskRepository.Builder<Long, V>()
+                .keyEncoder(KeyEncoders.LONG);
+
+        @Override
+        public Builder<V> path(@NotNull Path path) {
+            this.builder.path(path);
+            return this;
+        }
+
+        @Override
+        public Builder<V> valueEncoder(@NotNull BufferEncoder<V> encoder) {
+            this.builder.valueEncoder(encoder);
+            return this;
+        }
+
+        @Override
+        public Builder<V> config(@NotNull RepositoryConfig config) {
+            this.builder.config(config);
+            return this;
+        }
+
+        @Override
+        public Builder<V> logger(@NotNull Logger logger) {
+            this.builder.logger(logger);
+            return this;
+        }
+
+        @Override
+        public Builder<V> shards(int shards) {
+            this.builder.shards(shards);
+            return this;
+        }
+
+        @Override
+        public Builder<V> index(@NotNull String name, @NotNull Function<? super V, ?> extractor) {
+            this.builder.index(name, extractor);
+            return this;
+        }
+
+        @Override
+        public LongKVRepository<V> build() {
+            return new LongKeyRepository<>(this.builder.build());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Long keys
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void save(long key, @NotNull V value) {
+        this.repository.write(IndexKey.of(key), value, 0, null);
+    }
+
+    @Override
+    public void save(long key, @NotNull V value, @NotNull Duration ttl) {
+        this.repository.write(IndexKey.of(key), value, DiskRepository.expiresAt(ttl), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(long key, @NotNull V value) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.repository.write(IndexKey.of(key), value, 0, future);
+        return future;
+    }
+
+    @Override
+    public void delete(long key) {
+        this.repository.write(IndexKey.of(key), null, 0, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(long key) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.repository.write(IndexKey.of(key), null, 0, future);
+        return future;
+    }
+
+    @Override
+    public Optional<V> load(long key) {
+        return this.repository.load(IndexKey.of(key));
+    }
+
+    // -------------------------------------------------------------------------
+    // KVRepository
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void save(@NotNull Long key, @NotNull V value) {
+        this.repository.save(key, value);
+    }
+
+    @Override
+    public void save(@NotNull Long key, @NotNull V value, @NotNull Duration ttl) {
+        this.repository.save(key, value, ttl);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(@NotNull Long key, @NotNull V value) {
+        return this.repository.saveAsync(key, value);
+    }
+
+    @Override
+    public void saveAll(@NotNull Map<? extends Long, ? extends V> entries) {
+        this.repository.saveAll(entries);
+    }
+
+    @Override
+    public void delete(@NotNull Long key) {
+        this.repository.delete(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(@NotNull Long key) {
+        return this.repository.deleteAsync(key);
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<? extends Long> keys) {
+        this.repository.deleteAll(keys);
+    }
+
+    @Override
+    public void commit(@NotNull WriteBatch<Long, V> batch) {
+        this.repository.commit(batch);
+    }
+
+    @Override
+    public CompletableFuture<Void> commitAsync(@NotNull WriteBatch<Long, V> batch) {
+        return this.repository.commitAsync(batch);
+    }
+
+    @Override
+    public Optional<Versioned<V>> loadVersioned(@NotNull Long key) {
+        return this.repository.loadVersioned(key);
+    }
+
+    @Override
+    public boolean compareAndSave(@NotNull Long key, long expectedVersion, @NotNull V value) {
+        return this.repository.compareAndSave(key, expectedVersion, value);
+    }
+
+    @Override
+    public Optional<V> compute(@NotNull Long key, @NotNull BiFunction<? super Long, ? super V, ? extends V> remappingFunction) {
+        return this.repository.compute(key, remappingFunction);
+    }
+
+    @Override
+    public Optional<V> load(@NotNull Long key) {
+        return this.repository.load(key);
+    }
+
+    @Override
+    public Map<Long, V> loadAll(@NotNull Collection<? extends Long> keys) {
+        return this.repository.loadAll(keys);
+    }
+
+    @Override
+    public void forEachKey(@NotNull Consumer<? super Long> action) {
+        this.repository.forEachKey(action);
+    }
+
+    @Override
+    public void forEach(@NotNull BiConsumer<? super Long, ? super V> action) {
+        this.repository.forEach(action);
+    }
+
+    @Override
+    public Stream<Map.Entry<Long, V>> stream() {
+        return this.repository.stream();
+    }
+
+    @Override
+    public Stream<Map.Entry<Long, V>> scanPrefix(byte @NotNull [] prefix) {
+        return this.repository.scanPrefix(prefix);
+    }
+
+    @Override
+    public Set<Long> findBy(@NotNull String indexName, @NotNull Object value) {
+        return this.repository.findBy(indexName, value);
+    }
+
+    @Override
+    public Subscription subscribe(long fromOffset, @NotNull Consumer<? super ChangeEvent<Long, V>> listener) {
+        return this.repository.subscribe(fromOffset, listener);
+    }
+
+    @Override
+    public void unloadFromCache(@NotNull Long key) {
+        this.repository.unloadFromCache(key);
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        return this.repository.cacheStats();
+    }
+
+    @Override
+    public RepositoryStats stats() {
+        return this.repository.stats();
+    }
+
+    @Override
+    public void snapshot(@NotNull Path target) {
+        this.repository.snapshot(target);
+    }
+
+    @Override
+    public void close() {
+        this.repository.close();
+    }
+}
@@ -0,0 +1,297 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link OffsetIndex} kept in direct memory, so millions of keys add nothing for the garbage
+ * collector to trace.
+ * <p>
+ * The same open addressing scheme as {@link HeapOffsetIndex}, laid out in a direct buffer with
+ * fixed 32-byte slots: [keyRef(8)][hash(4)][keyLen(4)][location(8)][recordSize(4)][unused(4)].
+ * Key bytes are appended to a {@link KeyArena} of direct chunks, and {@code keyRef} points into it;
+ * {@code 0} marks a free slot. A slot is published by a release write of its {@code keyRef} after
+ * everything else in it and the key bytes have been written.
+ * <p>
+ * Growing builds a new table and a new arena holding only the live keys, and publishes both
+ * through a volatile field; the old memory is released by the garbage collector once no reader
+ * holds it. Direct memory counts against {@code -XX:MaxDirectMemorySize}.
+ */
+final class OffHeapOffsetIndex implements OffsetIndex {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int KEY_REF = 0;
+    private static final int HASH = 8;
+    private static final int KEY_LEN = 12;
+    private static final int LOCATION = 16;
+    private static final int RECORD_SIZE = 24;
+
+    // a table lives in a single buffer, which is indexed by int: 1 GiB of slots
+    static final int MAX_CAPACITY = 1 << 25;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final class Table {
+
+        final ByteBuffer slots;
+        final KeyArena keys;
+        final int mask;
+        final int threshold;
+
+        Table(int capacity, KeyArena keys) {
+            // aligned, so locations and key references can be accessed atomically
+            this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE + Long.BYTES - 1)
+                    .alignedSlice(Long.BYTES)
+                    .order(ByteOrder.nativeOrder());
+            this.keys = keys;
+            this.mask = capacity - 1;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        boolean matches(int base, int hash, IndexKey key) {
+            return this.slots.getInt(base + HASH) == hash
+                    && this.slots.getInt(base + KEY_LEN) == key.length()
+                    && this.keys.equals(this.slots.getLong(base + KEY_REF), key);
+        }
+    }
+
+    private final int maxCapacity;
+    private volatile Table table;
+    private int used; // occupied slots, including removed ones
+    private int live;
+
+    OffHeapOffsetIndex() {
+        this(MIN_CAPACITY, MAX_CAPACITY);
+    }
+
+    /**
+     * @param capacity    the number of slots to start with, a power of two
+     * @param maxCapacity the number of slots the table may grow to, a power of two no larger
+     *                    than {@link #MAX_CAPACITY}
+     */
+    OffHeapOffsetIndex(int capacity, int maxCapacity) {
+        if (maxCapacity > MAX_CAPACITY || capacity > maxCapacity) {
+            throw new IllegalArgumentException("Capacity " + capacity + " exceeds " + Math.min(maxCapacity, MAX_CAPACITY));
+        }
+        this.maxCapacity = maxCapacity;
+        this.table = new Table(capacity, new KeyArena());
+    }
+
+    // -------------------------------------------------------------------------
+    // Readers
+    // -------------------------------------------------------------------------
+
+    @Override
+    public long get(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            final int base = i * SLOT_SIZE;
+            if ((long) LONGS.getAcquire(table.slots, base + KEY_REF) == 0) return ABSENT;
+            if (table.matches(base, hash, key)) {
+                return (long) LONGS.getAcquire(table.slots, base + LOCATION);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Writer
+    // -------------------------------------------------------------------------
+
+    @Override
+    public int sizeOf(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int base = this.find(table, key);
+        return base < 0 || table.slots.getLong(base + LOCATION) == ABSENT ? 0 : table.slots.getInt(base + RECORD_SIZE);
+    }
+
+    @Override
+    public void reserve(int keys) {
+        final Table table = this.table;
+        if (this.used + (long) keys <= table.threshold) return;
+        int capacity = table.mask + 1;
+        while (capacity <= this.maxCapacity && (long) (capacity * LOAD_FACTOR) < this.live + (long) keys) {
+            capacity <<= 1;
+        }
+        this.rebuild(capacity);
+    }
+
+    @Override
+    public long put(@NotNull IndexKey key, long location, int recordSize) {
+        Table table = this.table;
+        int base = this.find(table, key);
+        if (base >= 0) {
+            final long old = table.slots.getLong(base + LOCATION);
+            if (old == ABSENT) this.live++;
+            table.slots.putInt(base + RECORD_SIZE, recordSize);
+            LONGS.setRelease(table.slots, base + LOCATION, location);
+            return old;
+        }
+
+        if (this.used >= table.threshold) {
+            final int capacity = table.mask + 1;
+            table = this.rebuild(this.live >= capacity / 2 ? capacity << 1 : capacity);
+        }
+        base = freeSlot(table, key.hashCode());
+        fill(table, base, key.hashCode(), table.keys.add(key.bytes()), key.length(), location, recordSize);
+        this.used++;
+        this.live++;
+        return ABSENT;
+    }
+
+    @Override
+    public boolean replace(@NotNull IndexKey key, long expected, long location) {
+        final Table table = this.table;
+        final int base = this.find(table, key);
+        if (base < 0 || table.slots.getLong(base + LOCATION) != expected || expected == ABSENT) return false;
+        LONGS.setRelease(table.slots, base + LOCATION, location);
+        return true;
+    }
+
+    @Override
+    public long remove(@NotNull IndexKey key) {
+        final Table table = this.table;
+        final int base = this.find(table, key);
+        if (base < 0) return ABSENT;
+        final long old = table.slots.getLong(base + LOCATION);
+        if (old != ABSENT) {
+            this.live--;
+            table.slots.putInt(base + RECORD_SIZE, 0);
+            LONGS.setRelease(table.slots, base + LOCATION, ABSENT);
+        }
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return this.live;
+    }
+
+    @Override
+    public void forEachLocation(@NotNull LongConsumer action) {
+        final Table table = this.table;
+        for (int i = 0; i <= table.mask; i++) {
+            final int base = i * SLOT_SIZE;
+            if (table.slots.getLong(base + KEY_REF) == 0) continue;
+            final long location = table.slots.getLong(base + LOCATION);
+            if (location != ABSENT) action.accept(location);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Internals
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the byte offset of the key's slot, or {@code -1}.
+     */
+    private int find(Table table, IndexKey key) {
+        final int hash = key.hashCode();
+        for (int i = spread(hash) & table.mask; ; i = (i + 1) & table.mask) {
+            final int base = i * SLOT_SIZE;
+            if (table.slots.getLong(base + KEY_REF) == 0) return -1;
+            if (table.matches(base, hash, key)) return base;
+        }
+    }
+
+    private static int freeSlot(Table table, int hash) {
+        int i = spread(hash) & table.mask;
+        while (table.slots.getLong(i * SLOT_SIZE + KEY_REF) != 0) {
+            i = (i + 1) & table.mask;
+        }
+        return i * SLOT_SIZE;
+    }
+
+    private static void fill(Table table, int base, int hash, long keyRef, int keyLen, long location, int recordSize) {
+        table.slots.putInt(base + HASH, hash);
+        table.slots.putInt(base + KEY_LEN, keyLen);
+        table.slots.putLong(base + LOCATION, location);
+        table.slots.putInt(base + RECORD_SIZE, recordSize);
+        LONGS.setRelease(table.slots, base + KEY_REF, keyRef);
+    }
+
+    /**
+     * Copies the live entries and their keys into a fresh table of {@code capacity} slots and
+     * a fresh arena, and publishes them. Put doubles the table unless most of the occupied
+     * slots were removed keys.
+     */
+    private Table rebuild(int capacity) {
+        final Table old = this.table;
+        final int oldCapacity = old.mask + 1;
+        if (capacity > this.maxCapacity) {
+            throw new IllegalStateException("Off-heap index cannot grow beyond " + this.maxCapacity + " slots");
+        }
+        final Table table = new Table(capacity, new KeyArena());
+        for (int j = 0; j < oldCapacity; j++) {
+            final int oldBase = j * SLOT_SIZE;
+            final long keyRef = old.slots.getLong(oldBase + KEY_REF);
+            final long location = old.slots.getLong(oldBase + LOCATION);
+            if (keyRef == 0 || location == ABSENT) continue;
+
+            final int hash = old.slots.getInt(oldBase + HASH);
+            final int keyLen = old.slots.getInt(oldBase + KEY_LEN);
+            final long newKeyRef = table.keys.add(old.keys.get(keyRef, keyLen));
+            fill(table, freeSlot(table, hash), hash, newKeyRef, keyLen, location, old.slots.getInt(oldBase + RECORD_SIZE));
+        }
+        this.used = this.live;
+        this.table = table;
+        return table;
+    }
+
+    private static int spread(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // -------------------------------------------------------------------------
+    // Key storage
+    // -------------------------------------------------------------------------
+
+    /**
+     * Append-only key bytes in direct chunks. A key reference packs {@code chunk + 1} into the
+     * upper and the offset within the chunk into the lower 32 bits, so it is never {@code 0}.
+     * Only the writer appends; chunks are published copy-on-write, and bytes are never changed
+     * once a slot points at them.
+     */
+    private static final class KeyArena {
+
+        private static final int CHUNK_SIZE = 1024 * 1024;
+
+        private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+        private int chunkUsed; // writer thread only
+
+        long add(byte[] key) {
+            ByteBuffer[] chunks = this.chunks;
+            if (chunks.length == 0 || chunks[chunks.length - 1].capacity() - this.chunkUsed < key.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, key.length));
+                this.chunks = chunks;
+                this.chunkUsed = 0;
+            }
+            final int chunk = chunks.length - 1;
+            chunks[chunk].put(this.chunkUsed, key);
+            final long keyRef = ((long) (chunk + 1) << 32) | this.chunkUsed;
+            this.chunkUsed += key.length;
+            return keyRef;
+        }
+
+        byte[] get(long keyRef, int keyLen) {
+            final byte[] key = new byte[keyLen];
+            this.chunks[(int) (keyRef >>> 32) - 1].get((int) keyRef, key);
+            return key;
+        }
+
+        boolean equals(long keyRef, IndexKey key) {
+            return key.matches(this.chunks[(int) (keyRef >>> 32) - 1], (int) keyRef);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Key to record location map written by a single thread and read by any number of threads
+ * without locking.
+ * <p>
+ * {@link #get} may be called from any thread; every other method belongs to the writer.
+ */
+sealed interface OffsetIndex permits FixedKeyOffsetIndex, HeapOffsetIndex, OffHeapOffsetIndex {
+
+    long ABSENT = -1L;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param offHeap    whether to keep the table and the keys outside the Java heap
+     * @param keyEncoder the encoder of the keys, which keep their {@code long}s in primitive
+     *                   arrays on the heap if it is one of {@link KeyEncoders}
+     */
+    static OffsetIndex create(boolean offHeap, @NotNull BufferEncoder<?> keyEncoder) {
+        if (offHeap) return new OffHeapOffsetIndex();
+        if (keyEncoder instanceof FixedKeyEncoder<?> fixed) return new FixedKeyOffsetIndex(fixed.width);
+        return new HeapOffsetIndex();
+    }
+
+    // -------------------------------------------------------------------------
+    // Readers
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the location of the key, or {@link #ABSENT}.
+     */
+    long get(@NotNull IndexKey key);
+
+    // -------------------------------------------------------------------------
+    // Writer
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the record size stored with the key, or {@code 0} if it is absent.
+     */
+    int sizeOf(@NotNull IndexKey key);
+
+    /**
+     * Makes room for {@code keys} more keys, so the next that many {@link #put}s cannot fail.
+     * The heap indexes grow for as long as the heap lasts, so only a capped table has to act.
+     *
+     * @throws IllegalStateException if the index cannot hold that many more keys
+     */
+    default void reserve(int keys) {
+    }
+
+    /**
+     * Associates the key with a location and record size.
+     *
+     * @return the previous location, or {@link #ABSENT}
+     */
+    long put(@NotNull IndexKey key, long location, int recordSize);
+
+    /**
+     * Points the key at {@code location} only if it still points at {@code expected}.
+     *
+     * @return whether the location was replaced
+     */
+    boolean replace(@NotNull IndexKey key, long expected, long location);
+
+    /**
+     * Removes the key.
+     *
+     * @return the previous location, or {@link #ABSENT}
+     */
+    long remove(@NotNull IndexKey key);
+
+    /**
+     * Returns the number of keys currently present.
+     */
+    int size();
+
+    /**
+     * Passes the location of every present key to {@code action}, in no particular order.
+     */
+    void forEachLocation(@NotNull LongConsumer action);
+}
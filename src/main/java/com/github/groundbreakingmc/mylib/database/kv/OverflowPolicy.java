@@ -0,0 +1,37 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What a {@link KVRepository} does with a write once {@link RepositoryConfig#writeQueueCapacity()}
+ * writes are already waiting for the writer thread — typically because the disk stalls or cannot
+ * keep up.
+ *
+ * <p>A rejected write throws {@link RejectedExecutionException} from {@code save}, {@code delete},
+ * {@code saveAll} and {@code deleteAll}; the futures of {@code saveAsync} and {@code deleteAsync}
+ * complete with it instead. A rejected write is not applied: loads keep returning the previous value.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Waits until the writer thread has made room. The calling thread is held up for as long as
+     * the disk stalls, so use it only where writes never come from the server thread.
+     */
+    BLOCK,
+
+    /**
+     * Rejects the write immediately.
+     */
+    FAIL_FAST,
+
+    /**
+     * Merges the write into a write to the same key that is still queued, which then stores the
+     * newer value; only a write to a key with nothing queued is rejected. Suits data that is saved
+     * over and over, like player state, where only the latest value matters. Never blocks.
+     * <p>
+     * A bulk write is merged entry by entry and queues the rest if they fit, so a rejected
+     * {@code saveAll} or {@code deleteAll} may have been applied in part. {@code compareAndSave} and
+     * {@code compute} depend on what is stored, so they are never merged and are rejected instead.
+     */
+    COALESCE
+}
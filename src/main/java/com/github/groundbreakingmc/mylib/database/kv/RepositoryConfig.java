@@ -4,39 +4,113 @@ package com.github.groundbreakingmc.mylib.database.kv;
  * Configuration for a {@link KVRepository}.
  *
  * <p>Use {@link #defaults()} or {@link #withCache()} for typical setups,
- * or construct directly to fine-tune every parameter:
+ * or {@link #builder()} to fine-tune every parameter:
  * <pre>{@code
- * RepositoryConfig config = new RepositoryConfig(
- *     true,               // useCache
- *     128,                // batchSize
- *     0.30,               // compactRatio
- *     100L * 1024 * 1024  // compactBytes — 100 MB
- * );
+ * RepositoryConfig config = RepositoryConfig.builder()
+ *     .useCache(true)
+ *     .cacheMaxBytes(16L * 1024 * 1024)  // 16 MB
+ *     .batchSize(128)
+ *     .compactRatio(0.30)
+ *     .compactBytes(100L * 1024 * 1024)  // 100 MB
+ *     .segmentBytes(32L * 1024 * 1024)   // 32 MB
+ *     .mmapReads(true)
+ *     .durability(Durability.every(Duration.ofSeconds(1)))
+ *     .verifyChecksums(true)
+ *     .compressValues(true)
+ *     .compressThreshold(256)
+ *     .offHeapIndex(true)
+ *     .sweepIntervalMillis(5_000)
+ *     .statsLogIntervalMillis(60_000)
+ *     .writeQueueCapacity(10_000)
+ *     .overflowPolicy(OverflowPolicy.FAIL_FAST)
+ *     .subscriberBufferSize(4_096)
+ *     .build();
  * }</pre>
  *
  * @param useCache     whether to keep recently accessed values in memory.
- *                     Eliminates disk reads for hot keys at the cost of heap usage.
+ *                     Eliminates disk reads for hot keys at the cost of heap usage,
+ *                     bounded by {@code cacheMaxBytes}.
  * @param batchSize    maximum number of write tasks processed in a single writer loop
  *                     iteration. Higher values improve throughput under heavy write load
  *                     at the cost of slightly increased latency per individual write.
- *                     Must be {@code >= 1}.
- * @param compactRatio fraction of dead bytes relative to total file size that triggers
- *                     compaction. For example, {@code 0.20} means compaction runs when
- *                     at least 20% of the file is occupied by stale or deleted records.
+ *                     The writes of one iteration are appended together, and only the
+ *                     last of them per key is kept. Must be {@code >= 1}.
+ * @param compactRatio fraction of dead bytes relative to the total size of sealed segments
+ *                     that triggers compaction. For example, {@code 0.20} means compaction runs
+ *                     when at least 20% of the sealed data is occupied by stale or deleted records.
  *                     Must be in the range {@code (0, 1)}.
- * @param compactBytes absolute number of dead bytes that triggers compaction, regardless
- *                     of the ratio. Useful for large files where a small ratio still
+ * @param compactBytes absolute number of dead bytes in sealed segments that triggers compaction,
+ *                     regardless of the ratio. Useful for large stores where a small ratio still
  *                     represents a lot of wasted space. Must be {@code >= 0}.
+ * @param segmentBytes size after which the active segment is sealed and a new one is started.
+ *                     Only sealed segments are compacted, so smaller segments reclaim space sooner
+ *                     while larger ones mean fewer files. Must be in the range {@code [1, 4 GB]}.
+ * @param mmapReads    whether to serve reads from read-only memory mappings of the segments instead
+ *                     of positional file reads, so a lookup needs no system call. Sealed segments are
+ *                     mapped once; the active segment is remapped as it grows, and records written
+ *                     since the last remap are read from the file. Mappings are only released by the
+ *                     garbage collector, so on Windows compacted segment files may linger until then.
+ * @param cacheMaxBytes maximum total weight of the value cache, where an entry weighs the encoded
+ *                     size of its key and value. Least valuable entries (W-TinyLFU) are evicted
+ *                     beyond it. Values whose write is still queued are held outside the cache
+ *                     and do not count. Ignored without {@code useCache}. Must be {@code >= 1}.
+ * @param durability   when written records are forced to the storage device. See {@link Durability}.
+ * @param verifyChecksums whether every read from disk checks the CRC32C of the record and fails
+ *                     on a mismatch. Off by default: reads then skip the key and the checksum, and
+ *                     damage is only detected when startup or compaction scans the record.
+ * @param compressValues whether to store values deflated. Pays off for values that repeat themselves,
+ *                     such as serialized inventories: the log, compaction and the page cache all shrink,
+ *                     for some CPU time on every write and every read from disk. Values that do not get
+ *                     smaller are stored as they are. Cached values are kept uncompressed.
+ * @param compressThreshold smallest encoded value size, in bytes, that is compressed. Smaller values
+ *                     rarely gain enough to be worth the time. Ignored without {@code compressValues}.
+ *                     Must be {@code >= 0}.
+ * @param offHeapIndex whether to keep the key index in direct memory instead of the Java heap. Every
+ *                     stored key is held by the index for as long as the repository is open, so with
+ *                     millions of keys this keeps a large, long-lived structure away from the garbage
+ *                     collector. The memory counts against {@code -XX:MaxDirectMemorySize}; lookups
+ *                     compare keys in direct memory, which is slightly slower than on the heap.
+ * @param sweepIntervalMillis how often the expiry sweeper wakes up to write tombstones for entries
+ *                     saved with a time-to-live that have expired. Expired entries read as absent
+ *                     either way; sweeping is what frees their space, so a longer interval only
+ *                     delays that. Must be {@code >= 1}.
+ * @param statsLogIntervalMillis how often a {@link RepositoryStats#summary() summary} of the repository
+ *                     statistics is logged at {@code INFO}, or {@code 0} to never log it.
+ *                     {@link KVRepository#stats()} works either way. Must be {@code >= 0}.
+ * @param writeQueueCapacity maximum number of writes waiting for the writer thread, each holding its
+ *                     value on the heap until written; a bulk write counts once per entry. Bounds the
+ *                     memory a stalled disk can tie up. Must be {@code >= 1}.
+ * @param overflowPolicy what happens to a write when {@code writeQueueCapacity} writes are already
+ *                     waiting. See {@link OverflowPolicy}.
+ * @param subscriberBufferSize maximum number of changes held for a {@link KVRepository#subscribe subscriber}
+ *                     that has not consumed them yet. The writer thread never waits for a subscriber: one
+ *                     that falls further behind stops receiving changes from it and catches up by reading
+ *                     the log instead. Must be {@code >= 1}.
  */
 public record RepositoryConfig(
         boolean useCache,
         int batchSize,
         double compactRatio,
-        long compactBytes
+        long compactBytes,
+        long segmentBytes,
+        boolean mmapReads,
+        long cacheMaxBytes,
+        Durability durability,
+        boolean verifyChecksums,
+        boolean compressValues,
+        int compressThreshold,
+        boolean offHeapIndex,
+        long sweepIntervalMillis,
+        long statsLogIntervalMillis,
+        int writeQueueCapacity,
+        OverflowPolicy overflowPolicy,
+        int subscriberBufferSize
 ) {
 
-    static final RepositoryConfig DEFAULT = new RepositoryConfig(false, 64, 0.20, 50L * 1024 * 1024);
-    static final RepositoryConfig WITH_CACHE = new RepositoryConfig(true, 64, 0.20, 50L * 1024 * 1024);
+    public static final long MAX_SEGMENT_BYTES = 4L * 1024 * 1024 * 1024;
+
+    static final RepositoryConfig DEFAULT = builder().build();
+    static final RepositoryConfig WITH_CACHE = builder().useCache(true).build();
 
     public RepositoryConfig {
         if (batchSize < 1)
@@ -45,11 +119,44 @@ public record RepositoryConfig(
             throw new IllegalArgumentException("compactRatio must be in (0, 1)");
         if (compactBytes < 0)
             throw new IllegalArgumentException("compactBytes must be >= 0");
+        if (segmentBytes < 1 || segmentBytes > MAX_SEGMENT_BYTES)
+            throw new IllegalArgumentException("segmentBytes must be in [1, " + MAX_SEGMENT_BYTES + "]");
+        if (cacheMaxBytes < 1)
+            throw new IllegalArgumentException("cacheMaxBytes must be >= 1");
+        if (durability == null)
+            throw new IllegalArgumentException("durability must not be null");
+        if (compressThreshold < 0)
+            throw new IllegalArgumentException("compressThreshold must be >= 0");
+        if (sweepIntervalMillis < 1)
+            throw new IllegalArgumentException("sweepIntervalMillis must be >= 1");
+        if (statsLogIntervalMillis < 0)
+            throw new IllegalArgumentException("statsLogIntervalMillis must be >= 0");
+        if (writeQueueCapacity < 1)
+            throw new IllegalArgumentException("writeQueueCapacity must be >= 1");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        if (subscriberBufferSize < 1)
+            throw new IllegalArgumentException("subscriberBufferSize must be >= 1");
+    }
+
+    /**
+     * Creates a configuration with the default segment size, regular file reads,
+     * the default cache size, no forced writes, unverified reads, uncompressed values,
+     * an on-heap index, the default sweep interval, no statistics logging, the default
+     * write queue capacity, coalescing writes beyond it, and the default subscriber buffer size.
+     */
+    public RepositoryConfig(boolean useCache, int batchSize, double compactRatio, long compactBytes) {
+        this(useCache, batchSize, compactRatio, compactBytes,
+                Builder.DEFAULT_SEGMENT_BYTES, false, Builder.DEFAULT_CACHE_MAX_BYTES, Durability.none(), false,
+                false, Builder.DEFAULT_COMPRESS_THRESHOLD, false, Builder.DEFAULT_SWEEP_INTERVAL_MILLIS, 0,
+                Builder.DEFAULT_WRITE_QUEUE_CAPACITY, OverflowPolicy.COALESCE, Builder.DEFAULT_SUBSCRIBER_BUFFER_SIZE);
     }
 
     /**
      * Returns the default configuration: no cache, batch size 64,
-     * compact at 20% dead ratio or 50 MB dead bytes.
+     * compact at 20% dead ratio or 50 MB dead bytes, 64 MB segments.
+     * With the cache enabled it holds up to 64 MB of encoded data. Writes are never forced,
+     * and up to 65 536 may wait for the writer thread before further writes are coalesced.
      *
      * @return default config
      */
@@ -65,4 +172,180 @@ public record RepositoryConfig(
     public static RepositoryConfig withCache() {
         return WITH_CACHE;
     }
+
+    /**
+     * Creates a builder initialized with the default values.
+     *
+     * @return a fresh builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a builder initialized with the values of this configuration.
+     *
+     * @return a builder copying this config
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .useCache(this.useCache)
+                .batchSize(this.batchSize)
+                .compactRatio(this.compactRatio)
+                .compactBytes(this.compactBytes)
+                .segmentBytes(this.segmentBytes)
+                .mmapReads(this.mmapReads)
+                .cacheMaxBytes(this.cacheMaxBytes)
+                .durability(this.durability)
+                .verifyChecksums(this.verifyChecksums)
+                .compressValues(this.compressValues)
+                .compressThreshold(this.compressThreshold)
+                .offHeapIndex(this.offHeapIndex)
+                .sweepIntervalMillis(this.sweepIntervalMillis)
+                .statsLogIntervalMillis(this.statsLogIntervalMillis)
+                .writeQueueCapacity(this.writeQueueCapacity)
+                .overflowPolicy(this.overflowPolicy)
+                .subscriberBufferSize(this.subscriberBufferSize);
+    }
+
+    /**
+     * Builder for {@link RepositoryConfig}. Values are validated on {@link #build()}.
+     */
+    public static final class Builder {
+
+        private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+        private static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+        private static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+        private static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 1_000;
+        private static final int DEFAULT_WRITE_QUEUE_CAPACITY = 65_536;
+        private static final int DEFAULT_SUBSCRIBER_BUFFER_SIZE = 1_024;
+
+        private boolean useCache = false;
+        private int batchSize = 64;
+        private double compactRatio = 0.20;
+        private long compactBytes = 50L * 1024 * 1024;
+        private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+        private boolean mmapReads = false;
+        private long cacheMaxBytes = DEFAULT_CACHE_MAX_BYTES;
+        private Durability durability = Durability.none();
+        private boolean verifyChecksums = false;
+        private boolean compressValues = false;
+        private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+        private boolean offHeapIndex = false;
+        private long sweepIntervalMillis = DEFAULT_SWEEP_INTERVAL_MILLIS;
+        private long statsLogIntervalMillis = 0;
+        private int writeQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+        private int subscriberBufferSize = DEFAULT_SUBSCRIBER_BUFFER_SIZE;
+
+        private Builder() {
+        }
+
+        public Builder useCache(boolean useCache) {
+            this.useCache = useCache;
+            return this;
+        }
+
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder compactRatio(double compactRatio) {
+            this.compactRatio = compactRatio;
+            return this;
+        }
+
+        public Builder compactBytes(long compactBytes) {
+            this.compactBytes = compactBytes;
+            return this;
+        }
+
+        public Builder segmentBytes(long segmentBytes) {
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        public Builder mmapReads(boolean mmapReads) {
+            this.mmapReads = mmapReads;
+            return this;
+        }
+
+        public Builder cacheMaxBytes(long cacheMaxBytes) {
+            this.cacheMaxBytes = cacheMaxBytes;
+            return this;
+        }
+
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public Builder verifyChecksums(boolean verifyChecksums) {
+            this.verifyChecksums = verifyChecksums;
+            return this;
+        }
+
+        public Builder compressValues(boolean compressValues) {
+            this.compressValues = compressValues;
+            return this;
+        }
+
+        public Builder compressThreshold(int compressThreshold) {
+            this.compressThreshold = compressThreshold;
+            return this;
+        }
+
+        public Builder offHeapIndex(boolean offHeapIndex) {
+            this.offHeapIndex = offHeapIndex;
+            return this;
+        }
+
+        public Builder sweepIntervalMillis(long sweepIntervalMillis) {
+            this.sweepIntervalMillis = sweepIntervalMillis;
+            return this;
+        }
+
+        public Builder statsLogIntervalMillis(long statsLogIntervalMillis) {
+            this.statsLogIntervalMillis = statsLogIntervalMillis;
+            return this;
+        }
+
+        public Builder writeQueueCapacity(int writeQueueCapacity) {
+            this.writeQueueCapacity = writeQueueCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder subscriberBufferSize(int subscriberBufferSize) {
+            this.subscriberBufferSize = subscriberBufferSize;
+            return this;
+        }
+
+        public RepositoryConfig build() {
+            return new RepositoryConfig(
+                    this.useCache,
+                    this.batchSize,
+                    this.compactRatio,
+                    this.compactBytes,
+                    this.segmentBytes,
+                    this.mmapReads,
+                    this.cacheMaxBytes,
+                    this.durability,
+                    this.verifyChecksums,
+                    this.compressValues,
+                    this.compressThreshold,
+                    this.offHeapIndex,
+                    this.sweepIntervalMillis,
+                    this.statsLogIntervalMillis,
+                    this.writeQueueCapacity,
+                    this.overflowPolicy,
+                    this.subscriberBufferSize
+            );
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the internal counters of a {@link KVRepository}, for tuning
+ * {@link RepositoryConfig#batchSize()}, {@link RepositoryConfig#compactRatio()} and the cache.
+ *
+ * <p>Counters are cumulative since the repository was opened. They are read without
+ * stopping the writer, so values taken while it works may be a few operations apart.
+ *
+ * @param queueDepth      writes waiting for the writer thread, at most
+ *                        {@link RepositoryConfig#writeQueueCapacity()}
+ * @param rejectedWrites  writes rejected because the queue was full
+ * @param coalescedWrites writes never appended because a later write to the same key replaced them —
+ *                        merged into a queued write under {@link OverflowPolicy#COALESCE}, or
+ *                        dropped from a writer batch that also held the later write
+ * @param writes          records written, tombstones included
+ * @param batches         writer batches that wrote at least one record; each usually shares one
+ *                        write system call and at most one fsync
+ * @param logBytes        total size of the log segments
+ * @param deadBytes       part of {@code logBytes} taken by overwritten, deleted or expired records
+ * @param compactions     compactions installed
+ * @param compactionNanos time spent in installed compactions, from start to installation
+ * @param reads           values read from disk, i.e. lookups not answered by queued writes or the cache
+ * @param readP50Nanos    median duration of a read from disk
+ * @param readP99Nanos    99th percentile duration of a read from disk
+ * @param readMaxNanos    longest read from disk
+ * @param cache           counters of the value cache
+ */
+public record RepositoryStats(
+        int queueDepth,
+        long rejectedWrites,
+        long coalescedWrites,
+        long writes,
+        long batches,
+        long logBytes,
+        long deadBytes,
+        long compactions,
+        long compactionNanos,
+        long reads,
+        long readP50Nanos,
+        long readP99Nanos,
+        long readMaxNanos,
+        @NotNull CacheStats cache
+) {
+
+    static RepositoryStats of(int queueDepth, long rejectedWrites, long coalescedWrites, long writes, long batches,
+                              long logBytes, long deadBytes, long compactions, long compactionNanos,
+                              LatencyHistogram.Snapshot reads, CacheStats cache) {
+        return new RepositoryStats(queueDepth, rejectedWrites, coalescedWrites, writes, batches, logBytes, deadBytes,
+                compactions, compactionNanos, reads.count(), reads.percentile(0.50), reads.percentile(0.99), reads.max(),
+                cache);
+    }
+
+    /**
+     * Returns the average number of records written per batch, or {@code 0} if there were none.
+     *
+     * @return records per batch
+     */
+    public double averageBatchSize() {
+        return this.batches == 0 ? 0 : (double) this.writes / this.batches;
+    }
+
+    /**
+     * Returns the fraction of the log taken by dead records, or {@code 0} for an empty log.
+     * Compaction compares the same ratio, over sealed segments only, with
+     * {@link RepositoryConfig#compactRatio()}.
+     *
+     * @return dead ratio in the range {@code [0, 1]}
+     */
+    public double deadRatio() {
+        return this.logBytes == 0 ? 0 : (double) this.deadBytes / this.logBytes;
+    }
+
+    /**
+     * Returns a one-line summary, as periodically logged with
+     * {@link RepositoryConfig#statsLogIntervalMillis()}.
+     *
+     * @return a human-readable summary
+     */
+    public String summary() {
+        return String.format(Locale.ROOT,
+                "queue %d (%d rejected, %d coalesced), %d writes in %d batches (%.1f per batch), log %d KB with %.0f%% dead, "
+                        + "%d compactions (%d ms), %d disk reads (p50 %d µs, p99 %d µs, max %d µs), cache hit rate %.0f%%",
+                this.queueDepth, this.rejectedWrites, this.coalescedWrites, this.writes, this.batches, this.averageBatchSize(),
+                this.logBytes >> 10, this.deadRatio() * 100,
+                this.compactions, this.compactionNanos / 1_000_000,
+                this.reads, this.readP50Nanos / 1_000, this.readP99Nanos / 1_000, this.readMaxNanos / 1_000,
+                this.cache.hitRate() * 100);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keys grouped by what an extractor derives from their values, declared with
+ * {@link KVRepository.Builder#index}.
+ * <p>
+ * {@link #find} may be called from any thread without locking; {@link #update} belongs to the
+ * writer thread, which calls it for every record it appends. Each key is remembered with the
+ * value it is indexed under, so replacing or deleting it never has to read the old value back.
+ *
+ * @param <V> value type
+ */
+final class SecondaryIndex<V> {
+
+    private final String name;
+    private final Function<? super V, ?> extractor;
+
+    // indexed value -> the keys indexed under it, with their expiry or 0
+    private final Map<Object, Map<IndexKey, Long>> keysByValue = new ConcurrentHashMap<>();
+    // writer thread only — the indexed value of every key
+    private final Map<IndexKey, Object> valueByKey = new HashMap<>();
+
+    SecondaryIndex(@NotNull String name, @NotNull Function<? super V, ?> extractor) {
+        this.name = name;
+        this.extractor = extractor;
+    }
+
+    String name() {
+        return this.name;
+    }
+
+    /**
+     * Indexes {@code key} under what the extractor derives from {@code value}, in place of what it
+     * was indexed under before. A key whose extractor returns {@code null} is not indexed.
+     *
+     * @param value     the value written for the key, or {@code null} if it was deleted
+     * @param expiresAt epoch millis after which the key is no longer found, or {@code 0}
+     * @throws RuntimeException whatever the extractor throws, with the key left out of the index
+     */
+    void update(@NotNull IndexKey key, @Nullable V value, long expiresAt) {
+        Object indexed = null;
+        try {
+            if (value != null) indexed = this.extractor.apply(value);
+        } finally {
+            // a key moving to another value is unlinked first; one staying is never missing from it
+            final Object previous = indexed != null ? this.valueByKey.put(key, indexed) : this.valueByKey.remove(key);
+            if (previous != null && !previous.equals(indexed)) {
+                this.keysByValue.computeIfPresent(previous, (ignored, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+        if (indexed != null) this.keysByValue.computeIfAbsent(indexed, ignored -> new ConcurrentHashMap<>()).put(key, expiresAt);
+    }
+
+    /**
+     * Returns the keys indexed under {@code value} that have not expired by {@code now}.
+     */
+    List<IndexKey> find(@NotNull Object value, long now) {
+        final Map<IndexKey, Long> keys = this.keysByValue.get(value);
+        if (keys == null) return List.of();
+        final List<IndexKey> found = new ArrayList<>(keys.size());
+        for (final Map.Entry<IndexKey, Long> entry : keys.entrySet()) {
+            final long expiresAt = entry.getValue();
+            if (expiresAt == 0 || expiresAt > now) found.add(entry.getKey());
+        }
+        return found;
+    }
+}
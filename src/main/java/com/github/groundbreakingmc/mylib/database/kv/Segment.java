@@ -0,0 +1,759 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * A single file of a {@link DiskRepository} log.
+ * <p>
+ * Segments are named {@code <seq>-<gen>.seg}. A segment opened by the writer gets the next
+ * {@code seq} and generation {@code 0}; segments produced by compaction reuse the highest
+ * input {@code seq} with higher generations. Replaying segments ordered by {@code (seq, gen)}
+ * therefore always applies older data first, even when compaction output is left behind by a crash.
+ * <p>
+ * Only the active (last) segment is ever appended to — every other segment is immutable,
+ * so it can be read, scanned and merged without any locking.
+ * <p>
+ * Record: [crc32c(4)][flag(1)][keyLen(4)][valueLen(4)][version(8)][expiresAt(8)]?[keyBytes][valueBytes],
+ * where the checksum covers everything after itself. Flag bits: {@code 1} — tombstone, without value
+ * bytes; {@code 2} — the value bytes are {@link Compression compressed}; {@code 4} — the record carries
+ * {@code expiresAt}, in epoch millis.
+ * <p>
+ * The records of a {@link WriteBatch} are framed by two markers, records without key, value and version
+ * flagged {@code 8} (begin) and {@code 16} (commit). A scan only passes on the records of a batch
+ * once it reached the commit marker, and treats a batch cut short like a torn record, so a batch
+ * is replayed whole or not at all.
+ * <p>
+ * Hint file ({@code <seq>-<gen>.hint}) — a compact listing of every record in the segment,
+ * so startup does not have to walk the segment itself:
+ * [magic(4)][coveredSize(8)] then per record [keyLen(4)][keyBytes][flag(1)][offset(8)][recordSize(4)][expiresAt(8)][version(8)],
+ * followed by [crc32c(4)] of everything before it. Records after {@code coveredSize} are replayed.
+ * Batch markers are listed too, with an empty key.
+ */
+final class Segment implements Comparable<Segment> {
+
+    // -------------------------------------------------------------------------
+    // Constants
+    // -------------------------------------------------------------------------
+
+    static final String EXTENSION = ".seg";
+    static final String HINT_EXTENSION = ".hint";
+    static final String TEMP_EXTENSION = ".tmp";
+
+    private static final Pattern NAME = Pattern.compile("(\\d+)-(\\d+)\\.seg");
+
+    /**
+     * Index locations pack the segment id into the upper bits and the offset into the lower bits.
+     */
+    static final int OFFSET_BITS = 40;
+    static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 4 + 4 + 8;
+    static final int MARKER_SIZE = RECORD_HEADER_SIZE;
+    private static final int MARKER_FLAGS = DiskRepository.FLAG_BATCH_BEGIN | DiskRepository.FLAG_BATCH_COMMIT;
+    private static final int CRC_SIZE = 4;
+    private static final int VALUE_LEN_OFFSET = CRC_SIZE + 1 + 4;
+    private static final int VERSION_OFFSET = VALUE_LEN_OFFSET + 4;
+    static final int EXPIRY_SIZE = 8;
+
+    private static final int HINT_MAGIC = 0x4B56_4831; // "KVH1"
+    private static final int HINT_HEADER_SIZE = 4 + 8;
+    private static final int SCAN_BUFFER_SIZE = 256 * 1024;
+
+    // [flag(1)][keyLen(4)][valueLen(4)][version(8)] — the part of the record header after the checksum
+    private static final ThreadLocal<ByteBuffer> HEADER_BUF =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(RECORD_HEADER_SIZE - CRC_SIZE));
+    private static final ThreadLocal<ByteBuffer> EXPIRY_BUF =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(EXPIRY_SIZE));
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    // values read through the channel land here; larger records get a heap buffer of their own
+    private static final BufferPool READ_BUFFERS = new BufferPool(64 * 1024, 4 * Runtime.getRuntime().availableProcessors());
+
+    // -------------------------------------------------------------------------
+    // Fields
+    // -------------------------------------------------------------------------
+
+    final int id;
+    final long seq;
+    final int gen;
+    final Path path;
+    final FileChannel channel;
+
+    // both are only touched by the writer thread once the segment is published
+    long size;
+    long deadBytes;
+
+    // read-only mapping of [0, mapped.limit()) — null unless memory-mapped reads are enabled
+    private volatile MappedByteBuffer mapped;
+
+    Segment(int id, long seq, int gen, @NotNull Path path) throws IOException {
+        this.id = id;
+        this.seq = seq;
+        this.gen = gen;
+        this.path = path;
+        this.channel = openChannel(path);
+        this.size = this.channel.size();
+    }
+
+    // -------------------------------------------------------------------------
+    // Naming and locations
+    // -------------------------------------------------------------------------
+
+    static String fileName(long seq, int gen) {
+        return String.format("%010d-%04d", seq, gen) + EXTENSION;
+    }
+
+    /**
+     * Parses {@code (seq, gen)} from a segment file name.
+     *
+     * @return {@code {seq, gen}}, or {@code null} if the name is not a segment name
+     */
+    static long @Nullable [] parseName(@NotNull String fileName) {
+        final Matcher matcher = NAME.matcher(fileName);
+        if (!matcher.matches()) return null;
+        return new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+    }
+
+    static long location(int segmentId, long offset) {
+        return ((long) segmentId << OFFSET_BITS) | offset;
+    }
+
+    static int segmentId(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    static long offset(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    Path hintPath() {
+        return hintPath(this.path);
+    }
+
+    static Path hintPath(@NotNull Path segmentPath) {
+        final String name = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(name.substring(0, name.length() - EXTENSION.length()) + HINT_EXTENSION);
+    }
+
+    @Override
+    public int compareTo(@NotNull Segment other) {
+        final int bySeq = Long.compare(this.seq, other.seq);
+        return bySeq != 0 ? bySeq : Integer.compare(this.gen, other.gen);
+    }
+
+    /**
+     * Closes the channel and removes the segment and its hint from disk.
+     */
+    void delete() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.hintPath());
+        Files.deleteIfExists(this.path);
+    }
+
+    // -------------------------------------------------------------------------
+    // Reads
+    // -------------------------------------------------------------------------
+
+    /**
+     * Maps everything written so far, replacing the previous mapping. Segments that cannot
+     * be addressed by a single mapping keep being read through the channel.
+     */
+    void map() throws IOException {
+        if (this.size == 0 || this.size > Integer.MAX_VALUE) return;
+        this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+    }
+
+    /**
+     * Returns how many bytes from the start of the segment are currently mapped.
+     */
+    long mappedSize() {
+        final MappedByteBuffer mapped = this.mapped;
+        return mapped != null ? mapped.limit() : 0;
+    }
+
+    /**
+     * A value read from disk, with the expiry and version of its record.
+     *
+     * @param length    the encoded size of the value, before any compression
+     * @param expiresAt epoch millis after which the record counts as absent, or {@code 0}
+     * @param version   the version of the record
+     */
+    record StoredValue<T>(T value, int length, long expiresAt, long version) {}
+
+    /**
+     * Reads the value of the live record at {@code offset} and decodes it with {@code decoder},
+     * straight from the mapping when it covers the record, otherwise from a pooled direct buffer
+     * filled with positional channel reads. Compressed values are inflated first.
+     *
+     * @param verify whether to check the record checksum, which means reading the whole record
+     * @throws IOException if {@code verify} is set and the record is corrupt
+     */
+    <T> StoredValue<T> readValue(long offset, int keyLen, boolean verify, BufferEncoder<T> decoder) throws IOException {
+        final MappedByteBuffer mapped = this.mapped;
+        if (mapped != null && offset + RECORD_HEADER_SIZE + EXPIRY_SIZE <= mapped.limit()) {
+            final byte flag = mapped.get((int) offset + CRC_SIZE);
+            final int valueLen = mapped.getInt((int) offset + VALUE_LEN_OFFSET);
+            final long valuePos = offset + headerSize(flag) + keyLen;
+            if (valueLen >= 0 && valuePos + valueLen <= mapped.limit()) {
+                if (verify) {
+                    final int covered = (int) (valuePos + valueLen - offset) - CRC_SIZE;
+                    this.verify(offset, mapped.getInt((int) offset), mapped.slice((int) offset + CRC_SIZE, covered));
+                }
+                final long expiresAt = (flag & DiskRepository.FLAG_EXPIRING) != 0 ? mapped.getLong((int) offset + RECORD_HEADER_SIZE) : 0;
+                final long version = mapped.getLong((int) offset + VERSION_OFFSET);
+                return decode(flag, mapped.slice((int) valuePos, valueLen), decoder, expiresAt, version);
+            }
+        }
+
+        final ByteBuffer header = HEADER_BUF.get();
+        readFully(this.channel, header, offset + CRC_SIZE);
+        final byte flag = header.get(0);
+        final int valueLen = header.getInt(VALUE_LEN_OFFSET - CRC_SIZE);
+        if (valueLen < 0) throw this.corrupt(offset);
+        final long version = header.getLong(VERSION_OFFSET - CRC_SIZE);
+        final boolean expiring = (flag & DiskRepository.FLAG_EXPIRING) != 0;
+        final int valueStart = headerSize(flag) + keyLen;
+
+        // without the checksum only the value is needed — and the expiry, which sits in front of the key
+        final int from = verify ? 0 : expiring ? RECORD_HEADER_SIZE : valueStart;
+        final ByteBuffer record = READ_BUFFERS.acquire(valueStart + valueLen - from);
+        try {
+            readFully(this.channel, record, offset + from);
+            if (verify) this.verify(offset, record.getInt(0), record.slice(CRC_SIZE, record.limit() - CRC_SIZE));
+            final long expiresAt = expiring ? record.getLong(RECORD_HEADER_SIZE - from) : 0;
+            return decode(flag, record.slice(valueStart - from, valueLen), decoder, expiresAt, version);
+        } finally {
+            READ_BUFFERS.release(record);
+        }
+    }
+
+    /**
+     * Returns the expiry of the record at {@code offset}, or {@code 0} if it never expires.
+     */
+    long readExpiresAt(long offset) throws IOException {
+        final ByteBuffer header = HEADER_BUF.get();
+        readFully(this.channel, header, offset + CRC_SIZE);
+        if ((header.get(0) & DiskRepository.FLAG_EXPIRING) == 0) return 0;
+        final ByteBuffer expiry = EXPIRY_BUF.get();
+        readFully(this.channel, expiry, offset + RECORD_HEADER_SIZE);
+        return expiry.getLong(0);
+    }
+
+    static int headerSize(byte flag) {
+        return (flag & DiskRepository.FLAG_EXPIRING) != 0 ? RECORD_HEADER_SIZE + EXPIRY_SIZE : RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the value to decode from the stored bytes of a record, inflated if it is compressed.
+     */
+    private static ByteBuffer value(byte flag, ByteBuffer stored) throws IOException {
+        if ((flag & DiskRepository.FLAG_COMPRESSED) == 0) return stored.asReadOnlyBuffer();
+        return ByteBuffer.wrap(Compression.decompress(stored)).asReadOnlyBuffer();
+    }
+
+    private static <T> StoredValue<T> decode(byte flag, ByteBuffer stored, BufferEncoder<T> decoder, long expiresAt, long version)
+            throws IOException {
+        final ByteBuffer value = value(flag, stored);
+        return new StoredValue<>(decoder.decode(value), value.capacity(), expiresAt, version);
+    }
+
+    private void verify(long offset, int expected, ByteBuffer covered) throws IOException {
+        final CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(covered);
+        if ((int) crc.getValue() != expected) throw this.corrupt(offset);
+    }
+
+    // -------------------------------------------------------------------------
+    // Writes
+    // -------------------------------------------------------------------------
+
+    /**
+     * Puts everything of a record that precedes its value into {@code buf}, leaving the position
+     * where the value goes. The value length and the checksum are left for {@link #sealRecord}.
+     *
+     * @param expiresAt written if {@code flag} has {@link DiskRepository#FLAG_EXPIRING}
+     * @throws BufferOverflowException if {@code buf} has no room for it
+     */
+    static void startRecord(ByteBuffer buf, byte flag, long expiresAt, long version, byte[] keyBytes) {
+        buf.putInt(0);
+        buf.put(flag);
+        buf.putInt(keyBytes.length);
+        buf.putInt(0);
+        buf.putLong(version);
+        if ((flag & DiskRepository.FLAG_EXPIRING) != 0) buf.putLong(expiresAt);
+        buf.put(keyBytes);
+    }
+
+    /**
+     * Completes the record that starts at {@code start} and ends at the position of {@code buf}.
+     *
+     * @param flag the final flag, which may have gained {@link DiskRepository#FLAG_COMPRESSED}
+     *             since {@link #startRecord}
+     */
+    static void sealRecord(ByteBuffer buf, int start, byte flag, int valueLen) {
+        buf.put(start + CRC_SIZE, flag);
+        buf.putInt(start + VALUE_LEN_OFFSET, valueLen);
+
+        final CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(buf.slice(start + CRC_SIZE, buf.position() - start - CRC_SIZE));
+        buf.putInt(start, (int) crc.getValue());
+    }
+
+    /**
+     * Puts a batch marker, {@link DiskRepository#FLAG_BATCH_BEGIN} or {@link DiskRepository#FLAG_BATCH_COMMIT},
+     * at the position of {@code buf}.
+     *
+     * @throws BufferOverflowException if {@code buf} has no room for it
+     */
+    static void putMarker(ByteBuffer buf, byte flag) {
+        final int start = buf.position();
+        startRecord(buf, flag, 0, 0, new byte[0]);
+        sealRecord(buf, start, flag, 0);
+    }
+
+    // -------------------------------------------------------------------------
+    // Scanning
+    // -------------------------------------------------------------------------
+
+    @FunctionalInterface
+    interface RecordVisitor {
+
+        /**
+         * @param expiresAt epoch millis after which the record counts as absent, or {@code 0}
+         * @param version   the version of the record
+         */
+        void visit(byte[] keyBytes, boolean tombstone, long offset, int recordSize, long expiresAt, long version);
+
+        /**
+         * Called for every batch marker, which holds no data.
+         */
+        default void marker(byte flag, long offset) {
+        }
+    }
+
+    private record Visit(byte[] keyBytes, boolean tombstone, long offset, int recordSize, long expiresAt, long version) {}
+
+    /**
+     * Visits every record from {@code from} up to {@link #size} using large sequential reads,
+     * checking each checksum. Stops at the first record that is cut short or does not match
+     * its checksum — everything from there on is what a crash in the middle of a write left behind.
+     * The records of a batch are visited once its commit marker was read; a scan stopping within
+     * a batch stops at its begin marker instead.
+     *
+     * @return the end of the last intact record outside a batch, which is {@link #size} unless the
+     * scan stopped early
+     */
+    long scan(long from, @NotNull RecordVisitor visitor) throws IOException {
+        return this.scan(from, this.size, visitor);
+    }
+
+    /**
+     * Like {@link #scan(long, RecordVisitor)}, but stops at {@code end} instead of {@link #size}, which
+     * lets threads other than the writer scan the active segment up to where it was frozen.
+     */
+    long scan(long from, long end, @NotNull RecordVisitor visitor) throws IOException {
+        final Scanner scanner = new Scanner(this.channel, from, end);
+        final CRC32C crc = new CRC32C();
+        // the records of the open batch, and where it began
+        List<Visit> batch = null;
+        long batchStart = -1;
+
+        while (scanner.position() < end) {
+            final long offset = scanner.position();
+            final long intactEnd = batch != null ? batchStart : offset;
+
+            // [crc32c(4)][flag(1)][keyLen(4)][valueLen(4)][version(8)]
+            if (!scanner.require(RECORD_HEADER_SIZE)) return intactEnd;
+            final int expected = scanner.buf.getInt();
+            crc.reset();
+            crc.update(scanner.buf.slice(scanner.buf.position(), RECORD_HEADER_SIZE - CRC_SIZE));
+            final byte flag = scanner.buf.get();
+            final int keyLen = scanner.buf.getInt();
+            final int valueLen = scanner.buf.getInt();
+            final long version = scanner.buf.getLong();
+
+            // lengths are checked before anything is buffered, so garbage cannot trigger a huge allocation
+            final int headerSize = headerSize(flag);
+            final long recordSize = (long) headerSize + keyLen + valueLen;
+            if (keyLen < 0 || valueLen < 0 || recordSize > Integer.MAX_VALUE || offset + recordSize > end) {
+                return intactEnd;
+            }
+
+            // [expiresAt(8)]?[keyBytes][valueBytes]
+            scanner.require(headerSize - RECORD_HEADER_SIZE + keyLen);
+            long expiresAt = 0;
+            if ((flag & DiskRepository.FLAG_EXPIRING) != 0) {
+                crc.update(scanner.buf.slice(scanner.buf.position(), EXPIRY_SIZE));
+                expiresAt = scanner.buf.getLong();
+            }
+            final byte[] keyBytes = new byte[keyLen];
+            scanner.buf.get(keyBytes);
+            crc.update(keyBytes);
+            scanner.checksum(crc, valueLen);
+
+            if ((int) crc.getValue() != expected) return intactEnd;
+
+            if ((flag & MARKER_FLAGS) != 0) {
+                final boolean begin = flag == DiskRepository.FLAG_BATCH_BEGIN;
+                // markers hold nothing, and batches neither nest nor commit twice
+                if (keyLen != 0 || valueLen != 0 || begin == (batch != null) || (!begin && flag != DiskRepository.FLAG_BATCH_COMMIT)) {
+                    return intactEnd;
+                }
+                if (begin) {
+                    visitor.marker(flag, offset);
+                    batch = new ArrayList<>();
+                    batchStart = offset;
+                } else {
+                    for (final Visit visit : batch) {
+                        visitor.visit(visit.keyBytes(), visit.tombstone(), visit.offset(), visit.recordSize(), visit.expiresAt(),
+                                visit.version());
+                    }
+                    visitor.marker(flag, offset);
+                    batch = null;
+                }
+                continue;
+            }
+
+            final boolean tombstone = (flag & DiskRepository.FLAG_DELETED) != 0;
+            if (batch != null) {
+                batch.add(new Visit(keyBytes, tombstone, offset, (int) recordSize, expiresAt, version));
+            } else {
+                visitor.visit(keyBytes, tombstone, offset, (int) recordSize, expiresAt, version);
+            }
+        }
+        return batch != null ? batchStart : end;
+    }
+
+    /**
+     * Like {@link #scan}, but fails instead of stopping at a damaged record.
+     */
+    void scanIntact(long from, @NotNull RecordVisitor visitor) throws IOException {
+        final long end = this.scan(from, visitor);
+        if (end < this.size) throw this.corrupt(end);
+    }
+
+    /**
+     * Reads records at increasing offsets through one sequential buffer, so visiting the
+     * records of a segment in log order costs about as much as reading it front to back.
+     */
+    final class RecordReader {
+
+        private final Scanner scanner;
+
+        // the record read last; the value is a read-only view valid until the next read
+        byte[] keyBytes;
+        ByteBuffer value;
+        boolean tombstone;
+        long expiresAt;
+        long version;
+
+        RecordReader() throws IOException {
+            this.scanner = new Scanner(Segment.this.channel, 0, Segment.this.channel.size());
+        }
+
+        /**
+         * Reads the record at {@code offset}, which must not lie before the previously read one.
+         *
+         * @param withValue whether to read the value too, or only the key
+         * @param verify    whether to check the checksum; only done when the value is read
+         */
+        void read(long offset, boolean withValue, boolean verify) throws IOException {
+            this.scanner.seek(offset);
+            if (!this.scanner.require(RECORD_HEADER_SIZE)) throw Segment.this.corrupt(offset);
+
+            int start = this.scanner.buf.position();
+            final byte flag = this.scanner.buf.get(start + CRC_SIZE);
+            final int keyLen = this.scanner.buf.getInt(start + CRC_SIZE + 1);
+            final int valueLen = this.scanner.buf.getInt(start + VALUE_LEN_OFFSET);
+            final int headerSize = headerSize(flag);
+            final long length = (long) headerSize + keyLen + (withValue ? valueLen : 0);
+            if (keyLen < 0 || valueLen < 0 || length > Integer.MAX_VALUE || !this.scanner.require((int) length)) {
+                throw Segment.this.corrupt(offset);
+            }
+
+            // require() may have moved the bytes or replaced the buffer
+            final ByteBuffer buf = this.scanner.buf;
+            start = buf.position();
+            this.tombstone = (flag & DiskRepository.FLAG_DELETED) != 0;
+            this.expiresAt = (flag & DiskRepository.FLAG_EXPIRING) != 0 ? buf.getLong(start + RECORD_HEADER_SIZE) : 0;
+            this.version = buf.getLong(start + VERSION_OFFSET);
+            this.keyBytes = new byte[keyLen];
+            buf.get(start + headerSize, this.keyBytes);
+            if (!withValue) {
+                this.value = null;
+                return;
+            }
+
+            if (verify) Segment.this.verify(offset, buf.getInt(start), buf.slice(start + CRC_SIZE, (int) length - CRC_SIZE));
+            this.value = value(flag, buf.slice(start + headerSize + keyLen, valueLen));
+        }
+    }
+
+    private IOException corrupt(long offset) {
+        return new IOException("Truncated or corrupt record at " + this.path + ":" + offset);
+    }
+
+    /**
+     * Buffered forward-only reader over a region of a channel.
+     */
+    private static final class Scanner {
+
+        private final FileChannel channel;
+        private final long end;
+
+        private ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE).limit(0);
+        private long bufStart; // file position of buf[0]
+
+        Scanner(FileChannel channel, long from, long end) {
+            this.channel = channel;
+            this.end = end;
+            this.bufStart = from;
+        }
+
+        long position() {
+            return this.bufStart + this.buf.position();
+        }
+
+        /**
+         * Moves to {@code position}, keeping the buffered bytes if it lies within them.
+         */
+        void seek(long position) {
+            final long relative = position - this.bufStart;
+            if (relative >= 0 && relative <= this.buf.limit()) {
+                this.buf.position((int) relative);
+            } else {
+                this.bufStart = position;
+                this.buf.clear().limit(0);
+            }
+        }
+
+        /**
+         * Makes sure at least {@code n} bytes are buffered after the current position.
+         *
+         * @return false if the region ends before that
+         */
+        boolean require(int n) throws IOException {
+            if (this.buf.remaining() >= n) return true;
+            final long position = this.position();
+            if (position + n > this.end) return false;
+
+            if (this.buf.capacity() < n) {
+                final ByteBuffer bigger = ByteBuffer.allocate(n);
+                bigger.put(this.buf);
+                this.buf = bigger;
+            } else {
+                this.buf.compact();
+            }
+            this.bufStart = position;
+
+            this.buf.limit((int) Math.min(this.buf.capacity(), this.end - position));
+            while (this.buf.position() < n) {
+                final int read = this.channel.read(this.buf, position + this.buf.position());
+                if (read < 0) throw new IOException("Unexpected end of file at position " + (position + this.buf.position()));
+            }
+            this.buf.flip();
+            return true;
+        }
+
+        /**
+         * Feeds the next {@code n} bytes to {@code crc} and moves past them, a buffer at a time.
+         */
+        void checksum(CRC32C crc, long n) throws IOException {
+            long left = n;
+            while (left > 0) {
+                final int chunk = (int) Math.min(left, SCAN_BUFFER_SIZE);
+                if (!this.require(chunk)) throw new IOException("Unexpected end of region at position " + this.position());
+                crc.update(this.buf.slice(this.buf.position(), chunk));
+                this.buf.position(this.buf.position() + chunk);
+                left -= chunk;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Hint file
+    // -------------------------------------------------------------------------
+
+    /**
+     * Replays the hint file of this segment with a single sequential read.
+     *
+     * @return the segment position covered by the hint, or {@code -1} if the hint is
+     * missing, corrupt or stale and the segment has to be scanned instead
+     */
+    long readHint(@NotNull RecordVisitor visitor) throws IOException {
+        final Path hintPath = this.hintPath();
+        if (!Files.exists(hintPath)) return -1L;
+
+        final ByteBuffer buf;
+        try (FileChannel hint = FileChannel.open(hintPath, StandardOpenOption.READ)) {
+            final long hintSize = hint.size();
+            if (hintSize < HINT_HEADER_SIZE + 4 || hintSize > Integer.MAX_VALUE) return -1L;
+            buf = ByteBuffer.allocate((int) hintSize);
+            readFully(hint, buf, 0);
+        }
+
+        final int crcPos = buf.limit() - 4;
+        final CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, crcPos);
+        if ((int) crc.getValue() != buf.getInt(crcPos)) return -1L;
+
+        if (buf.getInt() != HINT_MAGIC) return -1L;
+        final long covered = buf.getLong();
+
+        // the segment is shorter than the hint claims — it was replaced or truncated behind our back
+        if (covered > this.size) return -1L;
+
+        buf.limit(crcPos);
+        while (buf.hasRemaining()) {
+            final byte[] keyBytes = new byte[buf.getInt()];
+            buf.get(keyBytes);
+            final byte flag = buf.get();
+            final long offset = buf.getLong();
+            final int recordSize = buf.getInt();
+            final long expiresAt = buf.getLong();
+            final long version = buf.getLong();
+            if ((flag & MARKER_FLAGS) != 0) {
+                visitor.marker(flag, offset);
+            } else {
+                visitor.visit(keyBytes, flag == DiskRepository.FLAG_DELETED, offset, recordSize, expiresAt, version);
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Writes a hint file listing every record currently in the segment. Must only be called
+     * for segments nobody appends to concurrently.
+     */
+    void writeHint() throws IOException {
+        final Path hintPath = this.hintPath();
+        final Path tempPath = hintPath.resolveSibling(hintPath.getFileName() + TEMP_EXTENSION);
+        final CRC32C crc = new CRC32C();
+        final long covered = this.size;
+
+        try (FileChannel hint = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final HintWriter writer = new HintWriter(hint, crc);
+            writer.buf.putInt(HINT_MAGIC);
+            writer.buf.putLong(covered);
+
+            this.scanIntact(0, writer);
+            writer.flush();
+
+            writer.buf.putInt((int) crc.getValue());
+            writer.buf.flip();
+            writeBytes(hint, writer.buf, writer.pos);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempPath);
+            throw ex;
+        }
+
+        Files.move(tempPath, hintPath,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class HintWriter implements RecordVisitor {
+
+        private final FileChannel hint;
+        private final CRC32C crc;
+        private ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        private long pos;
+
+        HintWriter(FileChannel hint, CRC32C crc) {
+            this.hint = hint;
+            this.crc = crc;
+        }
+
+        @Override
+        public void visit(byte[] keyBytes, boolean tombstone, long offset, int recordSize, long expiresAt, long version) {
+            this.put(keyBytes, tombstone ? DiskRepository.FLAG_DELETED : DiskRepository.FLAG_ALIVE, offset, recordSize, expiresAt, version);
+        }
+
+        @Override
+        public void marker(byte flag, long offset) {
+            this.put(new byte[0], flag, offset, MARKER_SIZE, 0, 0);
+        }
+
+        private void put(byte[] keyBytes, byte flag, long offset, int recordSize, long expiresAt, long version) {
+            final int entrySize = 4 + keyBytes.length + 1 + 8 + 4 + 8 + 8;
+            if (this.buf.remaining() < entrySize) {
+                this.flush();
+                if (this.buf.capacity() < entrySize) this.buf = ByteBuffer.allocate(entrySize);
+            }
+            this.buf.putInt(keyBytes.length);
+            this.buf.put(keyBytes);
+            this.buf.put(flag);
+            this.buf.putLong(offset);
+            this.buf.putInt(recordSize);
+            this.buf.putLong(expiresAt);
+            this.buf.putLong(version);
+        }
+
+        void flush() {
+            this.buf.flip();
+            this.crc.update(this.buf.array(), 0, this.buf.limit());
+            final int written = this.buf.limit();
+            writeBytes(this.hint, this.buf, this.pos);
+            this.buf.clear();
+            this.pos += written;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // IO helpers
+    // -------------------------------------------------------------------------
+
+    static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+    }
+
+    /**
+     * Fills {@code buf} up to its limit from {@code pos}, then rewinds it.
+     */
+    static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        buf.rewind();
+        long p = pos;
+        while (buf.hasRemaining()) {
+            final int n = ch.read(buf, p);
+            if (n < 0) throw new IOException("Unexpected end of file at position " + p);
+            p += n;
+        }
+        buf.flip();
+    }
+
+    static void writeBytes(FileChannel ch, ByteBuffer buf, long pos) {
+        try {
+            long p = pos;
+            while (buf.hasRemaining()) {
+                p += ch.write(buf, p);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A {@link KVRepository} split into independent {@link DiskRepository} shards, so writes are
+ * encoded and appended by one writer thread per shard instead of a single one.
+ * <p>
+ * Every key is encoded and hashed once to pick its shard, then handed over as an
+ * {@link IndexKey}. Shard {@code n} lives in the {@code shard-<n>} subdirectory with its
+ * own lock, log, index, cache and compaction; a key always maps to the same shard for a given
+ * shard count, so the count cannot change once the directory is in use.
+ * <p>
+ * Bulk operations are split by shard and queued as one task per shard. A {@link WriteBatch} is
+ * not split: only the shard that appends it can keep it atomic, so its keys must all map to one
+ * shard. Iteration visits the shards one after another, each from a snapshot taken when the
+ * iteration reaches it — a view per shard, not one point in time across all of them.
+ * <p>
+ * The shards number their records from one shared counter, so a change feed subscribes to every
+ * shard from the same offset and hands their changes to the listener as they come.
+ */
+final class ShardedRepository<K, V> implements IndexKeyRepository<K, V> {
+
+    // -------------------------------------------------------------------------
+    // Constants
+    // -------------------------------------------------------------------------
+
+    private static final String SHARD_PREFIX = "shard-";
+    private static final Pattern SHARD_NAME = Pattern.compile(SHARD_PREFIX + "\\d+");
+    // how long a shard feed waits for another one to finish a delivery before checking for close
+    private static final long DELIVERY_POLL_MILLIS = 100;
+
+    // -------------------------------------------------------------------------
+    // Fields
+    // -------------------------------------------------------------------------
+
+    private final BufferEncoder<K> keyEncoder;
+    private final DiskRepository<K, V>[] shards;
+
+    // -------------------------------------------------------------------------
+    // Constructor
+    // -------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    ShardedRepository(
+            @NotNull Path path,
+            int shardCount,
+            @NotNull BufferEncoder<K> keyEncoder,
+            @NotNull BufferEncoder<V> valueEncoder,
+            @NotNull RepositoryConfig config,
+            @NotNull Logger logger,
+            @NotNull Map<String, Function<? super V, ?>> indexes) {
+        this.keyEncoder = keyEncoder;
+        this.shards = new DiskRepository[shardCount];
+
+        final RepositoryConfig shardConfig = config.toBuilder()
+                .cacheMaxBytes(Math.max(config.cacheMaxBytes() / shardCount, 1))
+                .writeQueueCapacity(Math.max(config.writeQueueCapacity() / shardCount, 1))
+                .build();
+        // one counter for all shards, so a version stands for one point in the feed of every shard
+        final AtomicLong versionCounter = new AtomicLong(Versioned.ABSENT);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                this.shards[i] = new DiskRepository<>(path.resolve(SHARD_PREFIX + i), keyEncoder, valueEncoder, shardConfig, logger, indexes,
+                        versionCounter);
+            }
+            // a shard writing before the others are loaded could reuse versions they hold
+            for (final DiskRepository<K, V> shard : this.shards) {
+                shard.start();
+            }
+        } catch (RuntimeException ex) {
+            for (final DiskRepository<K, V> shard : this.shards) {
+                if (shard == null) break;
+                try {
+                    shard.close();
+                } catch (RuntimeException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Refuses to open a directory with another shard count than it was created with, which
+     * would look every key up in the wrong shard. A single-file repository, which
+     * {@link BaselineImport} converts, can only be opened unsharded.
+     *
+     * @throws IllegalStateException if the directory holds a repository with another shard count
+     */
+    static void checkLayout(@NotNull Path path, int shardCount) {
+        if (shardCount > 1 && Files.isRegularFile(path)) {
+            throw new IllegalStateException("Single-file repository cannot be opened with " + shardCount
+                    + " shards, open it with one shard first to convert it: " + path);
+        }
+        if (!Files.isDirectory(path)) return;
+
+        int found = 0;
+        boolean unsharded = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (SHARD_NAME.matcher(name).matches() && Files.isDirectory(file)) {
+                    found++;
+                } else if (name.endsWith(Segment.EXTENSION)) {
+                    unsharded = true;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        if (shardCount == 1 ? found > 0 : unsharded || (found > 0 && found != shardCount)) {
+            throw new IllegalStateException("Directory was created with " + (unsharded ? 1 : found)
+                    + " shard(s), not " + shardCount + ": " + path);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Public API
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void save(@NotNull K key, @NotNull V value) {
+        final IndexKey indexKey = this.key(key);
+        this.shardOf(indexKey).write(indexKey, value, 0, null);
+    }
+
+    @Override
+    public void save(@NotNull K key, @NotNull V value, @NotNull Duration ttl) {
+        final IndexKey indexKey = this.key(key);
+        this.shardOf(indexKey).write(indexKey, value, DiskRepository.expiresAt(ttl), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(@NotNull K key, @NotNull V value) {
+        final IndexKey indexKey = this.key(key);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.shardOf(indexKey).write(indexKey, value, 0, future);
+        return future;
+    }
+
+    @Override
+    public void saveAll(@NotNull Map<? extends K, ? extends V> entries) {
+        final Batch<V>[] batches = this.newBatches();
+        for (final Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            final IndexKey indexKey = this.key(entry.getKey());
+            batches[this.shardIndex(indexKey)].add(indexKey, entry.getValue());
+        }
+        this.writeAll(batches);
+    }
+
+    @Override
+    public void delete(@NotNull K key) {
+        final IndexKey indexKey = this.key(key);
+        this.shardOf(indexKey).write(indexKey, null, 0, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(@NotNull K key) {
+        final IndexKey indexKey = this.key(key);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.shardOf(indexKey).write(indexKey, null, 0, future);
+        return future;
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<? extends K> keys) {
+        final Batch<V>[] batches = this.newBatches();
+        for (final K key : keys) {
+            final IndexKey indexKey = this.key(key);
+            batches[this.shardIndex(indexKey)].add(indexKey, null);
+        }
+        this.writeAll(batches);
+    }
+
+    @Override
+    public void commit(@NotNull WriteBatch<K, V> batch) {
+        final List<IndexKey> indexKeys = this.keysInOneShard(batch);
+        this.shardOf(indexKeys).writeBatch(indexKeys, batch.writes(), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> commitAsync(@NotNull WriteBatch<K, V> batch) {
+        final List<IndexKey> indexKeys = this.keysInOneShard(batch);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.shardOf(indexKeys).writeBatch(indexKeys, batch.writes(), future);
+        return future;
+    }
+
+    @Override
+    public Optional<Versioned<V>> loadVersioned(@NotNull K key) {
+        final IndexKey indexKey = this.key(key);
+        return this.shardOf(indexKey).loadVersioned(indexKey);
+    }
+
+    @Override
+    public boolean compareAndSave(@NotNull K key, long expectedVersion, @NotNull V value) {
+        final IndexKey indexKey = this.key(key);
+        return this.shardOf(indexKey).compareAndSave(indexKey, expectedVersion, value);
+    }
+
+    @Override
+    public Optional<V> compute(@NotNull K key, @NotNull BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        final IndexKey indexKey = this.key(key);
+        return this.shardOf(indexKey).compute(indexKey, key, remappingFunction);
+    }
+
+    @Override
+    public Optional<V> load(@NotNull K key) {
+        final IndexKey indexKey = this.key(key);
+        return this.shardOf(indexKey).load(indexKey);
+    }
+
+    @Override
+    public Map<K, V> loadAll(@NotNull Collection<? extends K> keys) {
+        final List<K>[] shardKeys = this.newLists();
+        final List<IndexKey>[] shardIndexKeys = this.newLists();
+        for (final K key : keys) {
+            final IndexKey indexKey = this.key(key);
+            final int shard = this.shardIndex(indexKey);
+            shardKeys[shard].add(key);
+            shardIndexKeys[shard].add(indexKey);
+        }
+
+        final Map<K, V> result = new HashMap<>();
+        for (int i = 0; i < this.shards.length; i++) {
+            if (!shardKeys[i].isEmpty()) this.shards[i].loadAll(shardKeys[i], shardIndexKeys[i], result);
+        }
+        return result;
+    }
+
+    @Override
+    public void forEachKey(@NotNull Consumer<? super K> action) {
+        for (final DiskRepository<K, V> shard : this.shards) {
+            shard.forEachKey(action);
+        }
+    }
+
+    @Override
+    public void forEach(@NotNull BiConsumer<? super K, ? super V> action) {
+        for (final DiskRepository<K, V> shard : this.shards) {
+            shard.forEach(action);
+        }
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> stream() {
+        // flatMap opens each shard's stream, and with it its snapshot, only when it gets there
+        return Arrays.stream(this.shards).flatMap(DiskRepository::stream);
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> scanPrefix(byte @NotNull [] prefix) {
+        final byte[] copy = prefix.clone();
+        return Arrays.stream(this.shards).flatMap(shard -> shard.scanPrefix(copy));
+    }
+
+    @Override
+    public Set<K> findBy(@NotNull String indexName, @NotNull Object value) {
+        final Set<K> keys = new HashSet<>();
+        for (final DiskRepository<K, V> shard : this.shards) {
+            keys.addAll(shard.findBy(indexName, value));
+        }
+        return keys;
+    }
+
+    @Override
+    public Subscription subscribe(long fromOffset, @NotNull Consumer<? super ChangeEvent<K, V>> listener) {
+        if (fromOffset < 0) throw new IllegalArgumentException("fromOffset must not be negative");
+        return new MergedFeed(fromOffset, listener);
+    }
+
+    @Override
+    public void unloadFromCache(@NotNull K key) {
+        final IndexKey indexKey = this.key(key);
+        this.shardOf(indexKey).unloadFromCache(indexKey);
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long weight = 0;
+        for (final DiskRepository<K, V> shard : this.shards) {
+            final CacheStats stats = shard.cacheStats();
+            hits += stats.hits();
+            misses += stats.misses();
+            evictions += stats.evictions();
+            weight += stats.weight();
+        }
+        return new CacheStats(hits, misses, evictions, weight);
+    }
+
+    @Override
+    public RepositoryStats stats() {
+        int queueDepth = 0;
+        long rejectedWrites = 0;
+        long coalescedWrites = 0;
+        long writes = 0;
+        long batches = 0;
+        long logBytes = 0;
+        long deadBytes = 0;
+        long compactions = 0;
+        long compactionNanos = 0;
+        LatencyHistogram.Snapshot reads = LatencyHistogram.Snapshot.EMPTY;
+        for (final DiskRepository<K, V> shard : this.shards) {
+            final RepositoryStats stats = shard.stats();
+            queueDepth += stats.queueDepth();
+            rejectedWrites += stats.rejectedWrites();
+            coalescedWrites += stats.coalescedWrites();
+            writes += stats.writes();
+            batches += stats.batches();
+            logBytes += stats.logBytes();
+            deadBytes += stats.deadBytes();
+            compactions += stats.compactions();
+            compactionNanos += stats.compactionNanos();
+            // percentiles do not add up, the histograms behind them do
+            reads = reads.plus(shard.readLatency());
+        }
+        return RepositoryStats.of(queueDepth, rejectedWrites, coalescedWrites, writes, batches, logBytes, deadBytes,
+                compactions, compactionNanos, reads, this.cacheStats());
+    }
+
+    @Override
+    public void snapshot(@NotNull Path target) {
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i].snapshot(target.resolve(SHARD_PREFIX + i));
+        }
+    }
+
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (final DiskRepository<K, V> shard : this.shards) {
+            try {
+                shard.close();
+            } catch (RuntimeException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // -------------------------------------------------------------------------
+    // Change feed
+    // -------------------------------------------------------------------------
+
+    /**
+     * The feeds of all shards, delivered to one listener one change at a time. Versions come from
+     * the counter the shards share, so each shard feed knows a version up to which it delivered
+     * everything; the lowest of them is where the merged feed can resume without missing a change.
+     */
+    private final class MergedFeed implements Subscription {
+
+        private final List<DiskRepository<K, V>.Subscriber> feeds = new ArrayList<>();
+        private final ReentrantLock delivering = new ReentrantLock();
+        private volatile boolean closed;
+
+        MergedFeed(long fromOffset, Consumer<? super ChangeEvent<K, V>> listener) {
+            final Consumer<ChangeEvent<K, V>> serialized = change -> {
+                try {
+                    // polled, so a feed waiting here never holds up close() called from the listener
+                    while (!this.delivering.tryLock(DELIVERY_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (this.closed) return;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    if (!this.closed) listener.accept(change);
+                } finally {
+                    this.delivering.unlock();
+                }
+            };
+            try {
+                for (final DiskRepository<K, V> shard : ShardedRepository.this.shards) {
+                    this.feeds.add(shard.subscribe(fromOffset, serialized));
+                }
+            } catch (RuntimeException ex) {
+                this.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public long lastOffset() {
+            long through = Long.MAX_VALUE;
+            for (final DiskRepository<K, V>.Subscriber feed : this.feeds) {
+                through = Math.min(through, feed.deliveredThrough());
+            }
+            return Math.max(through, 0);
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+            for (final DiskRepository<K, V>.Subscriber feed : this.feeds) {
+                feed.close();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Routing
+    // -------------------------------------------------------------------------
+
+    @Override
+    public Optional<V> load(IndexKey indexKey) {
+        return this.shardOf(indexKey).load(indexKey);
+    }
+
+    @Override
+    public void write(IndexKey indexKey, V value, long expiresAt, CompletableFuture<Void> future) {
+        this.shardOf(indexKey).write(indexKey, value, expiresAt, future);
+    }
+
+    /**
+     * Maps a key hash to a shard. Uses the high bits of a 64-bit product, so the keys of one
+     * shard still spread over all slots of its {@link OffsetIndex}, which are chosen by low bits.
+     */
+    static int shardIndex(int hash, int shardCount) {
+        return (int) ((((hash * 0x9E37_79B9_7F4A_7C15L) >>> 32) * shardCount) >>> 32);
+    }
+
+    private int shardIndex(IndexKey indexKey) {
+        return shardIndex(indexKey.hashCode(), this.shards.length);
+    }
+
+    private DiskRepository<K, V> shardOf(IndexKey indexKey) {
+        return this.shards[this.shardIndex(indexKey)];
+    }
+
+    private IndexKey key(K key) {
+        return IndexKey.of(this.keyEncoder, key);
+    }
+
+    // -------------------------------------------------------------------------
+    // Bulk helpers
+    // -------------------------------------------------------------------------
+
+    /**
+     * The part of a bulk write that goes to one shard; a {@code null} value is a delete.
+     */
+    private static final class Batch<V> {
+
+        final List<IndexKey> indexKeys = new ArrayList<>();
+        final List<V> values = new ArrayList<>();
+
+        void add(IndexKey indexKey, V value) {
+            this.indexKeys.add(indexKey);
+            this.values.add(value);
+        }
+    }
+
+    /**
+     * Encodes the keys of a write batch, which is only atomic within one shard.
+     *
+     * @throws IllegalArgumentException if the keys map to more than one shard
+     */
+    private List<IndexKey> keysInOneShard(WriteBatch<K, V> batch) {
+        final List<IndexKey> indexKeys = new ArrayList<>(batch.size());
+        for (final WriteBatch.Write<K, V> write : batch.writes()) {
+            final IndexKey indexKey = this.key(write.key());
+            if (!indexKeys.isEmpty() && this.shardIndex(indexKey) != this.shardIndex(indexKeys.get(0))) {
+                throw new IllegalArgumentException("Write batch spans more than one of " + this.shards.length + " shards");
+            }
+            indexKeys.add(indexKey);
+        }
+        return indexKeys;
+    }
+
+    private DiskRepository<K, V> shardOf(List<IndexKey> indexKeys) {
+        // an empty batch commits on any shard
+        return indexKeys.isEmpty() ? this.shards[0] : this.shardOf(indexKeys.get(0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Batch<V>[] newBatches() {
+        final Batch<V>[] batches = new Batch[this.shards.length];
+        for (int i = 0; i < batches.length; i++) batches[i] = new Batch<>();
+        return batches;
+    }
+
+    private void writeAll(Batch<V>[] batches) {
+        for (int i = 0; i < batches.length; i++) {
+            this.shards[i].writeAll(batches[i].indexKeys, batches[i].values);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T>[] newLists() {
+        final List<T>[] lists = new List[this.shards.length];
+        for (int i = 0; i < lists.length; i++) lists[i] = new ArrayList<>();
+        return lists;
+    }
+}
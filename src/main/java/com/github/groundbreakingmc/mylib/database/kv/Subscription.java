@@ -0,0 +1,24 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+/**
+ * A registration made by {@link KVRepository#subscribe}. Changes keep being delivered to its
+ * listener until it is closed, or the repository is.
+ */
+public interface Subscription extends AutoCloseable {
+
+    /**
+     * Returns the offset of the last change the listener has returned from. With
+     * {@link KVRepository.Builder#shards}, returns an offset up to which every shard has delivered
+     * its changes instead, which may be behind changes of some shards or ahead of the last change.
+     *
+     * @return the offset, or {@code 0} if nothing was delivered yet
+     */
+    long lastOffset();
+
+    /**
+     * Stops the deliveries. A listener call in progress is finished, but no other follows; when
+     * called from elsewhere than the listener, this waits for that call.
+     */
+    @Override
+    void close();
+}
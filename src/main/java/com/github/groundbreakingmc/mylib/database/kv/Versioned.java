@@ -0,0 +1,21 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+/**
+ * A stored value with the version of its record, as returned by {@link KVRepository#loadVersioned}.
+ *
+ * <p>Every write gets a version from a counter of its repository, which all its
+ * {@link KVRepository.Builder#shards shards} share, so the versions of one key grow with every
+ * save. They survive restarts and compaction. {@link #ABSENT} stands for a key without a value.
+ *
+ * @param value   the value, not null
+ * @param version the version of the record holding the value, positive
+ * @param <V>     value type
+ */
+public record Versioned<V>(V value, long version) {
+
+    /**
+     * The version of a key without a value, which {@link KVRepository#compareAndSave} expects to
+     * save only if the key is absent.
+     */
+    public static final long ABSENT = 0;
+}
@@ -0,0 +1,103 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Saves and deletes that a {@link KVRepository} applies together, with
+ * {@link KVRepository#commit} or {@link KVRepository#commitAsync}.
+ *
+ * <p>The writes of a batch are appended to the log as one contiguous run, framed by a begin
+ * and a commit marker. After a crash, the repository finds either all of them or none: a batch
+ * that did not make it to disk completely is dropped as a whole on the next startup. A
+ * repository split into {@link KVRepository.Builder#shards} refuses a batch whose keys belong to
+ * different shards, since no single log could frame it.
+ * <pre>{@code
+ * WriteBatch<UUID, Inventory> move = new WriteBatch<UUID, Inventory>()
+ *     .save(from.uuid(), from.inventory().without(item))
+ *     .save(to.uuid(), to.inventory().with(item));
+ * inventories.commit(move);
+ * }</pre>
+ *
+ * <p>Writes to the same key replace each other in the order they were added. A batch can be
+ * committed more than once, and changing it afterwards does not affect commits already made.
+ * It is not thread-safe.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class WriteBatch<K, V> {
+
+    /**
+     * @param value     the value, or {@code null} for a delete
+     * @param expiresAt epoch millis after which the value counts as absent, or {@code 0}
+     */
+    record Write<K, V>(K key, V value, long expiresAt) {}
+
+    private final List<Write<K, V>> writes = new ArrayList<>();
+
+    /**
+     * Adds a save of the given key-value pair, like {@link KVRepository#save(Object, Object)}.
+     *
+     * @param key   the key, not null
+     * @param value the value, not null
+     * @return this batch
+     */
+    public WriteBatch<K, V> save(@NotNull K key, @NotNull V value) {
+        this.writes.add(new Write<>(Objects.requireNonNull(key, "key"), Objects.requireNonNull(value, "value"), 0));
+        return this;
+    }
+
+    /**
+     * Adds a save of the given key-value pair for a limited time, like
+     * {@link KVRepository#save(Object, Object, Duration)}. The time starts now, not at the commit.
+     *
+     * @param key   the key, not null
+     * @param value the value, not null
+     * @param ttl   how long the entry lives, positive
+     * @return this batch
+     * @throws IllegalArgumentException if {@code ttl} is zero or negative
+     */
+    public WriteBatch<K, V> save(@NotNull K key, @NotNull V value, @NotNull Duration ttl) {
+        this.writes.add(new Write<>(Objects.requireNonNull(key, "key"), Objects.requireNonNull(value, "value"),
+                DiskRepository.expiresAt(ttl)));
+        return this;
+    }
+
+    /**
+     * Adds a delete of the given key, like {@link KVRepository#delete(Object)}.
+     *
+     * @param key the key to delete, not null
+     * @return this batch
+     */
+    public WriteBatch<K, V> delete(@NotNull K key) {
+        this.writes.add(new Write<>(Objects.requireNonNull(key, "key"), null, 0));
+        return this;
+    }
+
+    /**
+     * Returns the number of writes added, including those to keys written more than once.
+     *
+     * @return the number of writes
+     */
+    public int size() {
+        return this.writes.size();
+    }
+
+    /**
+     * Returns whether no writes were added.
+     *
+     * @return {@code true} if committing this batch does nothing
+     */
+    public boolean isEmpty() {
+        return this.writes.isEmpty();
+    }
+
+    List<Write<K, V>> writes() {
+        return this.writes;
+    }
+}
@@ -3,13 +3,35 @@ package com.github.groundbreakingmc.mylib.database.kv;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,6 +65,24 @@ class DiskRepositoryTest {
         }
     };
 
+    // stores the same bytes as STRING_ENCODER; the hint is far too low, so large values overflow
+    private static final BufferEncoder<String> STRING_BUFFER_ENCODER = new BufferEncoder<>() {
+        public int sizeHint(String value) {
+            return 1;
+        }
+
+        public void encode(String value, java.nio.ByteBuffer target) {
+            target.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public String decode(java.nio.ByteBuffer source) {
+            assertTrue(source.isReadOnly());
+            var data = new byte[source.remaining()];
+            source.get(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
     // -------------------------------------------------------------------------
     // Helpers
     // -------------------------------------------------------------------------
@@ -60,6 +100,33 @@ class DiskRepositoryTest {
                 .build();
     }
 
+    private KVRepository<String, String> open(Path dir, RepositoryConfig config, Logger logger) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .config(config)
+                .logger(logger)
+                .build();
+    }
+
+    private static Logger collectingLogger(List<String> messages) {
+        var logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        });
+        return logger;
+    }
+
     /**
      * Polls up to 2 seconds for the writer thread to flush the expected value.
      */
@@ -143,236 +210,1839 @@ class DiskRepositoryTest {
         repo.close();
     }
 
+    @Test
+    void loadSeesQueuedWritesWithoutCache(@TempDir Path dir) {
+        var repo = open(dir);
+
+        // no waits — queued writes must be visible before the writer gets to them
+        for (int i = 0; i < 1_000; i++) {
+            repo.save("key-" + i, "value-" + i);
+            assertEquals(Optional.of("value-" + i), repo.load("key-" + i));
+        }
+        repo.save("key-0", "updated");
+        assertEquals(Optional.of("updated"), repo.load("key-0"));
+        repo.delete("key-1");
+        assertEquals(Optional.empty(), repo.load("key-1"));
+
+        repo.close();
+
+        var repo2 = open(dir);
+        assertEquals(Optional.of("updated"), repo2.load("key-0"));
+        assertEquals(Optional.empty(), repo2.load("key-1"));
+        assertEquals(Optional.of("value-999"), repo2.load("key-999"));
+        repo2.close();
+    }
+
     // -------------------------------------------------------------------------
-    // Persistence across restarts
+    // Bulk operations
     // -------------------------------------------------------------------------
 
     @Test
-    void dataPersistedAfterReopen(@TempDir Path dir) {
+    void saveAllThenLoadAll(@TempDir Path dir) {
         var repo = open(dir);
-        repo.save("key", "persisted");
+
+        var entries = new HashMap<String, String>();
+        for (int i = 0; i < 500; i++) {
+            entries.put("key-" + i, "value-" + i);
+        }
+        repo.saveAll(entries);
+
+        var keys = new ArrayList<>(entries.keySet());
+        keys.add("missing");
+        assertEquals(entries, repo.loadAll(keys));
         repo.close();
 
         var repo2 = open(dir);
-        assertEquals(Optional.of("persisted"), repo2.load("key"));
+        assertEquals(entries, repo2.loadAll(keys));
         repo2.close();
     }
 
     @Test
-    void deletePersistedAfterReopen(@TempDir Path dir) {
+    void deleteAllRemovesEveryKey(@TempDir Path dir) {
         var repo = open(dir);
-        repo.save("key", "value");
-        repo.delete("key");
+        repo.saveAll(Map.of("a", "1", "b", "2", "c", "3"));
+        repo.deleteAll(List.of("a", "c"));
+        assertEquals(Map.of("b", "2"), repo.loadAll(List.of("a", "b", "c")));
         repo.close();
 
         var repo2 = open(dir);
-        assertEquals(Optional.empty(), repo2.load("key"));
+        assertEquals(Map.of("b", "2"), repo2.loadAll(List.of("a", "b", "c")));
         repo2.close();
     }
 
     @Test
-    void updatePersistedAfterReopen(@TempDir Path dir) {
-        var repo = open(dir);
-        repo.save("key", "old");
-        repo.save("key", "new");
+    void loadAllMixesQueuedCachedAndStoredValues(@TempDir Path dir) {
+        var repo = open(dir, RepositoryConfig.withCache());
+        repo.saveAll(Map.of("stored", "1", "cached", "2"));
         repo.close();
 
-        var repo2 = open(dir);
-        assertEquals(Optional.of("new"), repo2.load("key"));
+        var repo2 = open(dir, RepositoryConfig.withCache());
+        assertEquals(Optional.of("2"), repo2.load("cached"));
+        repo2.save("queued", "3");
+        assertEquals(Map.of("stored", "1", "cached", "2", "queued", "3"),
+                repo2.loadAll(List.of("stored", "cached", "queued", "missing")));
         repo2.close();
     }
 
     // -------------------------------------------------------------------------
-    // Cache
+    // Iteration
     // -------------------------------------------------------------------------
 
     @Test
-    void cacheReturnsSavedValueImmediately(@TempDir Path dir) {
-        var repo = KVRepository.<String, String>builder()
-                .path(dir.resolve("test.db"))
-                .keyEncoder(STRING_ENCODER)
-                .valueEncoder(STRING_ENCODER)
-                .config(RepositoryConfig.withCache())
-                .build();
+    void forEachSeesEveryLiveEntryIncludingQueuedWrites(@TempDir Path dir) {
+        var repo = open(dir);
+        for (int i = 0; i < 100; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        for (int i = 0; i < 100; i += 3) {
+            repo.delete("key-" + i);
+        }
 
-        repo.save("key", "cached");
-        // no wait — cache must return value synchronously
-        assertEquals(Optional.of("cached"), repo.load("key"));
+        var entries = new HashMap<String, String>();
+        repo.forEach(entries::put);
+        var keys = new ArrayList<String>();
+        repo.forEachKey(keys::add);
+
+        assertEquals(66, entries.size());
+        assertEquals(entries.keySet(), new HashSet<>(keys));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 3 == 0 ? null : "value-" + i, entries.get("key-" + i));
+        }
         repo.close();
     }
 
     @Test
-    void unloadFromCacheDoesNotDeleteFromDisk(@TempDir Path dir) {
-        var repo = KVRepository.<String, String>builder()
-                .path(dir.resolve("test.db"))
-                .keyEncoder(STRING_ENCODER)
-                .valueEncoder(STRING_ENCODER)
-                .config(RepositoryConfig.withCache())
-                .build();
-
-        repo.save("key", "value");
+    void scanPrefixMatchesEncodedKeyBytes(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("world:1", "a");
+        repo.save("world:2", "b");
+        repo.save("world_nether:1", "c");
+        repo.save("end:1", "d");
+
+        try (var stream = repo.scanPrefix("world:".getBytes(StandardCharsets.UTF_8))) {
+            var found = stream.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            assertEquals(Map.of("world:1", "a", "world:2", "b"), found);
+        }
+        try (var stream = repo.stream()) {
+            assertEquals(4, stream.count());
+        }
         repo.close();
+    }
 
-        var repo2 = KVRepository.<String, String>builder()
-                .path(dir.resolve("test.db"))
-                .keyEncoder(STRING_ENCODER)
-                .valueEncoder(STRING_ENCODER)
-                .config(RepositoryConfig.withCache())
+    @Test
+    void streamKeepsItsSnapshotThroughWritesAndCompaction(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(256)
+                .compactRatio(0.1)
                 .build();
+        var repo = open(dir, config);
+        for (int i = 0; i < 20; i++) {
+            repo.save("key-" + i, "round-0");
+        }
 
-        repo2.unloadFromCache("key");
-        assertEquals(Optional.of("value"), repo2.load("key")); // still on disk
-        repo2.close();
+        var seen = new HashMap<String, String>();
+        try (var stream = repo.stream()) {
+            var iterator = stream.iterator();
+            var first = iterator.next();
+            seen.put(first.getKey(), first.getValue());
+
+            for (int round = 1; round <= 50; round++) {
+                for (int i = 0; i < 20; i++) {
+                    repo.save("key-" + i, "round-" + round);
+                }
+            }
+            repo.deleteAsync("key-19").join();
+
+            // wait until compaction has replaced segments the snapshot still reads from
+            long deadline = System.currentTimeMillis() + 2_000;
+            while (filesEndingWith(dir.resolve("test.db"), ".seg").stream()
+                    .allMatch(file -> file.getFileName().toString().endsWith("-0000.seg"))) {
+                assertTrue(System.currentTimeMillis() < deadline, "compaction did not run");
+                Thread.sleep(10);
+            }
+
+            iterator.forEachRemaining(entry -> seen.put(entry.getKey(), entry.getValue()));
+        }
+
+        assertEquals(20, seen.size());
+        assertTrue(seen.values().stream().allMatch("round-0"::equals), seen.toString());
+        assertEquals(Optional.of("round-50"), repo.load("key-0"));
+        assertEquals(Optional.empty(), repo.load("key-19"));
+        repo.close();
     }
 
     // -------------------------------------------------------------------------
-    // File lock
+    // Persistence across restarts
     // -------------------------------------------------------------------------
 
     @Test
-    void openingSameFileTwiceThrows(@TempDir Path dir) {
+    void dataPersistedAfterReopen(@TempDir Path dir) {
         var repo = open(dir);
-        try {
-            assertThrows(IllegalStateException.class, () -> open(dir));
-        } finally {
-            repo.close();
-        }
+        repo.save("key", "persisted");
+        repo.close();
+
+        var repo2 = open(dir);
+        assertEquals(Optional.of("persisted"), repo2.load("key"));
+        repo2.close();
     }
 
     @Test
-    void canReopenAfterClose(@TempDir Path dir) {
+    void deletePersistedAfterReopen(@TempDir Path dir) {
         var repo = open(dir);
+        repo.save("key", "value");
+        repo.delete("key");
         repo.close();
 
-        assertDoesNotThrow(() -> {
-            var repo2 = open(dir);
-            repo2.close();
-        });
+        var repo2 = open(dir);
+        assertEquals(Optional.empty(), repo2.load("key"));
+        repo2.close();
+    }
+
+    @Test
+    void updatePersistedAfterReopen(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("key", "old");
+        repo.save("key", "new");
+        repo.close();
+
+        var repo2 = open(dir);
+        assertEquals(Optional.of("new"), repo2.load("key"));
+        repo2.close();
     }
 
     // -------------------------------------------------------------------------
-    // Concurrency
+    // Hint file
     // -------------------------------------------------------------------------
 
     @Test
-    void concurrentSavesAllPersisted(@TempDir Path dir) throws Exception {
+    void hintFileWrittenOnClose(@TempDir Path dir) throws IOException {
         var repo = open(dir);
-        int threadCount = 8;
-        int writesPerThread = 50;
+        repo.save("key", "value");
+        repo.close();
 
-        var latch = new CountDownLatch(threadCount);
-        var executor = Executors.newFixedThreadPool(threadCount);
+        assertEquals(1, filesEndingWith(dir.resolve("test.db"), ".hint").size());
 
-        for (int t = 0; t < threadCount; t++) {
-            int tid = t;
-            executor.submit(() -> {
-                for (int i = 0; i < writesPerThread; i++) {
-                    repo.save("thread-" + tid + "-key-" + i, "value-" + i);
-                }
-                latch.countDown();
-            });
-        }
+        var repo2 = open(dir);
+        assertEquals(Optional.of("value"), repo2.load("key"));
+        repo2.close();
+    }
 
-        assertTrue(latch.await(10, TimeUnit.SECONDS));
-        executor.shutdown();
+    @Test
+    void tailWrittenAfterHintIsReplayed(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        repo.save("before", "1");
+        repo.delete("missing");
         repo.close();
 
         var repo2 = open(dir);
-        for (int t = 0; t < threadCount; t++) {
-            for (int i = 0; i < writesPerThread; i++) {
-                assertEquals(
-                        Optional.of("value-" + i),
-                        repo2.load("thread-" + t + "-key-" + i),
-                        "Missing: thread-" + t + "-key-" + i
-                );
+        repo2.save("after", "2");
+        repo2.deleteAsync("before").join();
+
+        // simulate a crash: copy the segments and the old hints while the repository is still open
+        var crashed = Files.createDirectories(dir.resolve("crashed").resolve("test.db"));
+        for (var file : filesEndingWith(dir.resolve("test.db"), "")) {
+            if (!file.getFileName().toString().equals("lock")) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
             }
         }
         repo2.close();
+
+        var repo3 = open(dir.resolve("crashed"));
+        assertEquals(Optional.empty(), repo3.load("before"));
+        assertEquals(Optional.of("2"), repo3.load("after"));
+        repo3.close();
     }
 
     @Test
-    void concurrentReadsWhileWriting(@TempDir Path dir) throws Exception {
+    void corruptHintFallsBackToFullReplay(@TempDir Path dir) throws IOException {
         var repo = open(dir);
-        repo.save("stable", "present");
+        repo.save("a", "1");
+        repo.save("b", "2");
         repo.close();
 
+        for (var hint : filesEndingWith(dir.resolve("test.db"), ".hint")) {
+            var bytes = Files.readAllBytes(hint);
+            bytes[bytes.length / 2] ^= 0x7F;
+            Files.write(hint, bytes);
+        }
+
         var repo2 = open(dir);
-        int readerCount = 4;
-        var latch = new CountDownLatch(readerCount);
-        var executor = Executors.newFixedThreadPool(readerCount + 1);
+        assertEquals(Optional.of("1"), repo2.load("a"));
+        assertEquals(Optional.of("2"), repo2.load("b"));
+        repo2.close();
+    }
 
-        executor.submit(() -> {
-            for (int i = 0; i < 100; i++) {
-                repo2.save("key-" + i, "val-" + i);
-            }
-        });
+    @Test
+    void staleHintIsIgnored(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        repo.save("a", "1");
+        repo.close();
 
-        for (int r = 0; r < readerCount; r++) {
-            executor.submit(() -> {
-                for (int i = 0; i < 200; i++) {
-                    assertDoesNotThrow(() -> repo2.load("stable"));
-                }
-                latch.countDown();
-            });
+        // the hint now claims more log than there is
+        for (var segment : filesEndingWith(dir.resolve("test.db"), ".seg")) {
+            Files.write(segment, new byte[0]);
         }
 
-        assertTrue(latch.await(10, TimeUnit.SECONDS));
-        executor.shutdown();
+        var repo2 = open(dir);
+        assertEquals(Optional.empty(), repo2.load("a"));
         repo2.close();
     }
 
     // -------------------------------------------------------------------------
-    // Compaction
+    // Crash recovery
     // -------------------------------------------------------------------------
 
     @Test
-    void compactionPreservesAllLiveData(@TempDir Path dir) {
-        var config = new RepositoryConfig(false, 64, 0.01, 1L);
-        var repo = open(dir, config);
+    void tornTailIsTruncatedOnStartup(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        repo.save("a", "1");
+        repo.saveAsync("b", "2").join();
+        repo.close();
 
-        for (int i = 0; i < 20; i++) {
-            repo.save("key-" + i, "value-" + i);
-        }
-        for (int i = 0; i < 10; i++) {
-            repo.save("key-" + i, "updated-" + i);
-        }
+        var segment = filesEndingWith(dir.resolve("test.db"), ".seg").get(0);
+        long intact = Files.size(segment);
+        // the first bytes of a record whose write was cut short
+        Files.write(segment, new byte[]{1, 2, 3, 4, 0, 0, 0, 0, 3, 0, 0, 0, 9, 'k', 'e'}, StandardOpenOption.APPEND);
+
+        var messages = new ArrayList<String>();
+        var repo2 = open(dir, RepositoryConfig.defaults(), collectingLogger(messages));
+        assertEquals(intact, Files.size(segment));
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).contains("Dropped 15 bytes"), messages.get(0));
+        assertEquals(Optional.of("1"), repo2.load("a"));
+        assertEquals(Optional.of("2"), repo2.load("b"));
+
+        // new records continue where the intact log ends
+        repo2.saveAsync("c", "3").join();
+        repo2.close();
+
+        var repo3 = open(dir);
+        assertEquals(Optional.of("2"), repo3.load("b"));
+        assertEquals(Optional.of("3"), repo3.load("c"));
+        repo3.close();
+    }
+
+    @Test
+    void recordFailingChecksumIsDroppedOnStartup(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        repo.save("a", "1");
+        repo.saveAsync("b", "2").join();
         repo.close();
 
-        var repo2 = open(dir);
-        for (int i = 0; i < 10; i++) {
-            assertEquals(Optional.of("updated-" + i), repo2.load("key-" + i));
-        }
-        for (int i = 10; i < 20; i++) {
-            assertEquals(Optional.of("value-" + i), repo2.load("key-" + i));
+        for (var hint : filesEndingWith(dir.resolve("test.db"), ".hint")) {
+            Files.delete(hint);
         }
+        flipLastByte(filesEndingWith(dir.resolve("test.db"), ".seg").get(0));
+
+        var messages = new ArrayList<String>();
+        var repo2 = open(dir, RepositoryConfig.defaults(), collectingLogger(messages));
+        assertEquals(1, messages.size());
+        assertEquals(Optional.of("1"), repo2.load("a"));
+        assertEquals(Optional.empty(), repo2.load("b"));
         repo2.close();
     }
 
     @Test
-    void compactionRemovesDeletedKeys(@TempDir Path dir) {
-        var config = new RepositoryConfig(false, 64, 0.01, 1L);
-        var repo = open(dir, config);
+    void verifiedReadsRejectCorruptRecords(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        repo.saveAsync("key", "value").join();
+        repo.close();
 
-        repo.save("alive", "yes");
-        repo.save("dead", "bye");
-        repo.delete("dead");
+        // covered by the hint, so startup does not look at the record itself
+        flipLastByte(filesEndingWith(dir.resolve("test.db"), ".seg").get(0));
+
+        var unverified = open(dir);
+        assertNotEquals(Optional.of("value"), unverified.load("key"));
+        unverified.close();
+
+        for (boolean mmapReads : new boolean[]{false, true}) {
+            var verified = open(dir, RepositoryConfig.builder()
+                    .verifyChecksums(true)
+                    .mmapReads(mmapReads)
+                    .build());
+            assertThrows(RuntimeException.class, () -> verified.load("key"));
+            verified.close();
+        }
+    }
+
+    @Test
+    void verifiedReadsReturnIntactRecords(@TempDir Path dir) {
+        var config = RepositoryConfig.builder().verifyChecksums(true).build();
+        var repo = open(dir, config);
+        repo.save("a", "1");
+        repo.saveAsync("b", "x".repeat(1000)).join();
         repo.close();
 
-        var repo2 = open(dir);
-        assertEquals(Optional.of("yes"), repo2.load("alive"));
-        assertEquals(Optional.empty(), repo2.load("dead"));
+        var repo2 = open(dir, config);
+        assertEquals(Optional.of("1"), repo2.load("a"));
+        assertEquals(Optional.of("x".repeat(1000)), repo2.load("b"));
         repo2.close();
     }
 
     // -------------------------------------------------------------------------
-    // Builder — lambda encoders
+    // Write batches
     // -------------------------------------------------------------------------
 
     @Test
-    void builderLambdaEncoders(@TempDir Path dir) {
-        var repo = KVRepository.<UUID, String>builder()
-                .path(dir.resolve("uuid.db"))
-                .keyEncoder(UUID_ENCODER)
+    void writeBatchAppliesEveryWrite(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("from", "sword");
+        repo.save("gone", "value");
+        var batch = new WriteBatch<String, String>()
+                .save("from", "empty")
+                .save("to", "nothing")
+                .save("to", "sword")
+                .delete("gone")
+                .save("session", "token", Duration.ofHours(1));
+        assertEquals(5, batch.size());
+        repo.commitAsync(batch).join();
+        repo.commitAsync(new WriteBatch<>()).join();
+
+        var expected = new HashMap<String, String>();
+        expected.put("from", "empty");
+        expected.put("to", "sword");
+        expected.put("session", "token");
+        assertEquals(expected, repo.loadAll(List.of("from", "to", "gone", "session")));
+        // two saves, then the last write per key of the batch
+        assertEquals(6, repo.stats().writes());
+        long deadBytes = repo.stats().deadBytes();
+        repo.close();
+
+        // replayed from the hint written on close
+        var reopened = open(dir);
+        assertEquals(expected, reopened.loadAll(List.of("from", "to", "gone", "session")));
+        assertEquals(deadBytes, reopened.stats().deadBytes());
+        reopened.close();
+    }
+
+    @Test
+    void batchCutShortIsDroppedWhole(@TempDir Path dir) throws IOException {
+        // cut off the commit marker only, and in the middle of the last record
+        for (int cut : new int[]{13, 20}) {
+            var path = dir.resolve("cut-" + cut);
+            var repo = open(path);
+            repo.saveAsync("from", "sword").join();
+            repo.commitAsync(new WriteBatch<String, String>().save("from", "empty").save("to", "sword")).join();
+            repo.close();
+
+            var segment = filesEndingWith(path.resolve("test.db"), ".seg").get(0);
+            try (var channel = java.nio.channels.FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - cut);
+            }
+
+            var messages = new ArrayList<String>();
+            var reopened = open(path, RepositoryConfig.defaults(), collectingLogger(messages));
+            assertEquals(Optional.of("sword"), reopened.load("from"));
+            assertEquals(Optional.empty(), reopened.load("to"));
+            assertEquals(1, messages.size());
+
+            // the next writes continue where the last intact record ends
+            reopened.saveAsync("to", "shield").join();
+            reopened.close();
+            var again = open(path);
+            assertEquals(Optional.of("sword"), again.load("from"));
+            assertEquals(Optional.of("shield"), again.load("to"));
+            again.close();
+        }
+    }
+
+    @Test
+    void batchIsRejectedWhole(@TempDir Path dir) throws Exception {
+        var stalled = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var config = RepositoryConfig.builder().writeQueueCapacity(2).overflowPolicy(OverflowPolicy.FAIL_FAST).build();
+        var repo = openStallable(dir, config, stalled, release);
+        repo.save("stuck", "stall");
+        assertTrue(stalled.await(2, TimeUnit.SECONDS));
+
+        var batch = new WriteBatch<String, String>().save("a", "1").save("b", "2");
+        assertThrows(RejectedExecutionException.class, () -> repo.commit(batch));
+        var rejected = repo.commitAsync(batch);
+        assertThrows(CompletionException.class, rejected::join);
+        assertEquals(Optional.empty(), repo.load("a"));
+        assertEquals(4, repo.stats().rejectedWrites());
+
+        release.countDown();
+        awaitEmptyQueue(repo);
+        repo.commitAsync(batch).join();
+        assertEquals(Optional.of("2"), repo.load("b"));
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Versions
+    // -------------------------------------------------------------------------
+
+    private static long versionOf(KVRepository<String, String> repo, String key) {
+        return repo.loadVersioned(key).map(Versioned::version).orElse(Versioned.ABSENT);
+    }
+
+    @Test
+    void versionsGrowWithEveryWriteAndSurviveRestarts(@TempDir Path dir) throws IOException {
+        var repo = open(dir);
+        assertEquals(Optional.empty(), repo.loadVersioned("key"));
+        repo.save("key", "a");
+        // resolved on the writer thread while the save is queued
+        assertEquals("a", repo.loadVersioned("key").orElseThrow().value());
+        long first = versionOf(repo, "key");
+        repo.save("other", "x");
+        repo.save("key", "b");
+        long second = versionOf(repo, "key");
+        assertTrue(first > Versioned.ABSENT);
+        assertTrue(second > first);
+        repo.delete("key");
+        assertEquals(Optional.empty(), repo.loadVersioned("key"));
+        repo.close();
+
+        // the counter resumes past the tombstone, from the hint and from a scan alike
+        for (int i = 0; i < 2; i++) {
+            var reopened = open(dir);
+            reopened.save("key", "c");
+            long third = versionOf(reopened, "key");
+            assertTrue(third > second);
+            assertEquals(new Versioned<>("x", versionOf(reopened, "other")), reopened.loadVersioned("other").orElseThrow());
+            reopened.delete("key");
+            reopened.close();
+            second = third;
+            for (var hint : filesEndingWith(dir.resolve("test.db"), ".hint")) {
+                Files.delete(hint);
+            }
+        }
+    }
+
+    @Test
+    void compareAndSaveOnlyAppliesAtTheExpectedVersion(@TempDir Path dir) {
+        var repo = open(dir, RepositoryConfig.withCache());
+        assertTrue(repo.compareAndSave("key", Versioned.ABSENT, "a"));
+        assertFalse(repo.compareAndSave("key", Versioned.ABSENT, "b"));
+        long version = versionOf(repo, "key");
+
+        repo.save("key", "c");
+        assertFalse(repo.compareAndSave("key", version, "d"));
+        assertEquals(Optional.of("c"), repo.load("key"));
+
+        version = versionOf(repo, "key");
+        assertTrue(repo.compareAndSave("key", version, "e"));
+        assertEquals(Optional.of("e"), repo.load("key"));
+        assertTrue(versionOf(repo, "key") > version);
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.of("e"), reopened.load("key"));
+        reopened.close();
+    }
+
+    @Test
+    void computeSerializesConcurrentUpdates(@TempDir Path dir) throws Exception {
+        var repo = open(dir);
+        int threads = 8;
+        int increments = 250;
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var futures = new ArrayList<java.util.concurrent.Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        repo.compute("counter", (key, value) -> String.valueOf(value == null ? 1 : Integer.parseInt(value) + 1));
+                    }
+                }));
+            }
+            for (var future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        }
+        assertEquals(Optional.of(String.valueOf(threads * increments)), repo.load("counter"));
+
+        // a failing function leaves the key alone, and a null result deletes it
+        var failure = new IllegalStateException("no");
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> repo.compute("counter", (key, value) -> {
+            throw failure;
+        })));
+        assertEquals(Optional.of(String.valueOf(threads * increments)), repo.load("counter"));
+        assertEquals(Optional.empty(), repo.compute("counter", (key, value) -> null));
+        assertEquals(Optional.empty(), repo.load("counter"));
+
+        // the function must not wait for the writer thread it runs on
+        assertThrows(IllegalStateException.class, () -> repo.compute("nested", (key, value) -> repo.compute(key, (k, v) -> "x").orElse(null)));
+        repo.close();
+    }
+
+    @Test
+    void computeCannotWriteFromItsFunction(@TempDir Path dir) {
+        // the compute task takes the only queue slot, so a write waiting for room would never get it
+        var config = RepositoryConfig.builder().writeQueueCapacity(1).overflowPolicy(OverflowPolicy.BLOCK).build();
+        var repo = open(dir, config);
+        assertThrows(IllegalStateException.class, () -> repo.compute("key", (key, value) -> {
+            repo.save("other", "value");
+            return "value";
+        }));
+        assertThrows(IllegalStateException.class, () -> repo.compute("key", (key, value) -> {
+            repo.commit(new WriteBatch<String, String>().delete("other"));
+            return "value";
+        }));
+        assertEquals(Optional.empty(), repo.load("key"));
+        assertEquals(Optional.empty(), repo.load("other"));
+
+        // the queue room of the failed calls was given back
+        repo.saveAsync("after", "value").join();
+        assertEquals(Optional.of("value"), repo.compute("key", (key, value) -> "value"));
+        repo.close();
+    }
+
+    private static void putBaselineRecord(java.io.DataOutputStream out, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeByte(value == null ? 1 : 0);
+        if (value != null) {
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+        }
+    }
+
+    @Test
+    void singleFileRepositoryIsImported(@TempDir Path dir) throws IOException {
+        // a repository written before the log was split into segments
+        var file = dir.resolve("test.db");
+        try (var out = new java.io.DataOutputStream(Files.newOutputStream(file))) {
+            putBaselineRecord(out, "a", "1");
+            putBaselineRecord(out, "b", "2");
+            putBaselineRecord(out, "a", null);
+            putBaselineRecord(out, "c", "3");
+            putBaselineRecord(out, "b", "22");
+            // torn by a crash
+            out.writeInt(5);
+            out.write("to".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(IllegalStateException.class, () -> ShardedRepository.checkLayout(file, 2));
+
+        var repo = open(dir);
+        assertTrue(Files.isDirectory(file));
+        assertTrue(Files.isRegularFile(dir.resolve("test.db.baseline")));
+        assertEquals(Optional.empty(), repo.load("a"));
+        assertEquals(new Versioned<>("3", 1), repo.loadVersioned("c").orElseThrow());
+        assertEquals(new Versioned<>("22", 2), repo.loadVersioned("b").orElseThrow());
+        repo.save("d", "4");
+        assertEquals(3, versionOf(repo, "d"));
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.of("22"), reopened.load("b"));
+        assertEquals(Optional.of("4"), reopened.load("d"));
+        reopened.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Change feed
+    // -------------------------------------------------------------------------
+
+    /**
+     * Polls up to 5 seconds for {@code events} to reach {@code size}.
+     */
+    private static void awaitSize(List<?> events, int size) {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (events.size() < size && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        assertEquals(size, events.size());
+    }
+
+    @Test
+    void subscriberSeesChangesInLogOrderAndResumesFromAnOffset(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("before", "x");
+        var events = new CopyOnWriteArrayList<ChangeEvent<String, String>>();
+        var feed = repo.subscribe(ChangeEvent.LATEST, events::add);
+        // writes to one key drained together only reach the log, and the feed, as the last of them
+        repo.saveAsync("a", "1").join();
+        repo.save("b", "2");
+        repo.delete("a");
+        awaitSize(events, 3);
+        assertEquals(List.of("a", "b", "a"), events.stream().map(ChangeEvent::key).toList());
+        assertEquals("1", events.get(0).value());
+        assertTrue(events.get(2).deleted());
+        assertTrue(events.get(0).offset() < events.get(1).offset() && events.get(1).offset() < events.get(2).offset());
+        assertEquals(events.get(2).offset(), feed.lastOffset());
+        feed.close();
+        repo.close();
+
+        // a late subscriber replays the log from the offset, deletes included, then follows new writes
+        var reopened = open(dir);
+        var resumed = new CopyOnWriteArrayList<ChangeEvent<String, String>>();
+        var again = reopened.subscribe(events.get(1).offset(), resumed::add);
+        reopened.save("c", "3");
+        awaitSize(resumed, 3);
+        assertEquals(events.subList(1, 3), resumed.subList(0, 2));
+        assertEquals(new ChangeEvent<>("c", "3", versionOf(reopened, "c")), resumed.get(2));
+        again.close();
+        reopened.close();
+    }
+
+    @Test
+    void slowSubscriberCatchesUpFromTheLog(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder().subscriberBufferSize(1).build();
+        var repo = open(dir, config);
+        repo.save("old", "value");
+        var release = new CountDownLatch(1);
+        var events = new CopyOnWriteArrayList<ChangeEvent<String, String>>();
+        var feed = repo.subscribe(0, change -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            events.add(change);
+        });
+        for (int i = 0; i < 200; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        repo.saveAsync("last", "value").join();
+        release.countDown();
+
+        awaitSize(events, 202);
+        assertEquals("old", events.get(0).key());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(new ChangeEvent<>("key-" + i, "value-" + i, versionOf(repo, "key-" + i)), events.get(i + 1));
+        }
+        assertEquals("last", events.get(201).key());
+        feed.close();
+        repo.close();
+    }
+
+    @Test
+    void failingListenerIsLoggedAndClosedSubscriptionStops(@TempDir Path dir) {
+        var messages = new CopyOnWriteArrayList<String>();
+        var repo = open(dir, RepositoryConfig.defaults(), collectingLogger(messages));
+        var events = new CopyOnWriteArrayList<ChangeEvent<String, String>>();
+        var subscription = new AtomicReference<Subscription>();
+        subscription.set(repo.subscribe(ChangeEvent.LATEST, change -> {
+            events.add(change);
+            if (change.key().equals("fail")) throw new IllegalStateException("listener failure");
+            // closing from the listener must not wait for itself
+            if (change.key().equals("stop")) subscription.get().close();
+        }));
+        repo.save("fail", "1");
+        repo.save("next", "2");
+        repo.save("stop", "3");
+        awaitSize(events, 3);
+        assertEquals(1, messages.size());
+
+        repo.saveAsync("after", "4").join();
+        var other = new CopyOnWriteArrayList<ChangeEvent<String, String>>();
+        repo.subscribe(ChangeEvent.LATEST, other::add);
+        repo.save("later", "5");
+        awaitSize(other, 1);
+        assertEquals(3, events.size());
+        repo.close();
+
+        assertThrows(IllegalStateException.class, () -> repo.subscribe(0, events::add));
+        assertThrows(IllegalArgumentException.class, () -> open(dir).subscribe(-1, events::add));
+    }
+
+    // -------------------------------------------------------------------------
+    // Secondary indexes
+    // -------------------------------------------------------------------------
+
+    /**
+     * Values look like {@code "clan:name"}; values without a clan are not indexed.
+     */
+    private KVRepository<String, String> openIndexed(Path dir, Logger logger) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .logger(logger)
+                .index("clan", value -> value.contains(":") ? value.substring(0, value.indexOf(':')) : null)
+                .index("length", value -> {
+                    if (value.isEmpty()) throw new IllegalArgumentException("empty");
+                    return value.length();
+                })
+                .build();
+    }
+
+    @Test
+    void findByFollowsSavesAndDeletesAndSurvivesRestarts(@TempDir Path dir) throws IOException {
+        var logger = Logger.getAnonymousLogger();
+        var repo = openIndexed(dir, logger);
+        repo.save("alice", "red:alice");
+        repo.save("bob", "red:bob");
+        repo.save("carol", "blue:carol");
+        repo.save("dave", "nobody");
+        // queued writes are found right away
+        assertEquals(Set.of("alice", "bob"), repo.findBy("clan", "red"));
+        assertEquals(Set.of("carol"), repo.findBy("clan", "blue"));
+
+        repo.saveAsync("bob", "blue:bob").join();
+        repo.delete("alice");
+        repo.save("carol", "carol");
+        assertEquals(Set.of(), repo.findBy("clan", "red"));
+        assertEquals(Set.of("bob"), repo.findBy("clan", "blue"));
+        assertEquals(Set.of("dave"), repo.findBy("length", 6));
+        repo.save("erin", "red:erin");
+        repo.close();
+
+        // rebuilt from the hints, then from a scan
+        for (int i = 0; i < 2; i++) {
+            var reopened = openIndexed(dir, logger);
+            assertEquals(Set.of("erin"), reopened.findBy("clan", "red"));
+            assertEquals(Set.of("bob"), reopened.findBy("clan", "blue"));
+            assertEquals(Set.of("dave"), reopened.findBy("length", 6));
+            reopened.close();
+            for (var hint : filesEndingWith(dir.resolve("test.db"), ".hint")) {
+                Files.delete(hint);
+            }
+        }
+    }
+
+    @Test
+    void findByLeavesOutExpiredEntriesAndFailingExtractions(@TempDir Path dir) throws Exception {
+        var messages = new CopyOnWriteArrayList<String>();
+        var repo = openIndexed(dir, collectingLogger(messages));
+        repo.save("short", "red:short", Duration.ofMillis(50));
+        repo.save("long", "red:long", Duration.ofHours(1));
+        repo.save("empty", "");
+        assertEquals(Set.of("short", "long"), repo.findBy("clan", "red"));
+        Thread.sleep(100);
+        assertEquals(Set.of("long"), repo.findBy("clan", "red"));
+
+        // the write goes through and the other indexes still see it
+        assertEquals(Optional.of(""), repo.load("empty"));
+        assertEquals(1, messages.size());
+        repo.save("empty", "red:");
+        assertEquals(Set.of("long", "empty"), repo.findBy("clan", "red"));
+        assertEquals(Set.of("empty"), repo.findBy("length", 4));
+
+        assertThrows(IllegalArgumentException.class, () -> repo.findBy("region", "eu"));
+        repo.close();
+        assertThrows(IllegalArgumentException.class, () -> KVRepository.<String, String>builder()
+                .index("clan", value -> value)
+                .index("clan", value -> value));
+    }
+
+    // -------------------------------------------------------------------------
+    // Snapshots
+    // -------------------------------------------------------------------------
+
+    @Test
+    void snapshotOpensAsRepositoryWithoutLaterWrites(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("kept", "before");
+        repo.save("changed", "before");
+        repo.save("deleted", "before");
+        repo.snapshot(dir.resolve("backup").resolve("test.db"));
+
+        repo.save("changed", "after");
+        repo.delete("deleted");
+        repo.save("added", "after");
+        repo.close();
+
+        var restored = open(dir.resolve("backup"));
+        assertEquals(Optional.of("before"), restored.load("kept"));
+        assertEquals(Optional.of("before"), restored.load("changed"));
+        assertEquals(Optional.of("before"), restored.load("deleted"));
+        assertEquals(Optional.empty(), restored.load("added"));
+        restored.close();
+    }
+
+    @Test
+    void snapshotSurvivesCompactionOfTheSegmentsItCopied(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(256)
+                .compactRatio(0.1)
+                .compactBytes(Long.MAX_VALUE)
+                .build();
+        var repo = open(dir, config);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 10; i++) {
+                repo.save("key-" + i, "value-" + round);
+            }
+        }
+        repo.delete("key-0");
+        repo.snapshot(dir.resolve("backup").resolve("test.db"));
+
+        // compacts and deletes the segments the snapshot linked or copied
+        for (int round = 50; round < 100; round++) {
+            for (int i = 0; i < 10; i++) {
+                repo.save("key-" + i, "value-" + round);
+            }
+        }
+        repo.deleteAsync("sentinel").join();
+        repo.close();
+
+        assertFalse(filesEndingWith(dir.resolve("backup").resolve("test.db"), ".hint").isEmpty());
+        var restored = open(dir.resolve("backup"), config);
+        assertEquals(Optional.empty(), restored.load("key-0"));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(Optional.of("value-49"), restored.load("key-" + i));
+        }
+        restored.close();
+    }
+
+    @Test
+    void snapshotRejectsNonEmptyTarget(@TempDir Path dir) throws IOException {
+        var target = Files.createDirectories(dir.resolve("backup"));
+        Files.writeString(target.resolve("something"), "x");
+
+        var repo = open(dir);
+        assertThrows(IllegalArgumentException.class, () -> repo.snapshot(target));
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Durability
+    // -------------------------------------------------------------------------
+
+    @Test
+    void saveAsyncCompletesOnceWritten(@TempDir Path dir) throws Exception {
+        for (var durability : List.of(Durability.none(), Durability.everyBatch(), Durability.every(Duration.ofMillis(50)))) {
+            var path = dir.resolve(durability.mode().name());
+            var repo = open(path, RepositoryConfig.builder().durability(durability).build());
+
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(repo.saveAsync("key-" + i, "value-" + i));
+            }
+            futures.add(repo.deleteAsync("key-0"));
+            // the interval policy has to complete them without any further writes
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+            repo.close();
+
+            var repo2 = open(path);
+            assertEquals(Optional.empty(), repo2.load("key-0"));
+            assertEquals(Optional.of("value-199"), repo2.load("key-199"));
+            repo2.close();
+        }
+    }
+
+    @Test
+    void durabilityRejectsInvalidInterval() {
+        assertThrows(IllegalArgumentException.class, () -> Durability.every(Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> new Durability(Durability.Mode.BATCH, 10));
+    }
+
+    // -------------------------------------------------------------------------
+    // Cache
+    // -------------------------------------------------------------------------
+
+    @Test
+    void cacheReturnsSavedValueImmediately(@TempDir Path dir) {
+        var repo = KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .config(RepositoryConfig.withCache())
+                .build();
+
+        repo.save("key", "cached");
+        // no wait — cache must return value synchronously
+        assertEquals(Optional.of("cached"), repo.load("key"));
+        repo.close();
+    }
+
+    @Test
+    void unloadFromCacheDoesNotDeleteFromDisk(@TempDir Path dir) {
+        var repo = KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .config(RepositoryConfig.withCache())
+                .build();
+
+        repo.save("key", "value");
+        repo.close();
+
+        var repo2 = KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .config(RepositoryConfig.withCache())
+                .build();
+
+        repo2.unloadFromCache("key");
+        assertEquals(Optional.of("value"), repo2.load("key")); // still on disk
+        repo2.close();
+    }
+
+    @Test
+    void deleteHidesCachedValueImmediately(@TempDir Path dir) {
+        var repo = open(dir, RepositoryConfig.withCache());
+        repo.save("key", "value");
+        assertEventuallyEquals(repo, "key", "value");
+
+        repo.delete("key");
+        // no wait — the queued delete must already hide the value
+        assertEquals(Optional.empty(), repo.load("key"));
+        repo.close();
+    }
+
+    @Test
+    void cacheCountsHitsAndMisses(@TempDir Path dir) {
+        var repo = open(dir, RepositoryConfig.withCache());
+        repo.save("key", "value");
+        repo.close();
+
+        var repo2 = open(dir, RepositoryConfig.withCache());
+        assertEquals(Optional.of("value"), repo2.load("key")); // miss, read from disk
+        assertEquals(Optional.of("value"), repo2.load("key")); // hit
+
+        var stats = repo2.cacheStats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(0.5, stats.hitRate());
+        repo2.close();
+    }
+
+    @Test
+    void cacheIsBoundedByEncodedSize(@TempDir Path dir) throws InterruptedException {
+        var config = RepositoryConfig.builder().useCache(true).cacheMaxBytes(2_000).build();
+        var repo = open(dir, config);
+
+        var value = "v".repeat(100);
+        for (int i = 0; i < 100; i++) {
+            repo.save("key-" + i, value);
+        }
+        assertEventuallyEquals(repo, "key-99", value);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of(value), repo.load("key-" + i));
+        }
+
+        // values only become evictable once written, and eviction itself may run asynchronously
+        long deadline = System.currentTimeMillis() + 2_000;
+        while ((repo.cacheStats().evictions() == 0 || repo.cacheStats().weight() > 2_000)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(repo.cacheStats().weight() <= 2_000);
+        assertTrue(repo.cacheStats().evictions() > 0);
+        repo.close();
+    }
+
+    @Test
+    void cacheStatsAreEmptyWithoutCache(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.save("key", "value");
+        assertEventuallyEquals(repo, "key", "value");
+        assertEquals(CacheStats.EMPTY, repo.cacheStats());
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // File lock
+    // -------------------------------------------------------------------------
+
+    @Test
+    void openingSameFileTwiceThrows(@TempDir Path dir) {
+        var repo = open(dir);
+        try {
+            assertThrows(IllegalStateException.class, () -> open(dir));
+        } finally {
+            repo.close();
+        }
+    }
+
+    @Test
+    void canReopenAfterClose(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.close();
+
+        assertDoesNotThrow(() -> {
+            var repo2 = open(dir);
+            repo2.close();
+        });
+    }
+
+    // -------------------------------------------------------------------------
+    // Concurrency
+    // -------------------------------------------------------------------------
+
+    @Test
+    void concurrentSavesAllPersisted(@TempDir Path dir) throws Exception {
+        var repo = open(dir);
+        int threadCount = 8;
+        int writesPerThread = 50;
+
+        var latch = new CountDownLatch(threadCount);
+        var executor = Executors.newFixedThreadPool(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            int tid = t;
+            executor.submit(() -> {
+                for (int i = 0; i < writesPerThread; i++) {
+                    repo.save("thread-" + tid + "-key-" + i, "value-" + i);
+                }
+                latch.countDown();
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        repo.close();
+
+        var repo2 = open(dir);
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < writesPerThread; i++) {
+                assertEquals(
+                        Optional.of("value-" + i),
+                        repo2.load("thread-" + t + "-key-" + i),
+                        "Missing: thread-" + t + "-key-" + i
+                );
+            }
+        }
+        repo2.close();
+    }
+
+    @Test
+    void concurrentReadsWhileWriting(@TempDir Path dir) throws Exception {
+        var repo = open(dir);
+        repo.save("stable", "present");
+        repo.close();
+
+        var repo2 = open(dir);
+        int readerCount = 4;
+        var latch = new CountDownLatch(readerCount);
+        var executor = Executors.newFixedThreadPool(readerCount + 1);
+
+        executor.submit(() -> {
+            for (int i = 0; i < 100; i++) {
+                repo2.save("key-" + i, "val-" + i);
+            }
+        });
+
+        for (int r = 0; r < readerCount; r++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    assertDoesNotThrow(() -> repo2.load("stable"));
+                }
+                latch.countDown();
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        repo2.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Compaction
+    // -------------------------------------------------------------------------
+
+    @Test
+    void compactionPreservesAllLiveData(@TempDir Path dir) {
+        var config = new RepositoryConfig(false, 64, 0.01, 1L);
+        var repo = open(dir, config);
+
+        for (int i = 0; i < 20; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            repo.save("key-" + i, "updated-" + i);
+        }
+        repo.close();
+
+        var repo2 = open(dir);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Optional.of("updated-" + i), repo2.load("key-" + i));
+        }
+        for (int i = 10; i < 20; i++) {
+            assertEquals(Optional.of("value-" + i), repo2.load("key-" + i));
+        }
+        repo2.close();
+    }
+
+    @Test
+    void compactionRemovesDeletedKeys(@TempDir Path dir) {
+        var config = new RepositoryConfig(false, 64, 0.01, 1L);
+        var repo = open(dir, config);
+
+        repo.save("alive", "yes");
+        repo.save("dead", "bye");
+        repo.delete("dead");
+        repo.close();
+
+        var repo2 = open(dir);
+        assertEquals(Optional.of("yes"), repo2.load("alive"));
+        assertEquals(Optional.empty(), repo2.load("dead"));
+        repo2.close();
+    }
+
+    @Test
+    void compactionInputThatFailsToDeleteIsNotReplayed(@TempDir Path dir) throws Exception {
+        // every batch gets a segment of its own, and only entirely dead segments are compacted
+        var config = RepositoryConfig.builder().segmentBytes(1).compactRatio(0.99).build();
+        var repo = open(dir, config);
+        var batch = new WriteBatch<String, String>();
+        batch.save("gone", "old");
+        batch.save("filler", "x");
+        repo.commitAsync(batch).join();
+        repo.deleteAsync("gone").join();
+
+        // a non-empty directory in place of the first segment makes its deletion fail, while the
+        // open channel keeps it readable for compaction
+        var first = dir.resolve("test.db").resolve("0000000001-0000.seg");
+        Files.delete(first);
+        Files.createDirectories(first.resolve("busy"));
+
+        // seals the tombstone, which makes both sealed segments dead and compacts them away
+        repo.saveAsync("filler", "y").join();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (repo.stats().compactions() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(repo.stats().compactions() > 0);
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.empty(), reopened.load("gone"));
+        assertEquals(Optional.of("y"), reopened.load("filler"));
+        reopened.close();
+    }
+
+    @Test
+    void writesRollOverIntoNewSegments(@TempDir Path dir) throws IOException {
+        var config = RepositoryConfig.builder().segmentBytes(256).build();
+        var repo = open(dir, config);
+
+        for (int i = 0; i < 100; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        repo.close();
+
+        assertTrue(filesEndingWith(dir.resolve("test.db"), ".seg").size() > 1);
+
+        var repo2 = open(dir, config);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of("value-" + i), repo2.load("key-" + i));
+        }
+        repo2.close();
+    }
+
+    @Test
+    void backgroundCompactionReclaimsSpace(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(1024)
+                .compactRatio(0.1)
+                .compactBytes(Long.MAX_VALUE)
+                .build();
+        var repo = open(dir, config);
+
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 10; i++) {
+                repo.save("key-" + i, "value-" + round);
+            }
+        }
+        repo.deleteAsync("key-0").join();
+
+        // without compaction the log would hold all 500 records, roughly 13 KB
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (directorySize(dir.resolve("test.db"), ".seg") > 4 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(directorySize(dir.resolve("test.db"), ".seg") <= 4 * 1024);
+
+        assertEquals(Optional.empty(), repo.load("key-0"));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(Optional.of("value-49"), repo.load("key-" + i));
+        }
+        repo.close();
+
+        var repo2 = open(dir, config);
+        assertEquals(Optional.empty(), repo2.load("key-0"));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(Optional.of("value-49"), repo2.load("key-" + i));
+        }
+        repo2.close();
+    }
+
+    @Test
+    void readsStayConsistentDuringCompaction(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(512)
+                .compactRatio(0.1)
+                .build();
+        var repo = open(dir, config);
+
+        for (int i = 0; i < 50; i++) {
+            repo.save("stable-" + i, "value-" + i);
+        }
+        assertEventuallyEquals(repo, "stable-49", "value-49");
+
+        var stop = new AtomicBoolean();
+        var failure = new AtomicReference<Throwable>();
+        var reader = Thread.ofVirtual().start(() -> {
+            try {
+                while (!stop.get()) {
+                    for (int i = 0; i < 50; i++) {
+                        assertEquals(Optional.of("value-" + i), repo.load("stable-" + i));
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        // churn a separate key range so the stable keys get relocated by every compaction
+        for (int round = 0; round < 200; round++) {
+            repo.save("churn-" + (round % 5), "round-" + round);
+        }
+        assertEventuallyEquals(repo, "churn-4", "round-199");
+
+        stop.set(true);
+        reader.join();
+        repo.close();
+
+        assertNull(failure.get());
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory-mapped reads
+    // -------------------------------------------------------------------------
+
+    @Test
+    void mmapReadsSeeSealedAndFreshlyWrittenRecords(@TempDir Path dir) {
+        var config = RepositoryConfig.builder().segmentBytes(4096).mmapReads(true).build();
+        var repo = open(dir, config);
+
+        // crosses several segments, so older keys are read from mappings and the newest from the file
+        var value = "x".repeat(300);
+        for (int i = 0; i < 99; i++) {
+            repo.save("key-" + i, value + i);
+        }
+        repo.saveAsync("key-99", value + 99).join();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of(value + i), repo.load("key-" + i));
+        }
+        repo.close();
+
+        var repo2 = open(dir, config);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of(value + i), repo2.load("key-" + i));
+        }
+        repo2.close();
+    }
+
+    @Test
+    void mmapReadsFollowCompaction(@TempDir Path dir) {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(512)
+                .compactRatio(0.1)
+                .mmapReads(true)
+                .build();
+        var repo = open(dir, config);
+
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 5; i++) {
+                repo.save("key-" + i, "round-" + round);
+            }
+        }
+        repo.saveAsync("key-4", "round-99").join();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Optional.of("round-99"), repo.load("key-" + i));
+        }
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Off-heap index
+    // -------------------------------------------------------------------------
+
+    @Test
+    void offHeapIndexFollowsCompactionAndRestarts(@TempDir Path dir) {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(512)
+                .compactRatio(0.1)
+                .offHeapIndex(true)
+                .build();
+        var repo = open(dir, config);
+
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 20; i++) {
+                repo.save("key-" + i, "round-" + round);
+            }
+        }
+        for (int i = 0; i < 20; i += 2) {
+            repo.delete("key-" + i);
+        }
+        repo.deleteAsync("key-0").join();
+        repo.close();
+
+        var reopened = open(dir, config);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 2 == 0 ? Optional.empty() : Optional.of("round-49"), reopened.load("key-" + i));
+        }
+        reopened.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Compression
+    // -------------------------------------------------------------------------
+
+    @Test
+    void compressedValuesRoundTripAndShrinkTheLog(@TempDir Path dir) throws IOException {
+        var config = RepositoryConfig.builder().compressValues(true).compressThreshold(64).build();
+        var large = "{\"type\":\"DIAMOND_SWORD\",\"amount\":1}".repeat(200);
+
+        var repo = open(dir, config);
+        repo.save("large", large);
+        repo.saveAsync("small", "tiny").join();
+        assertEquals(Optional.of(large), repo.load("large"));
+        repo.close();
+
+        assertTrue(directorySize(dir.resolve("test.db"), ".seg") < large.length() / 4);
+
+        for (boolean mmapReads : new boolean[]{false, true}) {
+            var reopened = open(dir, config.toBuilder().mmapReads(mmapReads).verifyChecksums(true).build());
+            assertEquals(Optional.of(large), reopened.load("large"));
+            assertEquals(Optional.of("tiny"), reopened.load("small"));
+            reopened.close();
+        }
+    }
+
+    @Test
+    void compressionCanBeToggledBetweenRestarts(@TempDir Path dir) {
+        var value = "x".repeat(4096);
+
+        var plain = open(dir);
+        plain.saveAsync("plain", value).join();
+        plain.close();
+
+        var compressing = open(dir, RepositoryConfig.builder().compressValues(true).build());
+        assertEquals(Optional.of(value), compressing.load("plain"));
+        compressing.saveAsync("compressed", value).join();
+        compressing.close();
+
+        var plainAgain = open(dir);
+        assertEquals(Optional.of(value), plainAgain.load("plain"));
+        assertEquals(Optional.of(value), plainAgain.load("compressed"));
+        plainAgain.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Expiry
+    // -------------------------------------------------------------------------
+
+    @Test
+    void expiredEntriesReadAsAbsent(@TempDir Path dir) throws InterruptedException {
+        for (boolean useCache : new boolean[]{false, true}) {
+            var repo = open(dir.resolve("cache-" + useCache), RepositoryConfig.builder().useCache(useCache).build());
+            repo.save("session", "token", Duration.ofMillis(200));
+            repo.save("forever", "value");
+            assertEquals(Optional.of("token"), repo.load("session"));
+            repo.saveAsync("sentinel", "x").join();
+            assertEquals(Optional.of("token"), repo.load("session"));
+
+            Thread.sleep(250);
+            assertEquals(Optional.empty(), repo.load("session"));
+            assertEquals(Map.of("forever", "value"), repo.loadAll(List.of("session", "forever")));
+            var keys = new HashSet<String>();
+            repo.forEachKey(keys::add);
+            assertEquals(Set.of("forever", "sentinel"), keys);
+            repo.close();
+        }
+    }
+
+    @Test
+    void savingAgainReplacesTheExpiry(@TempDir Path dir) throws InterruptedException {
+        var repo = open(dir);
+        repo.save("a", "short", Duration.ofMillis(100));
+        repo.save("a", "kept");
+        repo.save("b", "short", Duration.ofMillis(100));
+        repo.save("b", "longer", Duration.ofHours(1));
+        Thread.sleep(150);
+
+        assertEquals(Optional.of("kept"), repo.load("a"));
+        assertEquals(Optional.of("longer"), repo.load("b"));
+        repo.close();
+    }
+
+    @Test
+    void expiryPersistsAcrossRestarts(@TempDir Path dir) throws InterruptedException {
+        var config = RepositoryConfig.builder().sweepIntervalMillis(Long.MAX_VALUE).build();
+        var repo = open(dir, config);
+        repo.save("session", "token", Duration.ofMillis(500));
+        repo.save("forever", "value");
+        repo.close();
+
+        for (boolean mmapReads : new boolean[]{false, true}) {
+            var reopened = open(dir, config.toBuilder().mmapReads(mmapReads).verifyChecksums(true).build());
+            assertEquals(Optional.of("token"), reopened.load("session"));
+            reopened.close();
+        }
+
+        Thread.sleep(550);
+        var expired = open(dir, config);
+        assertEquals(Optional.empty(), expired.load("session"));
+        assertEquals(Optional.of("value"), expired.load("forever"));
+        expired.close();
+    }
+
+    @Test
+    void compactionDropsExpiredRecords(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(256)
+                .compactRatio(0.1)
+                .compactBytes(Long.MAX_VALUE)
+                .sweepIntervalMillis(Long.MAX_VALUE)
+                .build();
+        var repo = open(dir, config);
+        repo.save("doomed", "expiring-value", Duration.ofMillis(100));
+        repo.saveAsync("kept", "kept-value").join();
+        Thread.sleep(150);
+
+        // overwrites pile up dead bytes until compaction merges the segment holding the expired record
+        long deadline = System.currentTimeMillis() + 5_000;
+        for (int round = 0; logContains(dir.resolve("test.db"), "expiring-value") && System.currentTimeMillis() < deadline; round++) {
+            repo.saveAsync("filler", "value-" + round).join();
+        }
+        assertFalse(logContains(dir.resolve("test.db"), "expiring-value"));
+        assertEquals(Optional.empty(), repo.load("doomed"));
+        assertEquals(Optional.of("kept-value"), repo.load("kept"));
+        repo.close();
+
+        var reopened = open(dir, config);
+        assertEquals(Optional.empty(), reopened.load("doomed"));
+        assertEquals(Optional.of("kept-value"), reopened.load("kept"));
+        reopened.close();
+    }
+
+    @Test
+    void sweeperWritesTombstonesForExpiredEntries(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder().sweepIntervalMillis(20).build();
+        var repo = open(dir, config);
+        repo.save("doomed", "value", Duration.ofMillis(100));
+        repo.saveAsync("kept", "value").join();
+        final long written = directorySize(dir.resolve("test.db"), ".seg");
+
+        // nothing else is written, so the log only grows by the tombstone
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (directorySize(dir.resolve("test.db"), ".seg") == written && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(directorySize(dir.resolve("test.db"), ".seg") > written);
+        assertEquals(Optional.empty(), repo.load("doomed"));
+        repo.close();
+
+        var reopened = open(dir, config);
+        assertEquals(Optional.empty(), reopened.load("doomed"));
+        assertEquals(Optional.of("value"), reopened.load("kept"));
+        reopened.close();
+    }
+
+    @Test
+    void sweeperFollowsTheLatestExpiryOfARefreshedKey(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder().sweepIntervalMillis(20).build();
+        var repo = open(dir, config);
+        // enough refreshes to make the expiry queue drop the stale deadlines
+        for (int i = 0; i < 5_000; i++) {
+            repo.save("session", "token-" + i, Duration.ofHours(1));
+        }
+        repo.save("session", "last", Duration.ofMillis(100));
+        repo.save("cooldown", "short", Duration.ofMillis(100));
+        repo.save("cooldown", "refreshed", Duration.ofHours(1));
+        repo.saveAsync("sentinel", "x").join();
+        final long written = directorySize(dir.resolve("test.db"), ".seg");
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (directorySize(dir.resolve("test.db"), ".seg") == written && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(directorySize(dir.resolve("test.db"), ".seg") > written);
+        repo.close();
+
+        var reopened = open(dir, config.toBuilder().sweepIntervalMillis(Long.MAX_VALUE).build());
+        assertEquals(Optional.empty(), reopened.load("session"));
+        assertEquals(Optional.of("refreshed"), reopened.load("cooldown"));
+        reopened.close();
+    }
+
+    @Test
+    void saveRejectsNonPositiveTtl(@TempDir Path dir) {
+        var repo = open(dir);
+        assertThrows(IllegalArgumentException.class, () -> repo.save("key", "value", Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> repo.save("key", "value", Duration.ofSeconds(-1)));
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Backpressure
+    // -------------------------------------------------------------------------
+
+    /**
+     * Opens a repository whose writer thread hangs on encoding the value {@code "stall"}, like on
+     * a stalled disk: it counts down {@code stalled} and waits until {@code release} opens.
+     */
+    private KVRepository<String, String> openStallable(Path dir, RepositoryConfig config,
+                                                       CountDownLatch stalled, CountDownLatch release) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_ENCODER)
+                .valueEncoder(value -> {
+                    if (value.equals("stall")) {
+                        stalled.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                    return value.getBytes(StandardCharsets.UTF_8);
+                }, data -> new String(data, StandardCharsets.UTF_8))
+                .config(config)
+                .build();
+    }
+
+    private static void awaitEmptyQueue(KVRepository<?, ?> repo) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (repo.stats().queueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, repo.stats().queueDepth());
+    }
+
+    @Test
+    void failFastRejectsWritesBeyondCapacity(@TempDir Path dir) throws Exception {
+        var stalled = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var config = RepositoryConfig.builder().writeQueueCapacity(2).overflowPolicy(OverflowPolicy.FAIL_FAST).build();
+        var repo = openStallable(dir, config, stalled, release);
+        repo.save("stuck", "stall");
+        assertTrue(stalled.await(2, TimeUnit.SECONDS));
+        repo.save("queued", "value");
+        assertEquals(2, repo.stats().queueDepth());
+
+        assertThrows(RejectedExecutionException.class, () -> repo.save("rejected", "value"));
+        assertThrows(RejectedExecutionException.class, () -> repo.saveAll(Map.of("a", "1", "b", "2")));
+        var future = repo.saveAsync("async", "value");
+        var thrown = assertThrows(CompletionException.class, future::join);
+        assertInstanceOf(RejectedExecutionException.class, thrown.getCause());
+        assertEquals(Optional.empty(), repo.load("rejected"));
+        assertEquals(Optional.empty(), repo.load("a"));
+        assertEquals(4, repo.stats().rejectedWrites());
+
+        release.countDown();
+        // the writer gives the room back once it has written the queued writes
+        awaitEmptyQueue(repo);
+        repo.saveAsync("after", "value").join();
+        assertEquals(Optional.of("value"), repo.load("queued"));
+        assertEquals(Optional.of("value"), repo.load("after"));
+        repo.close();
+    }
+
+    @Test
+    void coalesceMergesWritesIntoQueuedOnes(@TempDir Path dir) throws Exception {
+        var stalled = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var config = RepositoryConfig.builder().writeQueueCapacity(2).overflowPolicy(OverflowPolicy.COALESCE).build();
+        var repo = openStallable(dir, config, stalled, release);
+        repo.save("stuck", "stall");
+        assertTrue(stalled.await(2, TimeUnit.SECONDS));
+        repo.save("player", "v1");
+
+        repo.save("player", "v2");
+        assertEquals(Optional.of("v2"), repo.load("player"));
+        var merged = repo.saveAsync("player", "v3");
+        // nothing queued to merge into: the key being written, and a key without a queued write
+        assertThrows(RejectedExecutionException.class, () -> repo.save("stuck", "other"));
+        assertThrows(RejectedExecutionException.class, () -> repo.save("other", "value"));
+        // merged in part, so the entry that fit is kept
+        assertThrows(RejectedExecutionException.class, () -> repo.saveAll(Map.of("player", "v4", "other", "value")));
+        assertEquals(Optional.of("v4"), repo.load("player"));
+        assertEquals(Optional.empty(), repo.load("other"));
+
+        var stats = repo.stats();
+        assertEquals(3, stats.coalescedWrites());
+        assertEquals(3, stats.rejectedWrites());
+        assertEquals(2, stats.queueDepth());
+
+        release.countDown();
+        merged.join();
+        assertEquals(Optional.of("v4"), repo.load("player"));
+        assertEquals(2, repo.stats().writes());
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.of("v4"), reopened.load("player"));
+        assertEquals(Optional.of("stall"), reopened.load("stuck"));
+        reopened.close();
+    }
+
+    @Test
+    void blockWaitsForRoom(@TempDir Path dir) throws Exception {
+        var stalled = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var config = RepositoryConfig.builder().writeQueueCapacity(1).overflowPolicy(OverflowPolicy.BLOCK).build();
+        var repo = openStallable(dir, config, stalled, release);
+        repo.save("stuck", "stall");
+        assertTrue(stalled.await(2, TimeUnit.SECONDS));
+        assertEquals(1, repo.stats().queueDepth());
+
+        var producer = Thread.ofVirtual().start(() -> repo.save("blocked", "value"));
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertEquals(Optional.empty(), repo.load("blocked"));
+
+        release.countDown();
+        producer.join(2_000);
+        assertFalse(producer.isAlive());
+        assertEventuallyEquals(repo, "blocked", "value");
+        assertEquals(0, repo.stats().rejectedWrites());
+        repo.close();
+    }
+
+    @Test
+    void bulkWriteLargerThanTheQueueIsAccepted(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder().writeQueueCapacity(4).overflowPolicy(OverflowPolicy.FAIL_FAST).build();
+        var repo = open(dir, config);
+        var entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key-" + i, "value-" + i);
+        }
+        repo.saveAll(entries);
+        // it takes the whole queue until written
+        awaitEmptyQueue(repo);
+        assertEquals(100, repo.stats().writes());
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(entries, reopened.loadAll(entries.keySet()));
+        reopened.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Batch coalescing
+    // -------------------------------------------------------------------------
+
+    @Test
+    void onlyTheLastWriteToAKeyInABatchIsAppended(@TempDir Path dir) throws Exception {
+        var stalled = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var config = RepositoryConfig.builder().batchSize(1000).build();
+        var repo = openStallable(dir, config, stalled, release);
+        repo.save("stuck", "stall");
+        assertTrue(stalled.await(2, TimeUnit.SECONDS));
+
+        // queued behind the stalled write, so they are drained as one batch
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(repo.saveAsync("counter", Integer.toString(i)));
+        }
+        repo.save("deleted", "value");
+        futures.add(repo.deleteAsync("deleted"));
+        repo.delete("revived");
+        repo.saveAll(Map.of("revived", "again", "counter", "last"));
+        assertEquals(Optional.of("last"), repo.load("counter"));
+
+        release.countDown();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        awaitEmptyQueue(repo);
+        var stats = repo.stats();
+        assertEquals(4, stats.writes());
+        assertEquals(102, stats.coalescedWrites());
+        repo.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.of("last"), reopened.load("counter"));
+        assertEquals(Optional.empty(), reopened.load("deleted"));
+        assertEquals(Optional.of("again"), reopened.load("revived"));
+        assertEquals(Optional.of("stall"), reopened.load("stuck"));
+        reopened.close();
+    }
+
+    @Test
+    void coalescingKeepsTheLogSmall(@TempDir Path dir) throws Exception {
+        var repo = open(dir, RepositoryConfig.builder().batchSize(1000).build());
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 10_000; i++) {
+            futures.add(repo.saveAsync("counter-" + (i % 4), Integer.toString(i)));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        var stats = repo.stats();
+        assertEquals(10_000, stats.writes() + stats.coalescedWrites());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Optional.of(Integer.toString(9_996 + i)), repo.load("counter-" + i));
+        }
+        repo.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Statistics
+    // -------------------------------------------------------------------------
+
+    @Test
+    void statsCountWritesReadsAndDeadBytes(@TempDir Path dir) throws InterruptedException {
+        var repo = open(dir, RepositoryConfig.withCache());
+        var entries = new HashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            entries.put("key-" + i, "value-" + i);
+        }
+        repo.saveAll(entries);
+        // in the same batch, the update would replace the first write of key-0 instead of following it
+        awaitEmptyQueue(repo);
+        repo.saveAsync("key-0", "updated").join();
+
+        var stats = repo.stats();
+        assertEquals(11, stats.writes());
+        assertTrue(stats.batches() >= 1 && stats.batches() <= 2);
+        assertTrue(stats.averageBatchSize() >= 5.5);
+        assertTrue(stats.logBytes() > 0);
+        assertTrue(stats.deadBytes() > 0 && stats.deadRatio() < 0.5);
+        assertEquals(0, stats.reads());
+
+        repo.unloadFromCache("key-1");
+        repo.load("key-1");
+        repo.load("key-2");
+        stats = repo.stats();
+        assertEquals(1, stats.reads());
+        assertTrue(stats.readMaxNanos() > 0 && stats.readP50Nanos() <= stats.readMaxNanos());
+        assertEquals(1, stats.cache().hits());
+        repo.close();
+    }
+
+    @Test
+    void statsCountCompactions(@TempDir Path dir) throws Exception {
+        var config = RepositoryConfig.builder()
+                .segmentBytes(256)
+                .compactRatio(0.1)
+                .compactBytes(Long.MAX_VALUE)
+                .build();
+        var repo = open(dir, config);
+        long deadline = System.currentTimeMillis() + 5_000;
+        for (int round = 0; repo.stats().compactions() == 0 && System.currentTimeMillis() < deadline; round++) {
+            repo.saveAsync("key-" + round % 10, "value-" + round).join();
+        }
+        var stats = repo.stats();
+        assertTrue(stats.compactions() > 0);
+        assertTrue(stats.compactionNanos() > 0);
+        repo.close();
+    }
+
+    @Test
+    void statsAreLoggedPeriodically(@TempDir Path dir) throws InterruptedException {
+        var messages = new CopyOnWriteArrayList<String>();
+        var config = RepositoryConfig.builder().statsLogIntervalMillis(20).build();
+        var repo = open(dir, config, collectingLogger(messages));
+        repo.save("key", "value");
+
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (messages.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        repo.close();
+        assertFalse(messages.isEmpty());
+        assertTrue(messages.get(0).contains("batches"), messages.get(0));
+    }
+
+    // -------------------------------------------------------------------------
+    // Builder — lambda encoders
+    // -------------------------------------------------------------------------
+
+    @Test
+    void builderLambdaEncoders(@TempDir Path dir) {
+        var repo = KVRepository.<UUID, String>builder()
+                .path(dir.resolve("uuid.db"))
+                .keyEncoder(UUID_ENCODER)
                 .valueEncoder(
                         s -> s.getBytes(StandardCharsets.UTF_8),
                         b -> new String(b, StandardCharsets.UTF_8)
@@ -385,6 +2055,194 @@ class DiskRepositoryTest {
         repo.close();
     }
 
+    // -------------------------------------------------------------------------
+    // Buffer encoders
+    // -------------------------------------------------------------------------
+
+    private KVRepository<String, String> openBuffered(Path dir, RepositoryConfig config) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(STRING_BUFFER_ENCODER)
+                .valueEncoder(STRING_BUFFER_ENCODER)
+                .config(config)
+                .build();
+    }
+
+    @Test
+    void bufferEncoderRoundTripsThroughEveryReadPath(@TempDir Path dir) {
+        // larger than the write buffer and the pooled read buffers
+        var huge = "h".repeat(300 * 1024);
+        var values = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            values.put("key-" + i, "value-" + i + "-" + "x".repeat(1024));
+        }
+
+        var repo = openBuffered(dir, RepositoryConfig.defaults());
+        repo.saveAll(values);
+        repo.save("huge", huge);
+        repo.save("expiring", "soon", Duration.ofHours(1));
+        assertEquals(Optional.of(huge), repo.load("huge"));
+        repo.close();
+
+        for (boolean mmapReads : new boolean[]{false, true}) {
+            for (boolean verify : new boolean[]{false, true}) {
+                var reopened = openBuffered(dir, RepositoryConfig.builder().mmapReads(mmapReads).verifyChecksums(verify).build());
+                assertEquals(Optional.of(huge), reopened.load("huge"));
+                assertEquals(Optional.of("soon"), reopened.load("expiring"));
+                assertEquals(values, reopened.loadAll(values.keySet()));
+                try (var entries = reopened.stream()) {
+                    assertEquals(1002, entries.count());
+                }
+                reopened.close();
+            }
+        }
+    }
+
+    @Test
+    void bufferEncoderReadsCompressedValues(@TempDir Path dir) throws IOException {
+        var config = RepositoryConfig.builder().compressValues(true).compressThreshold(64).build();
+        var large = "{\"type\":\"DIAMOND_SWORD\",\"amount\":1}".repeat(200);
+
+        var repo = openBuffered(dir, config);
+        repo.saveAsync("large", large).join();
+        repo.close();
+        assertTrue(directorySize(dir.resolve("test.db"), ".seg") < large.length() / 4);
+
+        for (boolean mmapReads : new boolean[]{false, true}) {
+            var reopened = openBuffered(dir, config.toBuilder().mmapReads(mmapReads).build());
+            assertEquals(Optional.of(large), reopened.load("large"));
+            try (var entries = reopened.stream()) {
+                assertEquals(Map.of("large", large), entries.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+            }
+            reopened.close();
+        }
+    }
+
+    @Test
+    void bufferAndArrayEncodersShareTheStoredForm(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.saveAsync("written-by-array", "first").join();
+        repo.close();
+
+        var buffered = openBuffered(dir, RepositoryConfig.defaults());
+        assertEquals(Optional.of("first"), buffered.load("written-by-array"));
+        buffered.saveAsync("written-by-buffer", "second").join();
+        buffered.close();
+
+        var reopened = open(dir);
+        assertEquals(Optional.of("first"), reopened.load("written-by-array"));
+        assertEquals(Optional.of("second"), reopened.load("written-by-buffer"));
+        reopened.close();
+    }
+
+    @Test
+    void adaptedEncoderWritesIntoBuffers() {
+        var adapted = BufferEncoder.of(STRING_ENCODER);
+        var buf = java.nio.ByteBuffer.allocate(3);
+
+        assertThrows(java.nio.BufferOverflowException.class, () -> adapted.encode("toolong", buf));
+        assertEquals(0, buf.position());
+        adapted.encode("abc", buf);
+        assertEquals("abc", adapted.decode(buf.flip().asReadOnlyBuffer()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Primitive keys
+    // -------------------------------------------------------------------------
+
+    private LongKVRepository<String> openLong(Path dir, RepositoryConfig config) {
+        return LongKVRepository.<String>builder()
+                .path(dir.resolve("test.db"))
+                .valueEncoder(STRING_ENCODER)
+                .config(config)
+                .build();
+    }
+
+    @Test
+    void longKeysRoundTripAndSurviveRestarts(@TempDir Path dir) {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            var path = dir.resolve("off-heap-" + offHeap);
+            var config = RepositoryConfig.builder().offHeapIndex(offHeap).segmentBytes(4096).compactRatio(0.1).build();
+
+            var repo = openLong(path, config);
+            for (long i = -500; i < 500; i++) {
+                repo.save(i * 1_000_003L, "value-" + i);
+            }
+            repo.save(Long.MIN_VALUE, "min");
+            repo.save(Long.MAX_VALUE, "max", Duration.ofHours(1));
+            repo.delete(0L);
+            repo.saveAsync(1L, "one").join();
+            assertEquals(Optional.of("value-1"), repo.load(1_000_003L));
+            assertEquals(Optional.of("value-1"), repo.load(Long.valueOf(1_000_003L)));
+            assertEquals(Optional.empty(), repo.load(0L));
+            repo.deleteAsync(Long.MIN_VALUE).join();
+            repo.close();
+
+            var reopened = openLong(path, config);
+            for (long i = -500; i < 500; i++) {
+                assertEquals(i == 0 ? Optional.empty() : Optional.of("value-" + i), reopened.load(i * 1_000_003L));
+            }
+            assertEquals(Optional.of("one"), reopened.load(1L));
+            assertEquals(Optional.empty(), reopened.load(Long.MIN_VALUE));
+            assertEquals(Optional.of("max"), reopened.load(Long.MAX_VALUE));
+            assertEquals(Map.of(1L, "one", 2_000_006L, "value-2"), reopened.loadAll(List.of(1L, 2_000_006L, 3L)));
+
+            var keys = new HashSet<Long>();
+            reopened.forEachKey(keys::add);
+            assertEquals(1001, keys.size());
+            reopened.close();
+        }
+    }
+
+    @Test
+    void uuidKeysShareTheStoredFormOfArrayEncoders(@TempDir Path dir) {
+        var first = UUID.randomUUID();
+        var second = UUID.randomUUID();
+
+        var repo = KVRepository.<UUID, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(UUID_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .build();
+        repo.saveAsync(first, "written-by-array").join();
+        repo.close();
+
+        var specialized = KVRepository.<UUID, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(KeyEncoders.UUID)
+                .valueEncoder(STRING_ENCODER)
+                .config(RepositoryConfig.withCache())
+                .build();
+        assertEquals(Optional.of("written-by-array"), specialized.load(first));
+        specialized.saveAsync(second, "written-by-uuid").join();
+        try (var entries = specialized.stream()) {
+            assertEquals(Set.of(first, second), entries.map(Map.Entry::getKey).collect(Collectors.toSet()));
+        }
+        specialized.close();
+
+        var reopened = KVRepository.<UUID, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(UUID_ENCODER)
+                .valueEncoder(STRING_ENCODER)
+                .build();
+        assertEquals(Optional.of("written-by-array"), reopened.load(first));
+        assertEquals(Optional.of("written-by-uuid"), reopened.load(second));
+        reopened.close();
+    }
+
+    @Test
+    void longKeysRefuseLogsOfOtherKeys(@TempDir Path dir) {
+        var repo = open(dir);
+        repo.saveAsync("not-a-long", "value").join();
+        repo.close();
+
+        var ex = assertThrows(RuntimeException.class, () -> openLong(dir, RepositoryConfig.defaults()));
+        assertTrue(ex instanceof IllegalStateException || ex.getCause() instanceof IllegalStateException, ex.toString());
+
+        // the failed open released the directory
+        open(dir).close();
+    }
+
     // -------------------------------------------------------------------------
     // Config validation
     // -------------------------------------------------------------------------
@@ -408,4 +2266,84 @@ class DiskRepositoryTest {
         assertThrows(IllegalArgumentException.class,
                 () -> new RepositoryConfig(false, 64, 0.2, -1));
     }
+
+    @Test
+    void configRejectsInvalidCacheMaxBytes() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().cacheMaxBytes(0).build());
+    }
+
+    @Test
+    void configRejectsNegativeCompressThreshold() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().compressThreshold(-1).build());
+    }
+
+    @Test
+    void configRejectsInvalidSweepInterval() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().sweepIntervalMillis(0).build());
+    }
+
+    @Test
+    void configRejectsNegativeStatsLogInterval() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().statsLogIntervalMillis(-1).build());
+    }
+
+    @Test
+    void configRejectsInvalidWriteQueue() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().writeQueueCapacity(0).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().overflowPolicy(null).build());
+    }
+
+    @Test
+    void configRejectsInvalidSegmentBytes() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().segmentBytes(0).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> RepositoryConfig.builder().segmentBytes(RepositoryConfig.MAX_SEGMENT_BYTES + 1).build());
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers — files
+    // -------------------------------------------------------------------------
+
+    private static List<Path> filesEndingWith(Path dir, String suffix) throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(suffix)).toList();
+        }
+    }
+
+    private static void flipLastByte(Path file) throws IOException {
+        var bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 0x7F;
+        Files.write(file, bytes);
+    }
+
+    private static boolean logContains(Path dir, String text) throws IOException {
+        var needle = text.getBytes(StandardCharsets.UTF_8);
+        for (var file : filesEndingWith(dir, ".seg")) {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException ex) {
+                continue; // deleted by a compaction since it was listed
+            }
+            for (int i = 0; i + needle.length <= bytes.length; i++) {
+                if (Arrays.equals(bytes, i, i + needle.length, needle, 0, needle.length)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static long directorySize(Path dir, String suffix) throws IOException {
+        long total = 0;
+        for (var file : filesEndingWith(dir, suffix)) {
+            total += Files.size(file);
+        }
+        return total;
+    }
 }
@@ -0,0 +1,91 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FixedKeyOffsetIndexTest {
+
+    @Test
+    void longKeysPutGetRemove() {
+        var index = new FixedKeyOffsetIndex(1);
+
+        assertEquals(OffsetIndex.ABSENT, index.put(IndexKey.of(7L), 10, 5));
+        assertEquals(10, index.get(IndexKey.of(7L)));
+        assertEquals(5, index.sizeOf(IndexKey.of(7L)));
+        assertEquals(OffsetIndex.ABSENT, index.get(IndexKey.of(8L)));
+
+        assertEquals(10, index.put(IndexKey.of(7L), 20, 7));
+        assertTrue(index.replace(IndexKey.of(7L), 20, 30));
+        assertFalse(index.replace(IndexKey.of(7L), 20, 40));
+        assertEquals(30, index.get(IndexKey.of(7L)));
+
+        assertEquals(30, index.remove(IndexKey.of(7L)));
+        assertEquals(OffsetIndex.ABSENT, index.get(IndexKey.of(7L)));
+        assertEquals(0, index.sizeOf(IndexKey.of(7L)));
+        assertEquals(0, index.size());
+
+        assertEquals(OffsetIndex.ABSENT, index.put(IndexKey.of(7L), 50, 1));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void uuidKeysGrowAndSurviveRemovalChurn() {
+        var index = new FixedKeyOffsetIndex(2);
+        for (int i = 0; i < 10_000; i++) {
+            index.put(IndexKey.of(i, ~i), i, i);
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            index.remove(IndexKey.of(i, ~i));
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 1_000; i++) {
+                index.put(IndexKey.of(-i, i), i, 1);
+            }
+            for (int i = 0; i < 1_000; i++) {
+                index.remove(IndexKey.of(-i, i));
+            }
+        }
+
+        assertEquals(5_000, index.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i % 2 == 0 ? OffsetIndex.ABSENT : i, index.get(IndexKey.of(i, ~i)));
+        }
+        // only the halves match together
+        assertEquals(OffsetIndex.ABSENT, index.get(IndexKey.of(1, ~2L)));
+
+        List<Long> locations = new ArrayList<>();
+        index.forEachLocation(locations::add);
+        assertEquals(5_000, locations.size());
+    }
+
+    @Test
+    void keysOfLongsHashAndCompareAsTheirBytes() {
+        var bytes = ByteBuffer.allocate(16).putLong(42).putLong(-1).array();
+        var uuid = IndexKey.of(42, -1);
+        assertEquals(IndexKey.of(bytes), uuid);
+        assertEquals(IndexKey.of(bytes).hashCode(), uuid.hashCode());
+        assertArrayEquals(bytes, uuid.bytes());
+
+        var value = ByteBuffer.allocate(8).putLong(Long.MIN_VALUE + 3).array();
+        assertEquals(IndexKey.of(value), IndexKey.of(Long.MIN_VALUE + 3));
+        assertEquals(IndexKey.of(value).hashCode(), IndexKey.of(Long.MIN_VALUE + 3).hashCode());
+        assertNotEquals(IndexKey.of(value), IndexKey.of(Long.MIN_VALUE + 4));
+    }
+
+    @Test
+    void rejectsKeysOfAnotherWidth() {
+        var index = new FixedKeyOffsetIndex(1);
+        assertThrows(IllegalArgumentException.class, () -> index.put(IndexKey.of(1, 2), 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> index.put(IndexKey.of(new byte[8]), 1, 1));
+        assertEquals(OffsetIndex.ABSENT, index.get(IndexKey.of(new byte[8])));
+        assertEquals(0, index.size());
+
+        assertThrows(IllegalStateException.class, () -> FixedKeyEncoder.LONG_KEYS.stored(new byte[16]));
+        assertEquals(IndexKey.of(5L), FixedKeyEncoder.LONG_KEYS.stored(ByteBuffer.allocate(8).putLong(5).array()));
+    }
+}
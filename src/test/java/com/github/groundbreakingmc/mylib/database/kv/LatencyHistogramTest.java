@@ -0,0 +1,68 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void bucketsAreContiguousAndBoundTheirValues() {
+        for (long value = 0; value < 1_000_000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+            if (index > 0) assertTrue(LatencyHistogram.upperBound(index - 1) < value);
+        }
+        assertTrue(LatencyHistogram.index(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    void percentilesStayWithinBucketPrecision() {
+        var histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 10_000; nanos++) {
+            histogram.record(nanos * 1_000);
+        }
+
+        var snapshot = histogram.snapshot();
+        assertEquals(10_000, snapshot.count());
+        assertEquals(10_000_000, snapshot.max());
+        assertEquals(5_000_000, snapshot.percentile(0.50), 5_000_000 * 0.125);
+        assertEquals(9_900_000, snapshot.percentile(0.99), 9_900_000 * 0.125);
+        assertTrue(snapshot.percentile(0.50) >= 5_000_000);
+        assertEquals(0, LatencyHistogram.Snapshot.EMPTY.percentile(0.99));
+    }
+
+    @Test
+    void snapshotsAddUp() {
+        var fast = new LatencyHistogram();
+        var slow = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            fast.record(100);
+            slow.record(1_000_000);
+        }
+
+        var merged = fast.snapshot().plus(slow.snapshot());
+        assertEquals(200, merged.count());
+        assertEquals(1_000_000, merged.max());
+        assertTrue(merged.percentile(0.25) <= 112);
+        assertTrue(merged.percentile(0.75) >= 1_000_000);
+    }
+
+    @Test
+    void concurrentRecordingLosesNothing() throws InterruptedException {
+        var histogram = new LatencyHistogram();
+        try (var executor = Executors.newFixedThreadPool(4)) {
+            for (int t = 0; t < 4; t++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < 100_000; i++) histogram.record(i);
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(400_000, histogram.snapshot().count());
+    }
+}
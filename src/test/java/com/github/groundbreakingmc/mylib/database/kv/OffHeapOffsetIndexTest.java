@@ -0,0 +1,73 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the {@link OffsetIndexTest} cases against the direct-memory index.
+ */
+class OffHeapOffsetIndexTest extends OffsetIndexTest {
+
+    @Override
+    OffsetIndex newIndex() {
+        return new OffHeapOffsetIndex();
+    }
+
+    @Test
+    void fullTableRefusesToGrow() {
+        var index = new OffHeapOffsetIndex(16, 32);
+        // 32 slots hold 24 keys before they would have to grow
+        for (int i = 0; i < 24; i++) {
+            index.put(key(i), i + 1, 1);
+        }
+        assertThrows(IllegalStateException.class, () -> index.put(key(24), 25, 1));
+        assertEquals(24, index.size());
+        for (int i = 0; i < 24; i++) {
+            assertEquals(i + 1, index.get(key(i)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapOffsetIndex(64, 32));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapOffsetIndex(16, OffHeapOffsetIndex.MAX_CAPACITY << 1));
+    }
+
+    @Test
+    void reserveRefusesKeysBeyondTheCap() {
+        var index = new OffHeapOffsetIndex(16, 32);
+        for (int i = 0; i < 20; i++) {
+            index.put(key(i), i + 1, 1);
+        }
+        assertThrows(IllegalStateException.class, () -> index.reserve(5));
+        assertEquals(20, index.size());
+
+        // once reserved, the puts cannot fail
+        index.reserve(4);
+        for (int i = 20; i < 24; i++) {
+            index.put(key(i), i + 1, 1);
+        }
+        for (int i = 0; i < 24; i++) {
+            assertEquals(i + 1, index.get(key(i)));
+        }
+    }
+
+    @Test
+    void upperHalfOfTheTableIsAddressable() {
+        var index = new OffHeapOffsetIndex(1 << 12, 1 << 12);
+        // spread over the whole table, so slots in its upper half hold keys too
+        for (int i = 0; i < 3_000; i++) {
+            index.put(key(i), i + 1, 1);
+        }
+        for (int i = 0; i < 3_000; i++) {
+            assertEquals(i + 1, index.get(key(i)));
+        }
+        var locations = new HashSet<Long>();
+        index.forEachLocation(locations::add);
+        assertEquals(3_000, locations.size());
+    }
+
+    private static IndexKey key(int i) {
+        return IndexKey.of(("key-" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffsetIndexTest {
+
+    OffsetIndex newIndex() {
+        return new HeapOffsetIndex();
+    }
+
+    private static IndexKey key(String value) {
+        return IndexKey.of(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // -------------------------------------------------------------------------
+    // Single thread
+    // -------------------------------------------------------------------------
+
+    @Test
+    void putGetRemove() {
+        var index = newIndex();
+
+        assertEquals(OffsetIndex.ABSENT, index.put(key("a"), 10, 5));
+        assertEquals(10, index.get(key("a")));
+        assertEquals(5, index.sizeOf(key("a")));
+
+        assertEquals(10, index.put(key("a"), 20, 7));
+        assertEquals(20, index.get(key("a")));
+        assertEquals(7, index.sizeOf(key("a")));
+
+        assertEquals(20, index.remove(key("a")));
+        assertEquals(OffsetIndex.ABSENT, index.get(key("a")));
+        assertEquals(0, index.sizeOf(key("a")));
+        assertEquals(OffsetIndex.ABSENT, index.remove(key("a")));
+        assertEquals(0, index.size());
+
+        assertEquals(OffsetIndex.ABSENT, index.put(key("a"), 30, 1));
+        assertEquals(30, index.get(key("a")));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void replaceOnlyMatchesExpectedLocation() {
+        var index = newIndex();
+        index.put(key("a"), 10, 5);
+
+        assertFalse(index.replace(key("a"), 11, 99));
+        assertTrue(index.replace(key("a"), 10, 99));
+        assertEquals(99, index.get(key("a")));
+        assertFalse(index.replace(key("missing"), OffsetIndex.ABSENT, 1));
+    }
+
+    @Test
+    void growsAndSurvivesRemovalChurn() {
+        var index = newIndex();
+        for (int i = 0; i < 10_000; i++) {
+            index.put(key("key-" + i), i, i);
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            index.remove(key("key-" + i));
+        }
+        // removed slots must be reclaimed, not just accumulated
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 1_000; i++) {
+                index.put(key("churn-" + i), i, 1);
+            }
+            for (int i = 0; i < 1_000; i++) {
+                index.remove(key("churn-" + i));
+            }
+        }
+
+        assertEquals(5_000, index.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i % 2 == 0 ? OffsetIndex.ABSENT : i, index.get(key("key-" + i)));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Concurrency
+    // -------------------------------------------------------------------------
+
+    @Test
+    void readersNeverSeeTornEntriesWhileWriterGrowsTheTable() throws Exception {
+        final int keys = 50_000;
+        final var index = newIndex();
+        final var stop = new AtomicBoolean();
+        final var failure = new AtomicReference<Throwable>();
+
+        // every location stored for key-i encodes i, so a reader can validate whatever it observes
+        final List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            final int seed = r;
+            readers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    int i = seed;
+                    while (!stop.get()) {
+                        final long location = index.get(key("key-" + i));
+                        if (location != OffsetIndex.ABSENT && location % keys != i) {
+                            throw new AssertionError("key-" + i + " mapped to " + location);
+                        }
+                        i = (i + 7) % keys;
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+
+        for (int version = 0; version < 3; version++) {
+            for (int i = 0; i < keys; i++) {
+                index.put(key("key-" + i), (long) version * keys + i, 1);
+                if (i % 3 == 0) index.remove(key("key-" + (i / 3)));
+            }
+        }
+        stop.set(true);
+        for (final Thread reader : readers) reader.join();
+
+        assertNull(failure.get());
+    }
+}
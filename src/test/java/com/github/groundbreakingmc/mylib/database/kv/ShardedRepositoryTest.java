@@ -0,0 +1,329 @@
+package com.github.groundbreakingmc.mylib.database.kv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedRepositoryTest {
+
+    private static final int SHARDS = 4;
+
+    private KVRepository<String, String> open(Path dir, int shards) {
+        return KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .config(RepositoryConfig.withCache())
+                .shards(shards)
+                .build();
+    }
+
+    @Test
+    void keysAreSpreadOverShardsAndSurviveRestarts(@TempDir Path dir) throws IOException {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 200; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        repo.delete("key-0");
+        repo.save("session", "token", Duration.ofHours(1));
+        assertEquals(Optional.of("value-1"), repo.load("key-1"));
+        repo.close();
+
+        for (int i = 0; i < SHARDS; i++) {
+            var shardDir = dir.resolve("test.db").resolve("shard-" + i);
+            try (var files = Files.list(shardDir)) {
+                assertTrue(files.anyMatch(file -> file.toString().endsWith(".seg") && file.toFile().length() > 0),
+                        "shard " + i + " received no writes");
+            }
+        }
+
+        var reopened = open(dir, SHARDS);
+        assertEquals(Optional.empty(), reopened.load("key-0"));
+        for (int i = 1; i < 200; i++) {
+            assertEquals(Optional.of("value-" + i), reopened.load("key-" + i));
+        }
+        assertEquals(Optional.of("token"), reopened.load("session"));
+        reopened.close();
+    }
+
+    @Test
+    void bulkOperationsSpanShards(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        var entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key-" + i, "value-" + i);
+        }
+        repo.saveAll(entries);
+        assertEquals(entries, repo.loadAll(entries.keySet()));
+
+        repo.deleteAll(List.of("key-1", "key-2", "key-3"));
+        var loaded = repo.loadAll(List.of("key-1", "key-2", "key-3", "key-4"));
+        assertEquals(Map.of("key-4", "value-4"), loaded);
+        repo.close();
+    }
+
+    @Test
+    void iterationCoversEveryShard(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 50; i++) {
+            repo.save("a:" + i, "a" + i);
+            repo.save("b:" + i, "b" + i);
+        }
+
+        var keys = new HashSet<String>();
+        repo.forEachKey(keys::add);
+        assertEquals(100, keys.size());
+
+        try (var stream = repo.stream()) {
+            assertEquals(100, stream.count());
+        }
+        try (var stream = repo.scanPrefix("a:".getBytes(StandardCharsets.UTF_8))) {
+            var prefixed = stream.map(Map.Entry::getKey).collect(Collectors.toSet());
+            assertEquals(50, prefixed.size());
+            assertTrue(prefixed.stream().allMatch(key -> key.startsWith("a:")));
+        }
+        repo.close();
+    }
+
+    @Test
+    void snapshotKeepsTheShardLayout(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 100; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+        repo.snapshot(dir.resolve("backup").resolve("test.db"));
+        repo.save("key-0", "changed");
+        repo.close();
+
+        var restored = open(dir.resolve("backup"), SHARDS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of("value-" + i), restored.load("key-" + i));
+        }
+        restored.close();
+    }
+
+    @Test
+    void cacheStatsAddUpOverShards(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 20; i++) {
+            repo.saveAsync("key-" + i, "value-" + i).join();
+        }
+        for (int i = 0; i < 20; i++) {
+            repo.load("key-" + i);
+        }
+        assertEquals(20, repo.cacheStats().hits());
+        repo.close();
+    }
+
+    @Test
+    void writeBatchWithinOneShard(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        var batch = new WriteBatch<String, String>();
+        var expected = new HashMap<String, String>();
+        for (int i = 0; i < 50; i++) {
+            var key = keyInShard("key-" + i + "-", 2, SHARDS);
+            batch.save(key, "value-" + i);
+            expected.put(key, "value-" + i);
+        }
+        repo.commitAsync(batch).join();
+        repo.close();
+
+        var reopened = open(dir, SHARDS);
+        assertEquals(expected, reopened.loadAll(expected.keySet()));
+        reopened.close();
+    }
+
+    @Test
+    void writeBatchAcrossShardsIsRefused(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        var first = keyInShard("first-", 0, SHARDS);
+        var second = keyInShard("second-", 1, SHARDS);
+        var batch = new WriteBatch<String, String>().save(first, "1").save(second, "2");
+        assertThrows(IllegalArgumentException.class, () -> repo.commit(batch));
+        assertThrows(IllegalArgumentException.class, () -> repo.commitAsync(batch));
+
+        assertEquals(Map.of(), repo.loadAll(List.of(first, second)));
+        assertEquals(0, repo.stats().queueDepth());
+        repo.close();
+    }
+
+    private static String keyInShard(String prefix, int shard, int shards) {
+        for (int i = 0; ; i++) {
+            var key = prefix + i;
+            if (ShardedRepository.shardIndex(IndexKey.of(key.getBytes(StandardCharsets.UTF_8)).hashCode(), shards) == shard) {
+                return key;
+            }
+        }
+    }
+
+    @Test
+    void versionedWritesGoToTheShardOfTheirKey(@TempDir Path dir) {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(repo.compareAndSave("key-" + i, Versioned.ABSENT, "value-" + i));
+            assertEquals(Optional.of("value-" + i + "!"), repo.compute("key-" + i, (key, value) -> value + "!"));
+        }
+        var versioned = repo.loadVersioned("key-7").orElseThrow();
+        assertEquals("value-7!", versioned.value());
+        assertFalse(repo.compareAndSave("key-7", versioned.version() - 1, "stale"));
+        assertTrue(repo.compareAndSave("key-7", versioned.version(), "fresh"));
+        repo.close();
+
+        var reopened = open(dir, SHARDS);
+        assertEquals(Optional.of("fresh"), reopened.load("key-7"));
+        assertEquals(Optional.of("value-8!"), reopened.load("key-8"));
+        reopened.close();
+    }
+
+    @Test
+    void findByAsksEveryShard(@TempDir Path dir) {
+        var builder = KVRepository.<String, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .index("parity", value -> Integer.parseInt(value) % 2)
+                .shards(SHARDS);
+        var repo = builder.build();
+        var even = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            repo.save("key-" + i, String.valueOf(i));
+            if (i % 2 == 0) even.add("key-" + i);
+        }
+        assertEquals(even, repo.findBy("parity", 0));
+        repo.close();
+
+        var reopened = builder.build();
+        assertEquals(50, reopened.findBy("parity", 1).size());
+        reopened.close();
+    }
+
+    private static void awaitCondition(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void changeFeedMergesEveryShard(@TempDir Path dir) throws Exception {
+        var repo = open(dir, SHARDS);
+        for (int i = 0; i < 50; i++) {
+            repo.save("key-" + i, "value-" + i);
+        }
+
+        var seen = new ConcurrentHashMap<String, String>();
+        var calls = new AtomicInteger();
+        var overlapping = new AtomicBoolean();
+        var feed = repo.subscribe(0, change -> {
+            if (calls.incrementAndGet() > 1) overlapping.set(true);
+            seen.put(change.key(), change.value());
+            calls.decrementAndGet();
+        });
+        for (int i = 50; i < 100; i++) {
+            repo.saveAsync("key-" + i, "value-" + i).join();
+        }
+        awaitCondition(() -> seen.size() == 100);
+        assertFalse(overlapping.get(), "the listener was called by two shards at once");
+
+        // once every shard is idle, the merged offset covers every version handed out
+        var last = repo.loadVersioned("key-99").orElseThrow().version();
+        awaitCondition(() -> feed.lastOffset() >= last);
+        feed.close();
+
+        repo.save("late", "value");
+        var resumed = new ConcurrentHashMap<String, String>();
+        var again = repo.subscribe(feed.lastOffset() + 1, change -> resumed.put(change.key(), change.value()));
+        awaitCondition(() -> resumed.size() == 1);
+        assertEquals(Map.of("late", "value"), resumed);
+        again.close();
+        repo.close();
+    }
+
+    @Test
+    void shardCountCannotChange(@TempDir Path dir) {
+        var sharded = open(dir, SHARDS);
+        sharded.save("key", "value");
+        sharded.close();
+
+        assertThrows(IllegalStateException.class, () -> open(dir, SHARDS * 2));
+        assertThrows(IllegalStateException.class, () -> open(dir, 1));
+
+        var plainDir = dir.resolve("plain");
+        var plain = open(plainDir, 1);
+        plain.save("key", "value");
+        plain.close();
+        assertThrows(IllegalStateException.class, () -> open(plainDir, SHARDS));
+    }
+
+    @Test
+    void longKeysStayInTheShardsOfTheirEncodedBytes(@TempDir Path dir) {
+        var encoded = KVRepository.<Long, String>builder()
+                .path(dir.resolve("test.db"))
+                .keyEncoder(key -> java.nio.ByteBuffer.allocate(8).putLong(key).array(), b -> java.nio.ByteBuffer.wrap(b).getLong())
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .shards(SHARDS)
+                .build();
+        for (long i = 0; i < 200; i++) {
+            encoded.save(i * 31, "value-" + i);
+        }
+        encoded.close();
+
+        var specialized = LongKVRepository.<String>builder()
+                .path(dir.resolve("test.db"))
+                .valueEncoder(s -> s.getBytes(StandardCharsets.UTF_8), b -> new String(b, StandardCharsets.UTF_8))
+                .shards(SHARDS)
+                .build();
+        for (long i = 0; i < 200; i++) {
+            assertEquals(Optional.of("value-" + i), specialized.load(i * 31));
+        }
+        specialized.delete(0);
+        specialized.save(-1, "negative");
+        assertEquals(Optional.empty(), specialized.load(0L));
+        assertEquals(Optional.of("negative"), specialized.load(Long.valueOf(-1)));
+        specialized.close();
+    }
+
+    @Test
+    void builderRejectsInvalidShardCount() {
+        assertThrows(IllegalArgumentException.class, () -> KVRepository.<String, String>builder().shards(0));
+    }
+
+    @Test
+    void shardIndexStaysInRangeAndBalanced() {
+        var random = new Random(42);
+        for (int shards : new int[]{2, 3, 8, 13}) {
+            var counts = new int[shards];
+            for (int i = 0; i < 100_000; i++) {
+                counts[ShardedRepository.shardIndex(random.nextInt(), shards)]++;
+            }
+            int expected = 100_000 / shards;
+            for (int count : counts) {
+                assertTrue(Math.abs(count - expected) < expected / 10, "unbalanced: " + count + " vs " + expected);
+            }
+        }
+        Set<Integer> sequential = new HashSet<>();
+        for (int hash = 0; hash < 64; hash++) {
+            sequential.add(ShardedRepository.shardIndex(hash, 4));
+        }
+        assertEquals(4, sequential.size());
+    }
+}